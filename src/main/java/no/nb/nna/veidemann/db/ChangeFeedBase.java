@@ -22,13 +22,21 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Closeable;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
 import java.util.concurrent.TimeoutException;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
@@ -40,53 +48,82 @@ public abstract class ChangeFeedBase<T> implements ChangeFeed<T> {
 
     final Stream<T> stream;
 
+    private final Dedup dedup;
+
+    private final ChangeFeedPublisher.Source<Map<String, Object>> source;
+
     /**
      * Creates a change feed based on a query result from RethinkDB.
      *
      * Since RethinkDB returns Cursor or List depending on query, this constructor takes an object which can be either
-     * Cursor<Map<String, Object>> or List<Map<String, Object>>. Everything else will throw a ClassCastException.
+     * Cursor<Map<String, Object>> or List<Map<String, Object>>. A {@link ResumableCursor} is also accepted.
+     * Everything else will throw a ClassCastException.
+     *
+     * Objects are not deduplicated, use {@link #ChangeFeedBase(Object, Dedup)} to choose a policy.
      *
      * @param cursor the result from RethinkDB to embed.
      */
     public ChangeFeedBase(Object cursor) {
-        if(cursor instanceof Cursor) {
-            stream = init((Cursor<Map<String, Object>>) cursor);
+        this(cursor, Dedup.NONE);
+    }
+
+    /**
+     * Creates a change feed based on a query result from RethinkDB.
+     *
+     * @param cursor the result from RethinkDB to embed.
+     * @param dedup  the policy for removing duplicate objects
+     * @see #ChangeFeedBase(Object)
+     */
+    public ChangeFeedBase(Object cursor, Dedup dedup) {
+        this(cursor, dedup, true);
+    }
+
+    /**
+     * Creates a change feed based on a query result from RethinkDB.
+     *
+     * The stream is sequential, but can be turned into a parallel stream with {@link Stream#parallel()}. The objects
+     * are then read from the cursor in batches which are decoded in the common ForkJoin pool. If the order of the
+     * objects is not significant, set ordered to false to let the stream skip the work of keeping encounter order.
+     *
+     * @param cursor  the result from RethinkDB to embed.
+     * @param dedup   the policy for removing duplicate objects
+     * @param ordered true if the stream should keep the order of the query result
+     * @see #ChangeFeedBase(Object)
+     */
+    public ChangeFeedBase(Object cursor, Dedup dedup, boolean ordered) {
+        this.dedup = dedup;
+        Stream<T> s;
+        if (cursor instanceof ResumableCursor) {
+            ResumableCursor it = (ResumableCursor) cursor;
+            source = it;
+            s = init(it).onClose(it::close);
+        } else if(cursor instanceof Cursor) {
+            CursorSpliterator<Map<String, Object>> it = new CursorSpliterator<>((Cursor<Map<String, Object>>) cursor, ordered);
+            source = it;
+            s = init(it).onClose(it::close);
         } else {
-            stream = init((List<Map<String, Object>>) cursor);
+            List<Map<String, Object>> list = (List<Map<String, Object>>) cursor;
+            source = new ListSource<>(list.iterator());
+            s = init(list.spliterator());
         }
+        stream = ordered ? s : s.unordered();
     }
 
-    private Stream<T> init(Cursor<Map<String, Object>> cursor) {
-        CursorSpliterator<Map<String, Object>> it = new CursorSpliterator<>(cursor);
+    private Stream<T> init(Spliterator<Map<String, Object>> it) {
         return StreamSupport
                 .stream(it, false)
-                .onClose(it::close)
-                .map(o -> {
-                    try {
-                        return mapper().apply(o);
-                    } catch (Throwable e) {
-                        LOG.error("Error mapping database object", e);
-                        return null;
-                    }
-                })
-                .filter(Objects::nonNull)
-                .distinct();
+                .filter(dedup.newFilter())
+                .map(this::decode)
+                .filter(Objects::nonNull);
     }
 
-    private Stream<T> init(List<Map<String, Object>> cursor) {
-        Spliterator<Map<String, Object>> it = cursor.spliterator();
-        return StreamSupport
-                .stream(it, false)
-                .map(o -> {
-                    try {
-                        return mapper().apply(o);
-                    } catch (Throwable e) {
-                        LOG.error("Error mapping database object", e);
-                        return null;
-                    }
-                })
-                .filter(Objects::nonNull)
-                .distinct();
+    private T decode(Map<String, Object> o) {
+        try {
+            return mapper().apply(o);
+        } catch (Throwable e) {
+            LOG.error("Error mapping database object", e);
+            return null;
+        }
     }
 
     protected abstract Function<Map<String, Object>, T> mapper();
@@ -96,36 +133,272 @@ public abstract class ChangeFeedBase<T> implements ChangeFeed<T> {
         return stream;
     }
 
+    /**
+     * Get a publisher for the objects in this change feed.
+     * <p>
+     * The publisher reads from the database only when the subscriber has requested more objects, and delivers the
+     * objects on threads from the executor. A subscriber waiting for changes does not occupy an executor thread, the
+     * cursor is then polled by a single thread shared by all publishers. Cancelling the subscription closes the
+     * cursor.
+     * <p>
+     * The publisher and the {@link #stream()} read from the same cursor, so only one of them should be used.
+     *
+     * @param executor the executor used for reading and delivering objects
+     * @return a publisher which accepts a single subscriber
+     */
+    public Flow.Publisher<T> publisher(Executor executor) {
+        return new ChangeFeedPublisher<>(source, dedup.newFilter(), this::decode, executor);
+    }
+
     @Override
     public void close() {
         stream.close();
     }
 
-    private static class CursorSpliterator<T extends Map<String, Object>> implements Spliterator<T>, Closeable {
-        private final Cursor<T> cursor;
-        private boolean closed;
+    /**
+     * Policy for removing duplicate objects from a change feed.
+     * <p>
+     * Objects are identified by their id. For change feeds the id of the new value, or the old value for deletes, is
+     * used. Only the id, and the version if the policy uses one, is kept for each object in the window. The window is
+     * bounded both by number of objects and by age to keep memory use flat on change feeds running for a long time.
+     */
+    public static final class Dedup {
+        /**
+         * No deduplication. Used for plain queries where primary keys guarantee uniqueness.
+         */
+        public static final Dedup NONE = new Dedup(0, Duration.ZERO, null);
+
+        static final int DEFAULT_MAX_SIZE = 10_000;
+        static final Duration DEFAULT_MAX_AGE = Duration.ofMinutes(10);
+
+        private static final Object NO_VERSION = new Object();
+
+        private final int maxSize;
+        private final Duration maxAge;
+        private final Function<Map<String, Object>, Object> version;
+
+        private Dedup(int maxSize, Duration maxAge, Function<Map<String, Object>, Object> version) {
+            this.maxSize = maxSize;
+            this.maxAge = maxAge;
+            this.version = version;
+        }
+
+        /**
+         * Create a policy which removes objects with an id seen within a window of 10 000 objects during the last
+         * 10 minutes.
+         *
+         * @return the policy
+         * @see #byId(int, Duration)
+         */
+        public static Dedup byId() {
+            return byId(DEFAULT_MAX_SIZE, DEFAULT_MAX_AGE);
+        }
+
+        /**
+         * Create a policy which removes objects with an id seen within a window.
+         * <p>
+         * Used for queries where the same object might be returned more than once, like a union of a table and its
+         * archive. Not suited for change feeds, since later changes to an object would be removed.
+         *
+         * @param maxSize the maximum number of objects to remember
+         * @param maxAge  the maximum time to remember an object
+         * @return the policy
+         */
+        public static Dedup byId(int maxSize, Duration maxAge) {
+            return window(maxSize, maxAge, o -> NO_VERSION);
+        }
+
+        /**
+         * Create a policy which removes objects with an id and version seen within a window of 10 000 objects during
+         * the last 10 minutes.
+         *
+         * @param version function returning the version of an object
+         * @return the policy
+         * @see #byVersion(int, Duration, Function)
+         */
+        public static Dedup byVersion(Function<Map<String, Object>, Object> version) {
+            return byVersion(DEFAULT_MAX_SIZE, DEFAULT_MAX_AGE, version);
+        }
+
+        /**
+         * Create a policy which removes objects with an id and version seen within a window.
+         * <p>
+         * The version should be a cheap field which changes on every write, like a last modified time. Objects without
+         * a version are never removed.
+         *
+         * @param maxSize the maximum number of objects to remember
+         * @param maxAge  the maximum time to remember an object
+         * @param version function returning the version of an object, or null if it has none
+         * @return the policy
+         */
+        public static Dedup byVersion(int maxSize, Duration maxAge, Function<Map<String, Object>, Object> version) {
+            return window(maxSize, maxAge, Objects.requireNonNull(version));
+        }
+
+        private static Dedup window(int maxSize, Duration maxAge, Function<Map<String, Object>, Object> version) {
+            if (maxSize <= 0 || maxAge.isNegative() || maxAge.isZero()) {
+                throw new IllegalArgumentException("Window must have a positive size and age");
+            }
+            return new Dedup(maxSize, maxAge, version);
+        }
+
+        Predicate<Map<String, Object>> newFilter() {
+            if (maxSize <= 0) {
+                return o -> true;
+            }
+            return new DedupFilter(maxSize, maxAge.toNanos(), version);
+        }
+    }
+
+    private static class DedupFilter implements Predicate<Map<String, Object>> {
+        private final int maxSize;
+        private final long maxAgeNanos;
+        private final Function<Map<String, Object>, Object> version;
+
+        /**
+         * Seen objects in the order they were last changed.
+         */
+        private final LinkedHashMap<Object, Seen> seen = new LinkedHashMap<>();
+
+        DedupFilter(int maxSize, long maxAgeNanos, Function<Map<String, Object>, Object> version) {
+            this.maxSize = maxSize;
+            this.maxAgeNanos = maxAgeNanos;
+            this.version = version;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public synchronized boolean test(Map<String, Object> o) {
+            Map<String, Object> value = o;
+            if (o.containsKey("new_val") || o.containsKey("old_val")) {
+                value = (Map<String, Object>) o.get("new_val");
+                if (value == null) {
+                    // Deleted, forget it so that it is emitted if it shows up again
+                    Map<String, Object> oldVal = (Map<String, Object>) o.get("old_val");
+                    if (oldVal != null) {
+                        seen.remove(oldVal.get("id"));
+                    }
+                    return true;
+                }
+            }
+
+            Object id = value.get("id");
+            if (id == null) {
+                return true;
+            }
+            Object v = version.apply(value);
+            if (v == null) {
+                return true;
+            }
+
+            long now = System.nanoTime();
+            evict(now);
+
+            Seen previous = seen.remove(id);
+            seen.put(id, new Seen(v, now));
+            return previous == null || !previous.version.equals(v);
+        }
+
+        private void evict(long now) {
+            Iterator<Seen> it = seen.values().iterator();
+            while (it.hasNext()) {
+                Seen s = it.next();
+                if (seen.size() >= maxSize || now - s.time > maxAgeNanos) {
+                    it.remove();
+                } else {
+                    break;
+                }
+            }
+        }
+
+        private static class Seen {
+            final Object version;
+            final long time;
+
+            Seen(Object version, long time) {
+                this.version = version;
+                this.time = time;
+            }
+        }
+    }
+
+    /**
+     * Spliterator reading from a RethinkDB cursor.
+     * <p>
+     * Splitting takes a batch of objects from the cursor into an array which can be processed by another thread. The
+     * batch size grows for each split to keep the overhead low for large results. A split stops filling the batch if
+     * the cursor times out waiting for more objects, so splitting a change feed does not block until a whole batch
+     * of changes has arrived.
+     */
+    static class CursorSpliterator<T extends Map<String, Object>> implements Spliterator<T>, ChangeFeedPublisher.Source<T>, Closeable {
+        static final int BATCH_UNIT = 1 << 10;
+        static final int MAX_BATCH = 1 << 16;
+
+        private final CursorReader<T> reader;
+        private final boolean ordered;
+        private int batch;
 
         public CursorSpliterator(Cursor<T> cursor) {
-            this.cursor = cursor;
+            this(cursor, true);
+        }
+
+        public CursorSpliterator(Cursor<T> cursor, boolean ordered) {
+            this.reader = new CursorReader<>(cursor);
+            this.ordered = ordered;
         }
 
         @Override
         public boolean tryAdvance(Consumer<? super T> action) {
             if (action == null) throw new NullPointerException();
-            while (!closed && cursor.hasNext()) {
+            while (reader.hasNext()) {
+                T next;
                 try {
-                    action.accept(cursor.next(2000));
+                    next = reader.next();
                 } catch (TimeoutException e) {
                     continue;
+                } catch (NoSuchElementException e) {
+                    return false;
                 }
+                action.accept(next);
                 return true;
             }
             return false;
         }
 
+        @Override
+        public T poll(long timeoutMillis) throws TimeoutException {
+            try {
+                return reader.hasNext() ? reader.next(timeoutMillis) : null;
+            } catch (NoSuchElementException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public boolean ready() {
+            return reader.isClosed();
+        }
+
         @Override
         public Spliterator<T> trySplit() {
-            return null;
+            if (reader.isClosed()) {
+                return null;
+            }
+            int n = Math.min(batch + BATCH_UNIT, MAX_BATCH);
+            Object[] a = new Object[n];
+            int j = 0;
+            try {
+                while (j < n && reader.hasNext()) {
+                    a[j++] = reader.next();
+                }
+            } catch (TimeoutException | NoSuchElementException e) {
+                // Hand over what we got so far
+            }
+            if (j == 0) {
+                return null;
+            }
+            batch = j;
+            return Spliterators.spliterator(a, 0, j, characteristics());
         }
 
         @Override
@@ -135,13 +408,34 @@ public abstract class ChangeFeedBase<T> implements ChangeFeed<T> {
 
         @Override
         public int characteristics() {
-            return 0;
+            return ordered ? ORDERED : 0;
+        }
+
+        @Override
+        public void close() {
+            reader.close();
+        }
+    }
+
+    private static class ListSource<T> implements ChangeFeedPublisher.Source<T> {
+        private final Iterator<T> it;
+
+        ListSource(Iterator<T> it) {
+            this.it = it;
+        }
+
+        @Override
+        public synchronized T poll(long timeoutMillis) {
+            return it.hasNext() ? it.next() : null;
+        }
+
+        @Override
+        public boolean ready() {
+            return true;
         }
 
         @Override
         public void close() {
-            this.closed = true;
-            this.cursor.close();
         }
     }
 }
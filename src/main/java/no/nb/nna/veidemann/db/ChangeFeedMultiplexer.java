@@ -0,0 +1,386 @@
+/*
+ * Copyright 2020 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.nb.nna.veidemann.db;
+
+import com.rethinkdb.ast.ReqlAst;
+import no.nb.nna.veidemann.commons.db.ChangeFeed;
+import no.nb.nna.veidemann.commons.db.DbException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Shares change feeds between local subscribers.
+ * <p>
+ * Subscriptions to queries with the same AST share one change feed in the database. Each change is decoded once and
+ * then offered to the subscribers. Every subscriber has a bounded queue, so a slow subscriber does not hold back the
+ * others. When a queue is full, the {@link OverflowPolicy} decides what to drop.
+ * <p>
+ * The feeds are read with {@link ChangeFeedPublisher}s on a fixed pool of {@link #READER_THREADS} threads. Idle feeds
+ * do not occupy a reader thread, and busy feeds give up their thread after every {@link #READ_BATCH} changes, so the
+ * number of threads does not grow with the number of feeds.
+ * <p>
+ * The database feed is closed when the last subscriber has closed its subscription.
+ *
+ * @param <T> the type of the decoded objects
+ */
+class ChangeFeedMultiplexer<T> implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(ChangeFeedMultiplexer.class);
+
+    static final int READER_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+
+    static final int READ_BATCH = 256;
+
+    /**
+     * What to do when a subscriber's queue is full.
+     */
+    enum OverflowPolicy {
+        /**
+         * Drop the oldest object in the queue.
+         */
+        DROP_OLDEST,
+        /**
+         * Replace a queued object with the same key, or drop the oldest object if there is none. A queued object is
+         * always replaced by a newer object with the same key, so slow subscribers only get the latest version.
+         */
+        COALESCE
+    }
+
+    /**
+     * Opens the change feed for a query.
+     */
+    interface SourceFactory {
+        ChangeFeedPublisher.Source<Map<String, Object>> open() throws DbException;
+    }
+
+    private final String name;
+    private final Function<Map<String, Object>, T> decoder;
+    private final Function<T, Object> keyFunction;
+    private final ChangeFeedBase.Dedup dedup;
+    private final int queueSize;
+    private final OverflowPolicy overflowPolicy;
+    private final Map<String, SharedFeed> feeds = new ConcurrentHashMap<>();
+    private final ExecutorService readers;
+
+    /**
+     * @param name           name used for reader threads and logging
+     * @param decoder        converts a change document to an object, returning null for changes which should be
+     *                       skipped
+     * @param keyFunction    returns the key of an object, used for {@link OverflowPolicy#COALESCE}
+     * @param dedup          the policy for removing duplicate changes from each feed
+     * @param queueSize      the maximum number of objects queued for a subscriber
+     * @param overflowPolicy what to do when a subscriber's queue is full
+     */
+    ChangeFeedMultiplexer(String name, Function<Map<String, Object>, T> decoder, Function<T, Object> keyFunction,
+                          ChangeFeedBase.Dedup dedup, int queueSize, OverflowPolicy overflowPolicy) {
+        this.name = name;
+        this.decoder = decoder;
+        this.keyFunction = keyFunction;
+        this.dedup = dedup;
+        this.queueSize = queueSize;
+        this.overflowPolicy = overflowPolicy;
+        this.readers = Executors.newFixedThreadPool(READER_THREADS, r -> {
+            Thread t = new Thread(r, name + "-feed-reader");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Subscribe to a change feed.
+     * <p>
+     * If there is already a feed for the same query, the subscription is added to it. Otherwise the feed is opened
+     * with the source factory. The feed is opened without holding any lock, so opening a feed does not block
+     * subscriptions to other feeds. Subscriptions to the same query wait for the feed to open, and fail if it could
+     * not be opened.
+     *
+     * @param query         the query, used to identify feeds which can be shared
+     * @param sourceFactory opens the feed if there is no feed for the query
+     * @return the subscription
+     */
+    ChangeFeed<T> subscribe(ReqlAst query, SourceFactory sourceFactory) throws DbException {
+        String fingerprint = new RethinkAstDecompiler(query).toString();
+        SharedFeed feed;
+        Subscription subscription;
+        boolean open = false;
+        synchronized (feeds) {
+            feed = feeds.get(fingerprint);
+            if (feed == null) {
+                feed = new SharedFeed(fingerprint);
+                feeds.put(fingerprint, feed);
+                open = true;
+            }
+            subscription = new Subscription(feed);
+            feed.subscribers.add(subscription);
+        }
+        if (open) {
+            feed.open(sourceFactory);
+        }
+        feed.awaitOpen();
+        return subscription;
+    }
+
+    /**
+     * @return the number of change feeds open, or being opened, in the database
+     */
+    int feedCount() {
+        return feeds.size();
+    }
+
+    @Override
+    public void close() {
+        List<SharedFeed> closing;
+        synchronized (feeds) {
+            closing = new ArrayList<>(feeds.values());
+            feeds.clear();
+        }
+        // Closing a feed might wait for a reader, so it is done without holding the lock
+        closing.forEach(SharedFeed::close);
+        readers.shutdownNow();
+    }
+
+    private void unsubscribe(Subscription subscription) {
+        SharedFeed feed = subscription.feed;
+        boolean last;
+        synchronized (feeds) {
+            feed.subscribers.remove(subscription);
+            last = feed.subscribers.isEmpty() && feeds.remove(feed.fingerprint, feed);
+        }
+        if (last) {
+            feed.close();
+        }
+    }
+
+    private T decode(Map<String, Object> raw) {
+        try {
+            return decoder.apply(raw);
+        } catch (Throwable e) {
+            LOG.error("Error mapping database object", e);
+            return null;
+        }
+    }
+
+    private class SharedFeed implements Flow.Subscriber<T> {
+        final String fingerprint;
+        final CopyOnWriteArrayList<Subscription> subscribers = new CopyOnWriteArrayList<>();
+        final CompletableFuture<Void> opened = new CompletableFuture<>();
+        private Flow.Subscription subscription;
+        private int received;
+        private boolean closed;
+
+        SharedFeed(String fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+
+        void open(SourceFactory sourceFactory) throws DbException {
+            ChangeFeedPublisher.Source<Map<String, Object>> source;
+            try {
+                source = sourceFactory.open();
+            } catch (DbException | RuntimeException e) {
+                synchronized (feeds) {
+                    feeds.remove(fingerprint, this);
+                }
+                opened.completeExceptionally(e);
+                throw e;
+            }
+            new ChangeFeedPublisher<>(source, dedup.newFilter(), ChangeFeedMultiplexer.this::decode, readers)
+                    .subscribe(this);
+            opened.complete(null);
+        }
+
+        void awaitOpen() throws DbException {
+            try {
+                opened.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof DbException) {
+                    throw (DbException) e.getCause();
+                }
+                throw (RuntimeException) e.getCause();
+            }
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            boolean cancel;
+            synchronized (this) {
+                this.subscription = subscription;
+                cancel = closed;
+            }
+            if (cancel) {
+                subscription.cancel();
+            } else {
+                subscription.request(READ_BATCH);
+            }
+        }
+
+        @Override
+        public void onNext(T value) {
+            subscribers.forEach(s -> s.offer(value));
+            if (++received == READ_BATCH) {
+                // Request the next batch as a new task, giving other feeds a chance to use the thread
+                received = 0;
+                try {
+                    readers.execute(() -> subscription.request(READ_BATCH));
+                } catch (RejectedExecutionException e) {
+                    // Shut down
+                }
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            LOG.warn("Shared change feed {} failed", name, throwable);
+            ended();
+        }
+
+        @Override
+        public void onComplete() {
+            ended();
+        }
+
+        private void ended() {
+            synchronized (feeds) {
+                feeds.remove(fingerprint, this);
+            }
+            subscribers.forEach(Subscription::end);
+        }
+
+        void close() {
+            Flow.Subscription s;
+            synchronized (this) {
+                closed = true;
+                s = subscription;
+            }
+            if (s != null) {
+                s.cancel();
+            }
+            subscribers.forEach(Subscription::end);
+        }
+    }
+
+    private class Subscription implements ChangeFeed<T>, Spliterator<T> {
+        final SharedFeed feed;
+        final Stream<T> stream;
+
+        /**
+         * Queued objects by key. The key is the object's key for {@link OverflowPolicy#COALESCE}, otherwise a
+         * sequence number.
+         */
+        private final LinkedHashMap<Object, T> queue = new LinkedHashMap<>();
+        private long sequence;
+        private boolean ended;
+
+        Subscription(SharedFeed feed) {
+            this.feed = feed;
+            this.stream = StreamSupport.stream(this, false).onClose(() -> {
+                end();
+                unsubscribe(this);
+            });
+        }
+
+        synchronized void offer(T value) {
+            if (ended) {
+                return;
+            }
+            Object key = overflowPolicy == OverflowPolicy.COALESCE ? keyFunction.apply(value) : sequence++;
+            if (queue.containsKey(key)) {
+                // Keep the position in the queue, but replace the value
+                queue.put(key, value);
+            } else {
+                if (queue.size() >= queueSize) {
+                    Iterator<Object> it = queue.keySet().iterator();
+                    it.next();
+                    it.remove();
+                }
+                queue.put(key, value);
+            }
+            notifyAll();
+        }
+
+        synchronized void end() {
+            ended = true;
+            notifyAll();
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            T value;
+            synchronized (this) {
+                while (queue.isEmpty()) {
+                    if (ended) {
+                        return false;
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+                Iterator<T> it = queue.values().iterator();
+                value = it.next();
+                it.remove();
+            }
+            // Not holding the lock, so that the reader is not blocked by a slow consumer
+            action.accept(value);
+            return true;
+        }
+
+        @Override
+        public Spliterator<T> trySplit() {
+            return null;
+        }
+
+        @Override
+        public long estimateSize() {
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | NONNULL;
+        }
+
+        @Override
+        public Stream<T> stream() {
+            return stream;
+        }
+
+        @Override
+        public void close() {
+            stream.close();
+        }
+    }
+}
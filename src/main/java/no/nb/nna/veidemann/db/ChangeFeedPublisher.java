@@ -0,0 +1,330 @@
+/*
+ * Copyright 2020 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.nb.nna.veidemann.db;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Publisher for the objects of a change feed.
+ * <p>
+ * Objects are read from the source only when there is outstanding demand. Reading and delivery is done by a drain
+ * task on the executor. If the source has nothing to deliver, the subscription is parked with a single poller thread
+ * shared by all publishers, and the drain task returns. The poller never reads from a source. It resubmits the drain
+ * task when the source reports that it is {@link Source#ready() ready}, or when the idle wait of the subscription has
+ * passed. The idle wait starts at {@link #MIN_IDLE_MILLIS} and is doubled each time the drain task finds nothing, up
+ * to {@link #MAX_IDLE_MILLIS}. Executor threads are therefore only used while there are objects to deliver or a
+ * source is due to be polled, and many idle feeds can share a small thread pool. Reopening a lost feed is done by the
+ * drain task too, so a slow reconnect does not hold up other feeds.
+ *
+ * @param <T> the type of the published objects
+ */
+class ChangeFeedPublisher<T> implements Flow.Publisher<T> {
+    private static final Logger LOG = LoggerFactory.getLogger(ChangeFeedPublisher.class);
+
+    /**
+     * Time to poll a source from the drain task before the subscription is parked.
+     */
+    static final long DRAIN_POLL_MILLIS = 1;
+
+    /**
+     * Initial time a subscription is parked before its source is polled again.
+     */
+    static final long MIN_IDLE_MILLIS = 10;
+
+    /**
+     * Maximum time a subscription is parked before its source is polled again.
+     */
+    static final long MAX_IDLE_MILLIS = 200;
+
+    /**
+     * Time between each round of the idle poller over the parked subscriptions.
+     */
+    static final long ROUND_MILLIS = 5;
+
+    /**
+     * Source of database objects.
+     */
+    interface Source<R> {
+        /**
+         * Get the next object.
+         *
+         * @param timeoutMillis maximum time to wait for an object
+         * @return the next object or null if there are no more objects
+         * @throws TimeoutException if no object arrived within the timeout
+         */
+        R poll(long timeoutMillis) throws TimeoutException;
+
+        /**
+         * Check without blocking if {@link #poll(long)} should be called now.
+         *
+         * @return true if an object, the end of the source or other work is known to be waiting. False if unknown
+         */
+        default boolean ready() {
+            return false;
+        }
+
+        void close();
+    }
+
+    private final Source<Map<String, Object>> source;
+    private final Predicate<Map<String, Object>> filter;
+    private final Function<Map<String, Object>, T> decoder;
+    private final Executor executor;
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+
+    ChangeFeedPublisher(Source<Map<String, Object>> source, Predicate<Map<String, Object>> filter,
+                        Function<Map<String, Object>, T> decoder, Executor executor) {
+        this.source = source;
+        this.filter = filter;
+        this.decoder = decoder;
+        this.executor = executor;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super T> subscriber) {
+        Objects.requireNonNull(subscriber, "subscriber must be set");
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("A change feed can only be subscribed once"));
+            return;
+        }
+        subscriber.onSubscribe(new FeedSubscription(subscriber));
+    }
+
+    /**
+     * A subscription waiting for its source.
+     */
+    interface Parked {
+        /**
+         * Resubmit the drain task if the subscription has something to do. Must not block.
+         *
+         * @param now the current {@link System#nanoTime()}
+         * @return true if the subscription should no longer be parked
+         */
+        boolean unparkIfDue(long now);
+    }
+
+    /**
+     * Checks the parked subscriptions on one daemon thread.
+     * <p>
+     * Every {@link #ROUND_MILLIS} all parked subscriptions are asked if they are due. The check never blocks, so the
+     * cost of a round only grows with the number of parked subscriptions. The thread is blocked while no
+     * subscription is parked.
+     */
+    static final class IdlePoller implements Runnable {
+        static final IdlePoller INSTANCE = new IdlePoller();
+
+        private final LinkedBlockingQueue<Parked> parked = new LinkedBlockingQueue<>();
+
+        private IdlePoller() {
+            Thread t = new Thread(this, "change-feed-idle-poller");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        void park(Parked p) {
+            parked.add(p);
+        }
+
+        @Override
+        public void run() {
+            List<Parked> round = new ArrayList<>();
+            while (true) {
+                try {
+                    round.add(parked.take());
+                } catch (InterruptedException e) {
+                    return;
+                }
+                parked.drainTo(round);
+                long now = System.nanoTime();
+                for (Parked p : round) {
+                    boolean unpark;
+                    try {
+                        unpark = p.unparkIfDue(now);
+                    } catch (Throwable t) {
+                        LOG.warn("Error checking parked change feed", t);
+                        unpark = true;
+                    }
+                    if (!unpark) {
+                        parked.add(p);
+                    }
+                }
+                round.clear();
+                try {
+                    Thread.sleep(ROUND_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private class FeedSubscription implements Flow.Subscription, Runnable, Parked {
+        private final Flow.Subscriber<? super T> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private volatile boolean cancelled;
+        private volatile Throwable requestError;
+        private boolean done;
+
+        /**
+         * Time to stay parked the next time the source has nothing to deliver. Only used by the drain task.
+         */
+        private long idleMillis = MIN_IDLE_MILLIS;
+
+        /**
+         * The {@link System#nanoTime()} when the parked subscription should poll its source again.
+         */
+        private volatile long parkedUntil;
+
+        FeedSubscription(Flow.Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                // Delivered by the drain task, so that it is not signalled concurrently with onNext
+                requestError = new IllegalArgumentException("Requested " + n + " objects, must be positive");
+                source.close();
+            } else {
+                demand.getAndUpdate(d -> d + n < 0 ? Long.MAX_VALUE : d + n);
+            }
+            if (wip.getAndIncrement() == 0) {
+                executor.execute(this);
+            }
+        }
+
+        @Override
+        public void cancel() {
+            if (!cancelled) {
+                cancelled = true;
+                source.close();
+            }
+        }
+
+        @Override
+        public boolean unparkIfDue(long now) {
+            if (cancelled) {
+                return true;
+            }
+            if (requestError != null || now - parkedUntil >= 0 || source.ready()) {
+                executor.execute(this);
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Deliver objects while there is demand. Only one thread runs this at a time, which is ensured by the work
+         * in progress counter. The counter is not decremented while the subscription is parked.
+         */
+        @Override
+        public void run() {
+            int missed = wip.get();
+            for (;;) {
+                if (failRequest()) {
+                    return;
+                }
+                while (demand.get() > 0) {
+                    if (cancelled || done || failRequest()) {
+                        return;
+                    }
+
+                    Map<String, Object> raw;
+                    try {
+                        raw = source.poll(DRAIN_POLL_MILLIS);
+                    } catch (TimeoutException e) {
+                        // Nothing arrived, let the poller wait for the source
+                        parkedUntil = System.nanoTime() + idleMillis * 1_000_000;
+                        idleMillis = Math.min(idleMillis * 2, MAX_IDLE_MILLIS);
+                        IdlePoller.INSTANCE.park(this);
+                        return;
+                    } catch (Throwable t) {
+                        if (!cancelled) {
+                            LOG.warn("Error reading change feed", t);
+                            done = true;
+                            source.close();
+                            subscriber.onError(requestError != null ? requestError : t);
+                        }
+                        return;
+                    }
+
+                    if (raw == null) {
+                        done = true;
+                        source.close();
+                        if (requestError != null) {
+                            subscriber.onError(requestError);
+                        } else {
+                            subscriber.onComplete();
+                        }
+                        return;
+                    }
+
+                    idleMillis = MIN_IDLE_MILLIS;
+                    T value = filter.test(raw) ? decoder.apply(raw) : null;
+                    if (value != null) {
+                        demand.getAndUpdate(d -> d == Long.MAX_VALUE ? d : d - 1);
+                        subscriber.onNext(value);
+                    }
+                }
+
+                missed = wip.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Signal an invalid request.
+         *
+         * @return true if the subscription is terminated
+         */
+        private boolean failRequest() {
+            if (requestError == null || done || cancelled) {
+                return false;
+            }
+            done = true;
+            subscriber.onError(requestError);
+            return true;
+        }
+    }
+}
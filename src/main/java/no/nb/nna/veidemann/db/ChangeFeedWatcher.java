@@ -0,0 +1,186 @@
+/*
+ * Copyright 2020 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.nb.nna.veidemann.db;
+
+import com.rethinkdb.RethinkDB;
+import com.rethinkdb.gen.ast.ReqlExpr;
+import com.rethinkdb.net.Cursor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Base class for local state which is kept current by a RethinkDB change feed.
+ * <p>
+ * The watcher runs a daemon thread which subscribes to the query returned by {@link #changeFeedQuery()} and hands
+ * every change to {@link #onChange(Map, Map)}. If the feed breaks, typically because the connection to the database
+ * was lost, the watcher subscribes again. Since changes might have been lost in between, {@link #onSubscribed()} is
+ * called before each subscription so that subclasses can reset their state.
+ * <p>
+ * Queries which should be able to tell when the initial state is loaded must set the optargs {@code include_initial}
+ * and {@code include_states}. {@link #isReady()} returns true when the server has signalled that the initial
+ * values are delivered.
+ * <p>
+ * The feed is read with a {@link CursorReader}, so an idle feed is polled with the adaptive wait of the reader.
+ */
+abstract class ChangeFeedWatcher implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(ChangeFeedWatcher.class);
+
+    private static final long MIN_RETRY_DELAY_MILLIS = 500;
+    private static final long MAX_RETRY_DELAY_MILLIS = 30000;
+
+    static final RethinkDB r = RethinkDB.r;
+
+    final RethinkDbConnection conn;
+    final String name;
+
+    private Thread thread;
+    private volatile CursorReader<Map<String, Object>> cursor;
+    private volatile boolean ready;
+    private volatile boolean closed;
+
+    ChangeFeedWatcher(RethinkDbConnection conn, String name) {
+        this.conn = conn;
+        this.name = name;
+    }
+
+    /**
+     * Start watching. Calling this method on an already started watcher has no effect.
+     */
+    synchronized void start() {
+        if (thread != null || closed) {
+            return;
+        }
+        thread = new Thread(this::run, "changefeed-" + name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return true if the initial values are loaded and the watcher is receiving changes
+     */
+    boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * @return the change feed query to subscribe to
+     */
+    abstract ReqlExpr changeFeedQuery();
+
+    /**
+     * Called for every change in the feed. Initial values have no old value and deleted documents have no new value.
+     * <p>
+     * All callbacks are executed on the watcher thread.
+     *
+     * @param oldVal the document before the change or null
+     * @param newVal the document after the change or null
+     */
+    abstract void onChange(Map<String, Object> oldVal, Map<String, Object> newVal);
+
+    /**
+     * Called every time a new subscription is established.
+     */
+    void onSubscribed() {
+    }
+
+    /**
+     * Called when the server signals that all initial values are delivered.
+     */
+    void onReady() {
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        ready = false;
+        closeCursor();
+        synchronized (this) {
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void run() {
+        long retryDelay = MIN_RETRY_DELAY_MILLIS;
+        while (!closed) {
+            try {
+                Cursor<Map<String, Object>> c = conn.exec("db-watch-" + name, changeFeedQuery());
+                CursorReader<Map<String, Object>> reader = new CursorReader<>(c);
+                cursor = reader;
+                if (closed) {
+                    break;
+                }
+                onSubscribed();
+                while (!closed && reader.hasNext()) {
+                    Map<String, Object> change;
+                    try {
+                        change = reader.next();
+                    } catch (TimeoutException e) {
+                        continue;
+                    }
+                    retryDelay = MIN_RETRY_DELAY_MILLIS;
+                    if (isStateDocument(change)) {
+                        if ("ready".equals(change.get("state"))) {
+                            onReady();
+                            ready = true;
+                        }
+                    } else {
+                        onChange((Map<String, Object>) change.get("old_val"), (Map<String, Object>) change.get("new_val"));
+                    }
+                }
+            } catch (Exception e) {
+                if (!closed) {
+                    LOG.warn("Change feed '{}' failed, resubscribing in {}ms", name, retryDelay, e);
+                }
+            } finally {
+                ready = false;
+                closeCursor();
+            }
+
+            if (!closed) {
+                try {
+                    Thread.sleep(retryDelay);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY_MILLIS);
+            }
+        }
+    }
+
+    private boolean isStateDocument(Map<String, Object> change) {
+        return change.containsKey("state") && !change.containsKey("new_val") && !change.containsKey("old_val");
+    }
+
+    private void closeCursor() {
+        CursorReader<Map<String, Object>> c = cursor;
+        cursor = null;
+        if (c != null) {
+            try {
+                c.close();
+            } catch (Exception e) {
+                LOG.debug("Error closing cursor for change feed '{}'", name, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2020 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.nb.nna.veidemann.db;
+
+import com.google.protobuf.Timestamp;
+import com.rethinkdb.RethinkDB;
+import com.rethinkdb.model.MapObject;
+import no.nb.nna.veidemann.api.frontier.v1.CrawlExecutionStatus;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * A change to a Crawl Execution.
+ * <p>
+ * Counters are given as deltas which are added to the stored values server side. The other fields replace the
+ * stored values if set.
+ * <p>
+ * Every update has a unique token which is stored on the Crawl Execution when the update is applied. Writing the
+ * same update again is a no-op, so a failed write can be retried without counting the deltas twice.
+ */
+public class CrawlExecutionUpdate {
+    static final RethinkDB r = RethinkDB.r;
+
+    /**
+     * Counter fields shared by Crawl Executions and Job Executions.
+     */
+    static final String[] STAT_FIELDS = new String[]{"documentsCrawled", "documentsDenied",
+            "documentsFailed", "documentsOutOfScope", "documentsRetried", "urisCrawled", "bytesCrawled"};
+
+    private final String id;
+
+    private final String token = UUID.randomUUID().toString();
+
+    private final Map<String, Long> counterDeltas = new LinkedHashMap<>();
+
+    private CrawlExecutionStatus.State state;
+
+    private Timestamp startTime;
+
+    private Timestamp endTime;
+
+    public CrawlExecutionUpdate(String id) {
+        this.id = Objects.requireNonNull(id, "id must be set");
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public CrawlExecutionStatus.State getState() {
+        return state;
+    }
+
+    public CrawlExecutionUpdate withState(CrawlExecutionStatus.State state) {
+        this.state = state;
+        return this;
+    }
+
+    public Timestamp getStartTime() {
+        return startTime;
+    }
+
+    public CrawlExecutionUpdate withStartTime(Timestamp startTime) {
+        this.startTime = startTime;
+        return this;
+    }
+
+    public Timestamp getEndTime() {
+        return endTime;
+    }
+
+    public CrawlExecutionUpdate withEndTime(Timestamp endTime) {
+        this.endTime = endTime;
+        return this;
+    }
+
+    public CrawlExecutionUpdate addDocumentsCrawled(long delta) {
+        return addCounter("documentsCrawled", delta);
+    }
+
+    public CrawlExecutionUpdate addDocumentsDenied(long delta) {
+        return addCounter("documentsDenied", delta);
+    }
+
+    public CrawlExecutionUpdate addDocumentsFailed(long delta) {
+        return addCounter("documentsFailed", delta);
+    }
+
+    public CrawlExecutionUpdate addDocumentsOutOfScope(long delta) {
+        return addCounter("documentsOutOfScope", delta);
+    }
+
+    public CrawlExecutionUpdate addDocumentsRetried(long delta) {
+        return addCounter("documentsRetried", delta);
+    }
+
+    public CrawlExecutionUpdate addUrisCrawled(long delta) {
+        return addCounter("urisCrawled", delta);
+    }
+
+    public CrawlExecutionUpdate addBytesCrawled(long delta) {
+        return addCounter("bytesCrawled", delta);
+    }
+
+    /**
+     * @return the counter deltas keyed by field name. Only counters with a non zero delta are included.
+     */
+    public Map<String, Long> getCounterDeltas() {
+        return Collections.unmodifiableMap(counterDeltas);
+    }
+
+    private CrawlExecutionUpdate addCounter(String field, long delta) {
+        if (delta != 0) {
+            counterDeltas.merge(field, delta, Long::sum);
+            counterDeltas.remove(field, 0L);
+        }
+        return this;
+    }
+
+    /**
+     * Merge a later update for the same Crawl Execution into this one.
+     * <p>
+     * Counter deltas are summed and fields set in the later update replace the values in this update.
+     *
+     * @param later the update to merge into this
+     * @return this update
+     */
+    public CrawlExecutionUpdate mergeFrom(CrawlExecutionUpdate later) {
+        if (!id.equals(later.id)) {
+            throw new IllegalArgumentException("Cannot merge updates for different Crawl Executions");
+        }
+        later.counterDeltas.forEach(this::addCounter);
+        if (later.state != null) {
+            state = later.state;
+        }
+        if (later.startTime != null) {
+            startTime = later.startTime;
+        }
+        if (later.endTime != null) {
+            endTime = later.endTime;
+        }
+        return this;
+    }
+
+    /**
+     * Convert to a RethinkDb object with the fields {@code id}, {@code token}, {@code set} which holds the fields to
+     * replace and {@code add} which holds the counter deltas.
+     *
+     * @return the update as a RethinkDb object
+     */
+    MapObject toRethink() {
+        MapObject set = r.hashMap();
+        if (state != null) {
+            set.with("state", state.name());
+        }
+        if (startTime != null) {
+            set.with("startTime", ProtoUtils.tsToOdt(startTime));
+        }
+        if (endTime != null) {
+            set.with("endTime", ProtoUtils.tsToOdt(endTime));
+        }
+        MapObject add = r.hashMap();
+        counterDeltas.forEach(add::with);
+        return r.hashMap("id", id).with("token", token).with("set", set).with("add", add);
+    }
+
+    @Override
+    public String toString() {
+        return "CrawlExecutionUpdate{" +
+                "id='" + id + '\'' +
+                ", state=" + state +
+                ", counterDeltas=" + counterDeltas +
+                ", startTime=" + startTime +
+                ", endTime=" + endTime +
+                '}';
+    }
+}
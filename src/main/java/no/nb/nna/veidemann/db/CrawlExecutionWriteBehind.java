@@ -0,0 +1,207 @@
+/*
+ * Copyright 2020 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.nb.nna.veidemann.db;
+
+import no.nb.nna.veidemann.commons.db.DbException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind buffer for Crawl Execution updates.
+ * <p>
+ * Updates are coalesced per Crawl Execution for a configurable window and then written as one batch. Counter deltas
+ * are summed and other fields keep the last written value. Updates which change the state of a Crawl Execution are
+ * not delayed: they trigger a synchronous flush of the whole buffer so that state transitions are visible in the
+ * database when {@link #submit(CrawlExecutionUpdate)} returns.
+ * <p>
+ * A window of zero or less disables buffering.
+ */
+public class CrawlExecutionWriteBehind implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(CrawlExecutionWriteBehind.class);
+
+    private final RethinkDbExecutionsAdapter adapter;
+
+    private final long windowMillis;
+
+    private final Map<String, CrawlExecutionUpdate> pending = new LinkedHashMap<>();
+
+    /**
+     * Updates from a batch which failed. They are retried unchanged before the pending updates, so that the tokens
+     * stay valid for updates which were applied before the failure. Guarded by the lock on {@link #pending}.
+     */
+    private List<CrawlExecutionUpdate> failed = new ArrayList<>();
+
+    /**
+     * Thread writing buffered updates when the window has passed. Started when the first update is buffered.
+     * Guarded by the lock on {@link #pending}.
+     */
+    private ScheduledThreadPoolExecutor scheduler;
+
+    /**
+     * Lock held while a batch is written. Ensures batches are written in the order they were taken from the buffer.
+     */
+    private final Object flushLock = new Object();
+
+    private ScheduledFuture<?> scheduledFlush;
+
+    private boolean closed;
+
+    CrawlExecutionWriteBehind(RethinkDbExecutionsAdapter adapter, long windowMillis) {
+        this.adapter = adapter;
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * Add an update to the buffer.
+     *
+     * @param update the change to apply
+     */
+    public void submit(CrawlExecutionUpdate update) throws DbException {
+        boolean flushNow;
+        synchronized (pending) {
+            if (closed) {
+                throw new IllegalStateException("Write-behind buffer is closed");
+            }
+            pending.computeIfAbsent(update.getId(), CrawlExecutionUpdate::new).mergeFrom(update);
+
+            flushNow = update.getState() != null || windowMillis <= 0;
+            if (!flushNow && scheduledFlush == null) {
+                scheduleFlush();
+            }
+        }
+        if (flushNow) {
+            flush();
+        }
+    }
+
+    /**
+     * Write all buffered updates.
+     * <p>
+     * A batch is not written atomically. If the write fails, the updates are kept and written again as a separate
+     * batch on the next flush. Updates which were applied before the failure are skipped by the database since they
+     * carry the same token, so no counters are added twice. Updates received in the meantime are not merged into the
+     * failed updates, but written in the batch after them.
+     */
+    public void flush() throws DbException {
+        synchronized (flushLock) {
+            List<CrawlExecutionUpdate> retry;
+            List<CrawlExecutionUpdate> batch;
+            synchronized (pending) {
+                if (scheduledFlush != null) {
+                    scheduledFlush.cancel(false);
+                    scheduledFlush = null;
+                }
+                retry = failed;
+                failed = new ArrayList<>();
+                batch = new ArrayList<>(pending.values());
+                pending.clear();
+            }
+
+            if (!retry.isEmpty()) {
+                try {
+                    adapter.updateCrawlExecutionStatuses(retry);
+                } catch (DbException | RuntimeException e) {
+                    requeue(retry, batch);
+                    throw e;
+                }
+            }
+            if (!batch.isEmpty()) {
+                try {
+                    adapter.updateCrawlExecutionStatuses(batch);
+                } catch (DbException | RuntimeException e) {
+                    requeue(batch, new ArrayList<>());
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Flush remaining updates and stop the background flusher.
+     */
+    @Override
+    public void close() {
+        synchronized (pending) {
+            closed = true;
+        }
+        try {
+            flush();
+        } catch (DbException | RuntimeException e) {
+            int lost;
+            synchronized (pending) {
+                lost = failed.size() + pending.size();
+            }
+            LOG.error("Failed writing buffered Crawl Execution updates on close, {} updates lost", lost, e);
+        }
+        synchronized (pending) {
+            if (scheduler != null) {
+                scheduler.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Schedule a flush when the window has passed. Must be called while holding the lock on {@link #pending}.
+     */
+    private void scheduleFlush() {
+        if (scheduler == null) {
+            scheduler = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread t = new Thread(r, "crawl-execution-write-behind");
+                t.setDaemon(true);
+                return t;
+            });
+            scheduler.setRemoveOnCancelPolicy(true);
+        }
+        scheduledFlush = scheduler.schedule(this::scheduledFlush, windowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void scheduledFlush() {
+        try {
+            flush();
+        } catch (DbException | RuntimeException e) {
+            LOG.warn("Failed writing buffered Crawl Execution updates, will retry", e);
+        }
+    }
+
+    /**
+     * Keep a failed batch for retry and put updates which were not yet written back in front of updates received
+     * while the batch was written.
+     */
+    private void requeue(List<CrawlExecutionUpdate> failedBatch, List<CrawlExecutionUpdate> unwritten) {
+        synchronized (pending) {
+            failed = failedBatch;
+            Map<String, CrawlExecutionUpdate> newer = new LinkedHashMap<>(pending);
+            pending.clear();
+            for (CrawlExecutionUpdate u : unwritten) {
+                pending.put(u.getId(), u);
+            }
+            newer.values().forEach(u -> pending.computeIfAbsent(u.getId(), CrawlExecutionUpdate::new).mergeFrom(u));
+            if (!closed && scheduledFlush == null && windowMillis > 0) {
+                scheduleFlush();
+            }
+        }
+    }
+}
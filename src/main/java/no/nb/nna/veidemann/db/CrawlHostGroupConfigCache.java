@@ -0,0 +1,148 @@
+/*
+ * Copyright 2020 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.nb.nna.veidemann.db;
+
+import com.rethinkdb.gen.ast.ReqlExpr;
+import com.rethinkdb.net.Cursor;
+import no.nb.nna.veidemann.api.config.v1.ConfigObject;
+import no.nb.nna.veidemann.api.config.v1.CrawlHostGroupConfig.IpRange;
+import no.nb.nna.veidemann.api.config.v1.Kind;
+import no.nb.nna.veidemann.commons.db.DbConnectionException;
+import no.nb.nna.veidemann.commons.db.DbQueryException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Resolves IP addresses to crawl host group configs.
+ * <p>
+ * The IP ranges of all crawl host group configs are kept in an {@link IpRangeIndex} which is rebuilt whenever a change
+ * feed on the config table reports a change to a crawl host group config. Until the feed has delivered the initial
+ * state, lookups use an index loaded directly from the database which is reused for
+ * {@value #FALLBACK_INDEX_TTL_MILLIS} ms.
+ */
+class CrawlHostGroupConfigCache extends ChangeFeedWatcher {
+    private static final Logger LOG = LoggerFactory.getLogger(CrawlHostGroupConfigCache.class);
+
+    static final long FALLBACK_INDEX_TTL_MILLIS = 5000;
+
+    private final Map<String, ConfigObject> configs = new HashMap<>();
+
+    private volatile IpRangeIndex<ConfigObject> index = IpRangeIndex.<ConfigObject>newBuilder().build();
+
+    private final Object fallbackLock = new Object();
+
+    private IpRangeIndex<ConfigObject> fallbackIndex;
+
+    private long fallbackLoadedAt;
+
+    CrawlHostGroupConfigCache(RethinkDbConnection conn) {
+        super(conn, "crawlHostGroupConfig");
+    }
+
+    /**
+     * Find the crawl host group config with the narrowest IP range containing an address.
+     *
+     * @param ip the address to look up
+     * @return the matching crawl host group config or null if no config matches
+     */
+    ConfigObject findCrawlHostGroupForIp(InetAddress ip) throws DbQueryException, DbConnectionException {
+        start();
+
+        if (isReady()) {
+            return index.lookup(ip);
+        }
+        return fallbackIndex().lookup(ip);
+    }
+
+    private IpRangeIndex<ConfigObject> fallbackIndex() throws DbQueryException, DbConnectionException {
+        synchronized (fallbackLock) {
+            long now = System.nanoTime();
+            if (fallbackIndex == null || now - fallbackLoadedAt > FALLBACK_INDEX_TTL_MILLIS * 1_000_000) {
+                fallbackIndex = buildIndex(loadFromDb());
+                fallbackLoadedAt = now;
+            }
+            return fallbackIndex;
+        }
+    }
+
+    private Collection<ConfigObject> loadFromDb() throws DbQueryException, DbConnectionException {
+        List<ConfigObject> result = new ArrayList<>();
+        try (Cursor<Map<String, Object>> cursor = conn.exec("db-listCrawlHostGroupConfigs",
+                r.table(Tables.CONFIG.name).filter(doc -> doc.g("kind").eq(Kind.crawlHostGroupConfig.name())))) {
+            cursor.forEach(doc -> result.add(ProtoUtils.rethinkToProto(doc, ConfigObject.class)));
+        }
+        return result;
+    }
+
+    @Override
+    ReqlExpr changeFeedQuery() {
+        return r.table(Tables.CONFIG.name)
+                .filter(doc -> doc.g("kind").eq(Kind.crawlHostGroupConfig.name()))
+                .changes()
+                .optArg("include_initial", true)
+                .optArg("include_states", true);
+    }
+
+    @Override
+    void onSubscribed() {
+        configs.clear();
+    }
+
+    @Override
+    void onChange(Map<String, Object> oldVal, Map<String, Object> newVal) {
+        if (oldVal != null) {
+            configs.remove(oldVal.get("id"));
+        }
+        if (newVal != null) {
+            ConfigObject co = ProtoUtils.rethinkToProto(newVal, ConfigObject.class);
+            configs.put(co.getId(), co);
+        }
+        if (isReady()) {
+            index = buildIndex(configs.values());
+        }
+    }
+
+    @Override
+    void onReady() {
+        index = buildIndex(configs.values());
+        synchronized (fallbackLock) {
+            fallbackIndex = null;
+        }
+    }
+
+    private static IpRangeIndex<ConfigObject> buildIndex(Collection<ConfigObject> configs) {
+        IpRangeIndex.Builder<ConfigObject> builder = IpRangeIndex.newBuilder();
+        for (ConfigObject co : configs) {
+            for (IpRange range : co.getCrawlHostGroupConfig().getIpRangeList()) {
+                try {
+                    builder.addRange(range.getIpFrom(), range.getIpTo(), co);
+                } catch (IllegalArgumentException e) {
+                    LOG.warn("Ignoring ip range {}-{} in crawl host group config '{}': {}",
+                            range.getIpFrom(), range.getIpTo(), co.getId(), e.getMessage());
+                }
+            }
+        }
+        return builder.build();
+    }
+}
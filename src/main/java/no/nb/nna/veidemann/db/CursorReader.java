@@ -0,0 +1,127 @@
+/*
+ * Copyright 2020 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.nb.nna.veidemann.db;
+
+import com.rethinkdb.net.Cursor;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Reads from a RethinkDB cursor without polling on a fixed interval.
+ * <p>
+ * The time to wait for the next object adapts to the activity of the cursor. It starts at
+ * {@link #MIN_WAIT_MILLIS} and is doubled every time the wait times out, up to the maximum set with the system
+ * property {@value #MAX_WAIT_KEY}. It is reset as soon as an object arrives. An idle change feed therefore only wakes
+ * up rarely, while a busy one is read without delay. A maximum of zero or less blocks until the driver delivers the
+ * next object.
+ * <p>
+ * Closing the reader interrupts a thread waiting for the cursor, so that it returns immediately.
+ *
+ * @param <T> the type of objects returned by the cursor
+ */
+class CursorReader<T> {
+    static final String MAX_WAIT_KEY = "RETHINK_CURSOR_MAX_WAIT_MS";
+
+    static final long MIN_WAIT_MILLIS = 100;
+
+    private final Cursor<T> cursor;
+    private final long maxWait;
+    private long wait = MIN_WAIT_MILLIS;
+    private Thread reader;
+    private volatile boolean closed;
+
+    CursorReader(Cursor<T> cursor) {
+        this.cursor = cursor;
+        this.maxWait = Long.parseLong(System.getProperty(MAX_WAIT_KEY, "30000"));
+    }
+
+    /**
+     * @return true if the cursor might have more objects
+     */
+    boolean hasNext() {
+        return !closed && cursor.hasNext();
+    }
+
+    /**
+     * Get the next object, waiting with the adaptive timeout.
+     *
+     * @return the next object
+     * @throws TimeoutException if no object arrived within the current wait. The wait is doubled for the next call
+     * @throws NoSuchElementException if the reader was closed
+     */
+    T next() throws TimeoutException {
+        try {
+            T next = next(maxWait <= 0 ? 0 : Math.min(wait, maxWait));
+            wait = MIN_WAIT_MILLIS;
+            return next;
+        } catch (TimeoutException e) {
+            wait = Math.min(wait * 2, Math.max(maxWait, MIN_WAIT_MILLIS));
+            throw e;
+        }
+    }
+
+    /**
+     * Get the next object.
+     *
+     * @param timeoutMillis maximum time to wait, or zero to wait until an object arrives
+     * @return the next object
+     * @throws TimeoutException if no object arrived within the timeout
+     * @throws NoSuchElementException if the reader was closed
+     */
+    T next(long timeoutMillis) throws TimeoutException {
+        synchronized (this) {
+            if (closed) {
+                throw new NoSuchElementException("Cursor is closed");
+            }
+            reader = Thread.currentThread();
+        }
+        try {
+            return timeoutMillis <= 0 ? cursor.next() : cursor.next(timeoutMillis);
+        } catch (RuntimeException e) {
+            if (closed) {
+                throw new NoSuchElementException("Cursor is closed");
+            }
+            throw e;
+        } finally {
+            synchronized (this) {
+                reader = null;
+                if (closed) {
+                    // Clear the interrupt used to wake us up
+                    Thread.interrupted();
+                }
+            }
+        }
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (reader != null) {
+                reader.interrupt();
+            }
+        }
+        cursor.close();
+    }
+}
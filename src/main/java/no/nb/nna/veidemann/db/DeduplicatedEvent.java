@@ -0,0 +1,77 @@
+/*
+ * Copyright 2020 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.nb.nna.veidemann.db;
+
+import com.google.protobuf.Timestamp;
+import no.nb.nna.veidemann.api.eventhandler.v1.EventObject;
+
+/**
+ * The result of saving an event with deduplication.
+ *
+ * @see RethinkDbEventAdapter#saveEventObjectDeduplicated(no.nb.nna.veidemann.api.eventhandler.v1.SaveRequest, EventFingerprint)
+ */
+public class DeduplicatedEvent {
+    private final EventObject eventObject;
+    private final long occurrences;
+    private final Timestamp lastSeen;
+    private final boolean created;
+
+    DeduplicatedEvent(EventObject eventObject, long occurrences, Timestamp lastSeen, boolean created) {
+        this.eventObject = eventObject;
+        this.occurrences = occurrences;
+        this.lastSeen = lastSeen;
+        this.created = created;
+    }
+
+    /**
+     * @return the stored event, which is the previously existing event if this occurrence was merged into it
+     */
+    public EventObject getEventObject() {
+        return eventObject;
+    }
+
+    /**
+     * @return the number of times the event has been seen
+     */
+    public long getOccurrences() {
+        return occurrences;
+    }
+
+    /**
+     * @return the time of the last occurrence
+     */
+    public Timestamp getLastSeen() {
+        return lastSeen;
+    }
+
+    /**
+     * @return true if a new event was created, false if this occurrence was merged into an open event
+     */
+    public boolean isCreated() {
+        return created;
+    }
+
+    @Override
+    public String toString() {
+        return "DeduplicatedEvent{" +
+                "eventObjectId='" + eventObject.getId() + '\'' +
+                ", occurrences=" + occurrences +
+                ", lastSeen=" + lastSeen +
+                ", created=" + created +
+                '}';
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2020 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.nb.nna.veidemann.db;
+
+import com.rethinkdb.gen.ast.ReqlExpr;
+import com.rethinkdb.net.Cursor;
+import no.nb.nna.veidemann.api.frontier.v1.CrawlExecutionStatus;
+import no.nb.nna.veidemann.commons.db.DbException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Dispatches changes of desired state for Crawl Executions to listeners registered for the execution id.
+ * <p>
+ * One change feed on the executions table is shared by all listeners. The feed is filtered server side to changes
+ * where a Crawl Execution gets a new desired state, so only aborts are sent to the client. A desired state set
+ * before a listener is registered, or while the feed is resubscribing, is found by reading the registered
+ * executions from the database.
+ */
+class DesiredStateWatcher extends ChangeFeedWatcher {
+    private static final Logger LOG = LoggerFactory.getLogger(DesiredStateWatcher.class);
+
+    private final Map<String, Consumer<CrawlExecutionStatus.State>> listeners = new ConcurrentHashMap<>();
+
+    DesiredStateWatcher(RethinkDbConnection conn) {
+        super(conn, "desiredState");
+    }
+
+    /**
+     * Register a listener for a Crawl Execution, replacing any listener already registered for it.
+     * <p>
+     * If the Crawl Execution already has a desired state, the listener is called before this method returns.
+     *
+     * @param crawlExecutionId the id of the Crawl Execution
+     * @param listener         called with the desired state
+     */
+    void register(String crawlExecutionId, Consumer<CrawlExecutionStatus.State> listener) throws DbException {
+        listeners.put(crawlExecutionId, listener);
+        start();
+
+        String desiredState = conn.exec("db-getDesiredState",
+                r.table(Tables.EXECUTIONS.name).get(crawlExecutionId).g("desiredState").default_((Object) null));
+        if (desiredState != null) {
+            dispatch(crawlExecutionId, desiredState);
+        }
+    }
+
+    void unregister(String crawlExecutionId, Consumer<CrawlExecutionStatus.State> listener) {
+        listeners.remove(crawlExecutionId, listener);
+    }
+
+    @Override
+    ReqlExpr changeFeedQuery() {
+        return r.table(Tables.EXECUTIONS.name)
+                .changes()
+                .filter(c -> c.g("new_val").hasFields("desiredState")
+                        .and(c.g("old_val").g("desiredState").default_("").ne(c.g("new_val").g("desiredState"))))
+                .optArg("default", false)
+                .map(c -> r.hashMap("new_val", c.g("new_val").pluck("id", "desiredState")));
+    }
+
+    @Override
+    void onSubscribed() {
+        if (listeners.isEmpty()) {
+            return;
+        }
+        try (Cursor<Map<String, Object>> cursor = conn.exec("db-getDesiredStates",
+                r.table(Tables.EXECUTIONS.name)
+                        .getAll(r.args(new ArrayList<>(listeners.keySet())))
+                        .filter(doc -> doc.hasFields("desiredState"))
+                        .pluck("id", "desiredState"))) {
+            cursor.forEach(doc -> dispatch((String) doc.get("id"), (String) doc.get("desiredState")));
+        } catch (DbException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    void onChange(Map<String, Object> oldVal, Map<String, Object> newVal) {
+        if (newVal != null) {
+            dispatch((String) newVal.get("id"), (String) newVal.get("desiredState"));
+        }
+    }
+
+    private void dispatch(String crawlExecutionId, String desiredState) {
+        Consumer<CrawlExecutionStatus.State> listener = listeners.get(crawlExecutionId);
+        if (listener == null) {
+            return;
+        }
+        try {
+            listener.accept(CrawlExecutionStatus.State.valueOf(desiredState));
+        } catch (RuntimeException e) {
+            LOG.warn("Desired state listener for Crawl Execution {} failed", crawlExecutionId, e);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2020 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.nb.nna.veidemann.db;
+
+import com.google.common.hash.Hashing;
+import no.nb.nna.veidemann.api.eventhandler.v1.Data;
+import no.nb.nna.veidemann.api.eventhandler.v1.EventObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+/**
+ * Identifies recurring events.
+ * <p>
+ * Two events have the same fingerprint if they have the same type, the same source and the same values for each of
+ * the configured data keys. The order of data entries does not matter.
+ */
+public class EventFingerprint {
+    private final SortedSet<String> dataKeys;
+
+    /**
+     * @param dataKeys the keys of the data entries to include in the fingerprint
+     */
+    public EventFingerprint(String... dataKeys) {
+        this.dataKeys = Collections.unmodifiableSortedSet(new TreeSet<>(Arrays.asList(dataKeys)));
+    }
+
+    public SortedSet<String> getDataKeys() {
+        return dataKeys;
+    }
+
+    /**
+     * Compute the fingerprint of an event.
+     *
+     * @param eventObject the event
+     * @return the fingerprint as a hex encoded SHA-256 hash
+     */
+    public String of(EventObject eventObject) {
+        Objects.requireNonNull(eventObject, "The eventObject cannot be null");
+
+        StringBuilder sb = new StringBuilder()
+                .append(eventObject.getType()).append('\0')
+                .append(eventObject.getSource());
+        for (String key : dataKeys) {
+            List<String> values = eventObject.getDataList().stream()
+                    .filter(d -> d.getKey().equals(key))
+                    .map(Data::getValue)
+                    .sorted()
+                    .collect(Collectors.toList());
+            sb.append('\0').append(key);
+            values.forEach(v -> sb.append('\1').append(v));
+        }
+        return Hashing.sha256().hashString(sb, StandardCharsets.UTF_8).toString();
+    }
+
+    @Override
+    public String toString() {
+        return "EventFingerprint{" +
+                "dataKeys=" + dataKeys +
+                '}';
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2020 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.nb.nna.veidemann.db;
+
+import com.google.protobuf.Timestamp;
+import com.rethinkdb.RethinkDB;
+import com.rethinkdb.gen.ast.ReqlExpr;
+import com.rethinkdb.gen.ast.ReqlFunction1;
+import no.nb.nna.veidemann.commons.db.DbConnectionException;
+import no.nb.nna.veidemann.commons.db.DbQueryException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.OffsetDateTime;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Moves ended Crawl Executions and Job Executions from the hot tables to archive tables.
+ * <p>
+ * Executions which ended before a cutoff are copied to the archive table and then deleted from the hot table, one
+ * chunk at a time. Copying replaces existing documents, so an interrupted run is resumed by running again.
+ * <p>
+ * The highest cutoff used is stored in the system table before any executions are moved. Since archived executions
+ * have ended before the cutoff, they also started before it. Queries for executions started at or after the cutoff
+ * can therefore skip the archive.
+ * <p>
+ * The cutoff is cached for a short time to avoid a round trip per list request. When archiving raises the cutoff, it
+ * waits until cached values in other instances have expired before moving any executions.
+ */
+class ExecutionArchive {
+    private static final Logger LOG = LoggerFactory.getLogger(ExecutionArchive.class);
+
+    static final RethinkDB r = RethinkDB.r;
+
+    static final String CUTOFF_ID = "execution_archive";
+
+    static final int CHUNK_SIZE = 1000;
+
+    private final RethinkDbConnection conn;
+
+    private final long cutoffCacheMillis;
+
+    private volatile CachedCutoff cachedCutoff;
+
+    ExecutionArchive(RethinkDbConnection conn, long cutoffCacheMillis) {
+        this.conn = conn;
+        this.cutoffCacheMillis = cutoffCacheMillis;
+    }
+
+    /**
+     * Archive all executions which ended before cutoff.
+     *
+     * @param cutoff           executions ended before this time are archived
+     * @param progressListener called after each chunk with the number of executions archived so far
+     */
+    void archive(OffsetDateTime cutoff, ProgressListener progressListener) throws DbQueryException, DbConnectionException {
+        long archived = archive(Tables.EXECUTIONS, cutoff, progressListener, 0);
+        archive(Tables.JOB_EXECUTIONS, cutoff, progressListener, archived);
+    }
+
+    /**
+     * Check if the archive might contain executions matching a query.
+     *
+     * @param table         the hot table
+     * @param startTimeFrom the lower bound for start time of the query or null if unbounded
+     * @return true if the archive must be queried in addition to the hot table
+     */
+    boolean mightContain(Tables table, Timestamp startTimeFrom) throws DbQueryException, DbConnectionException {
+        OffsetDateTime cutoff = getCutoff(table);
+        if (cutoff == null) {
+            return false;
+        }
+        return startTimeFrom == null || ProtoUtils.tsToOdt(startTimeFrom).isBefore(cutoff);
+    }
+
+    /**
+     * Get the archive cutoff for a table.
+     *
+     * @param table the hot table
+     * @return the highest cutoff used for archiving from table or null if nothing has been archived
+     */
+    OffsetDateTime getCutoff(Tables table) throws DbQueryException, DbConnectionException {
+        CachedCutoff cached = cachedCutoff;
+        if (cached == null || System.nanoTime() - cached.loadedAt > cutoffCacheMillis * 1_000_000) {
+            Map<String, Object> cutoffDoc = conn.exec("db-getArchiveCutoff",
+                    r.table(Tables.SYSTEM.name).get(CUTOFF_ID));
+            cached = new CachedCutoff(cutoffDoc);
+            cachedCutoff = cached;
+        }
+        return cached.get(table);
+    }
+
+    /**
+     * Get a document by id from a hot table, falling back to the archive if it is not found.
+     *
+     * @param table the hot table
+     * @param id    the id of the document
+     * @return the query
+     */
+    static ReqlExpr get(Tables table, String id) {
+        return r.table(table.name).get(id).default_(r.table(archiveTable(table).name).get(id));
+    }
+
+    /**
+     * Get documents by id from both a hot table and its archive.
+     *
+     * @param table the hot table
+     * @param ids   the ids of the documents
+     * @return the query
+     */
+    static ReqlExpr getAll(Tables table, List<String> ids) {
+        return r.table(table.name).getAll(r.args(ids))
+                .union(r.table(archiveTable(table).name).getAll(r.args(ids)));
+    }
+
+    /**
+     * Union two queries. If orderByPath is set, both queries must be ordered by that path and the union is merge
+     * sorted on the same path.
+     */
+    static ReqlExpr union(ReqlExpr first, ReqlExpr second, String orderByPath, boolean descending) {
+        if (orderByPath.isEmpty()) {
+            return first.union(second);
+        }
+        ReqlFunction1 field = row -> {
+            ReqlExpr e = row;
+            for (String p : orderByPath.split("\\.")) {
+                e = e.g(p);
+            }
+            return e;
+        };
+        return first.union(second).optArg("interleave", descending ? r.desc(field) : field);
+    }
+
+    static Tables archiveTable(Tables table) {
+        switch (table) {
+            case EXECUTIONS:
+                return Tables.EXECUTIONS_ARCHIVE;
+            case JOB_EXECUTIONS:
+                return Tables.JOB_EXECUTIONS_ARCHIVE;
+            default:
+                throw new IllegalArgumentException("Table '" + table.name + "' has no archive");
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private long archive(Tables table, OffsetDateTime cutoff, ProgressListener progressListener, long archived)
+            throws DbQueryException, DbConnectionException {
+        String cutoffField = cutoffField(table);
+        Tables archiveTable = archiveTable(table);
+
+        Map<String, Object> cutoffRes = conn.exec("db-setArchiveCutoff",
+                r.table(Tables.SYSTEM.name)
+                        .insert(r.hashMap("id", CUTOFF_ID).with(cutoffField, cutoff))
+                        .optArg("conflict", (id, oldDoc, newDoc) -> oldDoc.merge(r.hashMap(cutoffField,
+                                r.branch(oldDoc.g(cutoffField).default_(r.minval()).gt(cutoff),
+                                        oldDoc.g(cutoffField), cutoff)))));
+        if ((Long) cutoffRes.get("inserted") + (Long) cutoffRes.get("replaced") > 0) {
+            // Let other instances see the new cutoff before executions are moved out of the hot table
+            cachedCutoff = null;
+            try {
+                Thread.sleep(cutoffCacheMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DbQueryException("Interrupted while waiting for archive cutoff to propagate");
+            }
+        }
+
+        long count;
+        do {
+            Map<String, Object> res = conn.exec("db-archiveExecutions",
+                    r.table(table.name)
+                            .between(r.minval(), cutoff)
+                            .optArg("index", "endTime")
+                            .limit(CHUNK_SIZE)
+                            .coerceTo("array")
+                            .do_(docs -> r.branch(docs.isEmpty(),
+                                    r.hashMap("count", 0),
+                                    r.table(archiveTable.name)
+                                            .insert(docs)
+                                            .optArg("conflict", "replace")
+                                            .do_(ins -> r.branch(ins.g("errors").eq(0),
+                                                    r.table(table.name).getAll(r.args(docs.g("id"))).delete()
+                                                            .do_(del -> r.hashMap("count", del.g("deleted"))),
+                                                    r.error(ins.g("first_error")))))));
+
+            count = ((Number) res.get("count")).longValue();
+            archived += count;
+            progressListener.onProgress(archived, archived);
+        } while (count >= CHUNK_SIZE);
+
+        LOG.debug("Archived {} ended before {}", table.name, cutoff);
+        return archived;
+    }
+
+    private static String cutoffField(Tables table) {
+        return table == Tables.EXECUTIONS ? "crawlExecutionCutoff" : "jobExecutionCutoff";
+    }
+
+    private static final class CachedCutoff {
+        private final Map<String, Object> cutoffDoc;
+
+        private final long loadedAt = System.nanoTime();
+
+        CachedCutoff(Map<String, Object> cutoffDoc) {
+            this.cutoffDoc = cutoffDoc;
+        }
+
+        OffsetDateTime get(Tables table) {
+            return cutoffDoc == null ? null : (OffsetDateTime) cutoffDoc.get(cutoffField(table));
+        }
+    }
+}
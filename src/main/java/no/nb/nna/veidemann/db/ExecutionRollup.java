@@ -0,0 +1,128 @@
+/*
+ * Copyright 2020 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.nb.nna.veidemann.db;
+
+import com.google.protobuf.Timestamp;
+
+import java.time.OffsetDateTime;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Aggregated statistics for Crawl Executions or Job Executions which ended within a time bucket.
+ * <p>
+ * There is one rollup per granularity, bucket, type, job and end state.
+ */
+public class ExecutionRollup {
+    public enum Granularity {
+        HOUR,
+        DAY
+    }
+
+    public enum Type {
+        CRAWL_EXECUTION,
+        JOB_EXECUTION
+    }
+
+    private final Granularity granularity;
+    private final Type type;
+    private final Timestamp bucket;
+    private final String jobId;
+    private final String state;
+    private final long count;
+    private final double durationSeconds;
+    private final Map<String, Long> stats;
+
+    @SuppressWarnings("unchecked")
+    ExecutionRollup(Map<String, Object> doc) {
+        granularity = Granularity.valueOf((String) doc.get("granularity"));
+        type = Type.valueOf((String) doc.get("type"));
+        bucket = ProtoUtils.odtToTs((OffsetDateTime) doc.get("bucket"));
+        jobId = (String) doc.get("jobId");
+        state = (String) doc.get("state");
+        count = ((Number) doc.get("count")).longValue();
+        durationSeconds = ((Number) doc.getOrDefault("durationSeconds", 0)).doubleValue();
+
+        Map<String, Long> s = new LinkedHashMap<>();
+        for (String f : CrawlExecutionUpdate.STAT_FIELDS) {
+            s.put(f, ((Number) doc.getOrDefault(f, 0)).longValue());
+        }
+        stats = Collections.unmodifiableMap(s);
+    }
+
+    public Granularity getGranularity() {
+        return granularity;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return the start of the time bucket
+     */
+    public Timestamp getBucket() {
+        return bucket;
+    }
+
+    public String getJobId() {
+        return jobId;
+    }
+
+    /**
+     * @return the state the executions ended in
+     */
+    public String getState() {
+        return state;
+    }
+
+    /**
+     * @return the number of executions which ended within the bucket
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return the sum of the durations of the executions
+     */
+    public double getDurationSeconds() {
+        return durationSeconds;
+    }
+
+    /**
+     * @return the sum of the counters of the executions, keyed by field name (documentsCrawled, bytesCrawled, ...)
+     */
+    public Map<String, Long> getStats() {
+        return stats;
+    }
+
+    @Override
+    public String toString() {
+        return "ExecutionRollup{" +
+                "granularity=" + granularity +
+                ", type=" + type +
+                ", bucket=" + bucket +
+                ", jobId='" + jobId + '\'' +
+                ", state='" + state + '\'' +
+                ", count=" + count +
+                ", durationSeconds=" + durationSeconds +
+                ", stats=" + stats +
+                '}';
+    }
+}
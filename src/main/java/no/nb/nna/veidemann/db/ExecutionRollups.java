@@ -0,0 +1,246 @@
+/*
+ * Copyright 2020 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.nb.nna.veidemann.db;
+
+import com.google.protobuf.Timestamp;
+import com.rethinkdb.RethinkDB;
+import com.rethinkdb.gen.ast.ReqlExpr;
+import com.rethinkdb.model.MapObject;
+import com.rethinkdb.net.Cursor;
+import no.nb.nna.veidemann.commons.db.DbConnectionException;
+import no.nb.nna.veidemann.commons.db.DbQueryException;
+import no.nb.nna.veidemann.db.ExecutionRollup.Granularity;
+import no.nb.nna.veidemann.db.ExecutionRollup.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maintains time bucketed rollups of ended Crawl Executions and Job Executions.
+ * <p>
+ * Executions are rolled up incrementally by end time. A watermark per execution type is stored in the system table,
+ * and each call to {@link #update()} aggregates executions which ended after the watermark. The aggregation is done
+ * server side, one time window at a time, and merged into the rollup documents by adding the values.
+ * <p>
+ * A window is not applied atomically. Its end is stored as pending in the system table before it is applied, so that
+ * an interrupted window is retried with the same bounds. Every rollup document records the end of the last window
+ * merged into it, and merging a window which is not newer than that is skipped. Retrying a window does therefore not
+ * count executions twice.
+ * <p>
+ * A new window is claimed by storing it as pending only if the watermark is unchanged and no window is pending. If
+ * another instance has claimed a window in the meantime, the update stops and leaves the rest to that instance, so
+ * concurrent updates never aggregate overlapping windows with different bounds.
+ * <p>
+ * Executions are only rolled up when they have been ended for {@link #SETTLE_TIME} to allow for late writes.
+ */
+class ExecutionRollups {
+    private static final Logger LOG = LoggerFactory.getLogger(ExecutionRollups.class);
+
+    static final RethinkDB r = RethinkDB.r;
+
+    static final String WATERMARK_ID = "execution_rollups";
+
+    static final Duration SETTLE_TIME = Duration.ofMinutes(1);
+
+    static final Duration MAX_WINDOW = Duration.ofDays(1);
+
+    private final RethinkDbConnection conn;
+
+    ExecutionRollups(RethinkDbConnection conn) {
+        this.conn = conn;
+    }
+
+    /**
+     * Roll up all executions which have ended since last update.
+     */
+    void update() throws DbQueryException, DbConnectionException {
+        OffsetDateTime upper = ((OffsetDateTime) conn.exec("db-getServerTime", r.now())).minus(SETTLE_TIME);
+        update(Tables.EXECUTIONS, Type.CRAWL_EXECUTION, upper);
+        update(Tables.JOB_EXECUTIONS, Type.JOB_EXECUTION, upper);
+    }
+
+    /**
+     * List rollups with a bucket start within a time range.
+     *
+     * @param granularity the granularity of the rollups
+     * @param type        the type of executions
+     * @param jobId       only return rollups for this job, or rollups for all jobs if null
+     * @param from        start of range (inclusive)
+     * @param to          end of range (exclusive)
+     * @return the rollups ordered by bucket
+     */
+    List<ExecutionRollup> list(Granularity granularity, Type type, String jobId, Timestamp from, Timestamp to)
+            throws DbQueryException, DbConnectionException {
+        ReqlExpr qry;
+        if (jobId == null) {
+            qry = r.table(Tables.EXECUTION_ROLLUPS.name)
+                    .between(r.array(granularity.name(), type.name(), ProtoUtils.tsToOdt(from)),
+                            r.array(granularity.name(), type.name(), ProtoUtils.tsToOdt(to)))
+                    .optArg("index", "granularity_type_bucket")
+                    .orderBy().optArg("index", "granularity_type_bucket");
+        } else {
+            qry = r.table(Tables.EXECUTION_ROLLUPS.name)
+                    .between(r.array(granularity.name(), type.name(), jobId, ProtoUtils.tsToOdt(from)),
+                            r.array(granularity.name(), type.name(), jobId, ProtoUtils.tsToOdt(to)))
+                    .optArg("index", "granularity_type_jobId_bucket")
+                    .orderBy().optArg("index", "granularity_type_jobId_bucket");
+        }
+
+        List<ExecutionRollup> result = new ArrayList<>();
+        try (Cursor<Map<String, Object>> cursor = conn.exec("db-listExecutionRollups", qry)) {
+            cursor.forEach(doc -> result.add(new ExecutionRollup(doc)));
+        }
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void update(Tables table, Type type, OffsetDateTime upper) throws DbQueryException, DbConnectionException {
+        String watermarkField = watermarkField(type);
+        String pendingField = watermarkField + "Pending";
+        Map<String, Object> watermarkDoc = conn.exec("db-getRollupWatermark",
+                r.table(Tables.SYSTEM.name).get(WATERMARK_ID));
+
+        OffsetDateTime from = watermarkDoc == null ? null : (OffsetDateTime) watermarkDoc.get(watermarkField);
+        boolean includeFrom = false;
+        if (from == null) {
+            // Never rolled up, start with the first ended execution
+            List<OffsetDateTime> first = conn.exec("db-getFirstEndTime",
+                    r.table(table.name).orderBy().optArg("index", "endTime").limit(1).g("endTime").coerceTo("array"));
+            if (first.isEmpty() || first.get(0).isAfter(upper)) {
+                return;
+            }
+            from = first.get(0);
+            includeFrom = true;
+        }
+
+        // Retry an interrupted window with the same bounds
+        OffsetDateTime pending = watermarkDoc == null ? null : (OffsetDateTime) watermarkDoc.get(pendingField);
+
+        OffsetDateTime watermark = includeFrom ? null : from;
+        while (pending != null || includeFrom || from.isBefore(upper)) {
+            OffsetDateTime to;
+            if (pending != null) {
+                to = pending;
+                pending = null;
+            } else {
+                to = from.plus(MAX_WINDOW).isBefore(upper) ? from.plus(MAX_WINDOW) : upper;
+                if (!claimWindow(watermarkField, pendingField, watermark, to)) {
+                    LOG.debug("Rollup of {} after {} claimed by another instance", type, from);
+                    return;
+                }
+            }
+            LOG.debug("Rolling up {} ended in ({}, {}]", type, from, to);
+            final OffsetDateTime windowEnd = to;
+
+            conn.exec("db-updateExecutionRollups",
+                    r.table(table.name)
+                            .between(from, to)
+                            .optArg("index", "endTime")
+                            .optArg("left_bound", includeFrom ? "closed" : "open")
+                            .optArg("right_bound", "closed")
+                            .concatMap(doc -> r.array(
+                                    rollupRow(Granularity.HOUR, type, windowEnd, doc),
+                                    rollupRow(Granularity.DAY, type, windowEnd, doc)))
+                            .group("id")
+                            .reduce(ExecutionRollups::sum)
+                            .ungroup()
+                            .forEach(g -> r.table(Tables.EXECUTION_ROLLUPS.name)
+                                    .insert(g.g("reduction"))
+                                    .optArg("conflict", (id, oldDoc, newDoc) -> r.branch(
+                                            oldDoc.g("lastWindow").default_(r.minval()).ge(newDoc.g("lastWindow")),
+                                            oldDoc,
+                                            sum(oldDoc, newDoc))))
+                            .do_(res -> r.table(Tables.SYSTEM.name)
+                                    .get(WATERMARK_ID)
+                                    .update(doc -> r.branch(
+                                            doc.g(pendingField).default_((Object) null).eq(windowEnd),
+                                            r.hashMap(watermarkField, windowEnd).with(pendingField, null),
+                                            r.hashMap())))
+            );
+
+            from = to;
+            watermark = to;
+            includeFrom = false;
+        }
+    }
+
+    /**
+     * Store a window as pending if the watermark still has the expected value and no other window is pending.
+     *
+     * @return true if the window was claimed
+     */
+    @SuppressWarnings("unchecked")
+    private boolean claimWindow(String watermarkField, String pendingField, OffsetDateTime expectedWatermark,
+                                OffsetDateTime windowEnd) throws DbQueryException, DbConnectionException {
+        Map<String, Object> res = conn.exec("db-setRollupPending",
+                r.table(Tables.SYSTEM.name)
+                        .insert(r.hashMap("id", WATERMARK_ID).with(pendingField, windowEnd))
+                        .optArg("conflict", (id, oldDoc, newDoc) -> r.branch(
+                                oldDoc.g(watermarkField).default_((Object) null).eq(expectedWatermark)
+                                        .and(oldDoc.g(pendingField).default_((Object) null).eq((Object) null)),
+                                oldDoc.merge(newDoc),
+                                oldDoc)));
+        return ((Long) res.get("inserted")) + ((Long) res.get("replaced")) == 1;
+    }
+
+    private static String watermarkField(Type type) {
+        return type == Type.CRAWL_EXECUTION ? "crawlExecutionWatermark" : "jobExecutionWatermark";
+    }
+
+    private static MapObject rollupRow(Granularity granularity, Type type, OffsetDateTime windowEnd, ReqlExpr doc) {
+        ReqlExpr end = doc.g("endTime").inTimezone("Z");
+        ReqlExpr bucket;
+        if (granularity == Granularity.HOUR) {
+            bucket = r.time(end.year(), end.month(), end.day(), end.hours(), 0, 0, "Z");
+        } else {
+            bucket = r.time(end.year(), end.month(), end.day(), "Z");
+        }
+        ReqlExpr jobId = doc.g("jobId").default_("");
+        ReqlExpr state = doc.g("state").default_("UNDEFINED");
+
+        MapObject row = r.hashMap("id", r.add(granularity.name(), ":", type.name(), ":", jobId, ":", state, ":",
+                bucket.toIso8601()))
+                .with("granularity", granularity.name())
+                .with("type", type.name())
+                .with("bucket", bucket)
+                .with("jobId", jobId)
+                .with("state", state)
+                .with("lastWindow", windowEnd)
+                .with("count", 1)
+                .with("durationSeconds", r.branch(doc.hasFields("startTime"),
+                        doc.g("endTime").sub(doc.g("startTime")), 0));
+        for (String f : CrawlExecutionUpdate.STAT_FIELDS) {
+            row.with(f, doc.g(f).default_(0));
+        }
+        return row;
+    }
+
+    private static ReqlExpr sum(ReqlExpr left, ReqlExpr right) {
+        MapObject m = r.hashMap("lastWindow", right.g("lastWindow"))
+                .with("count", left.g("count").add(right.g("count")))
+                .with("durationSeconds", left.g("durationSeconds").add(right.g("durationSeconds")));
+        for (String f : CrawlExecutionUpdate.STAT_FIELDS) {
+            m.with(f, left.g(f).add(right.g(f)));
+        }
+        return left.merge(m);
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2020 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.nb.nna.veidemann.db;
+
+import com.google.common.net.InetAddresses;
+
+import java.math.BigInteger;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Immutable index from IP addresses to values associated with IP ranges.
+ * <p>
+ * All addresses are mapped into the IPv6 address space (IPv4 addresses as IPv4-mapped IPv6 addresses) and stored
+ * as pairs of unsigned longs. When the index is built, possibly overlapping ranges are flattened into a sorted list
+ * of disjoint segments where the narrowest range covering an address wins. Lookups are a binary search over
+ * primitive arrays; apart from the address bytes of an {@link InetAddress}, they do not allocate.
+ *
+ * @param <T> the type of the values associated with the ranges
+ */
+public class IpRangeIndex<T> {
+    private static final long IPV4_MAPPED_PREFIX = 0xFFFF00000000L;
+
+    private static final BigInteger MASK_64 = BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE);
+
+    private final long[] startHi;
+    private final long[] startLo;
+    private final long[] endHi;
+    private final long[] endLo;
+    private final Object[] values;
+
+    private IpRangeIndex(long[] startHi, long[] startLo, long[] endHi, long[] endLo, Object[] values) {
+        this.startHi = startHi;
+        this.startLo = startLo;
+        this.endHi = endHi;
+        this.endLo = endLo;
+        this.values = values;
+    }
+
+    public static <T> Builder<T> newBuilder() {
+        return new Builder<>();
+    }
+
+    /**
+     * Find the value for the narrowest range containing an address.
+     *
+     * @param address the address to look up
+     * @return the value or null if no range contains the address
+     */
+    public T lookup(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        if (bytes.length == 4) {
+            long v4 = (bytes[0] & 0xFFL) << 24 | (bytes[1] & 0xFFL) << 16 | (bytes[2] & 0xFFL) << 8 | (bytes[3] & 0xFFL);
+            return lookup(0L, IPV4_MAPPED_PREFIX | v4);
+        }
+        return lookup(toLong(bytes, 0), toLong(bytes, 8));
+    }
+
+    /**
+     * Find the value for the narrowest range containing an address given as two unsigned longs.
+     *
+     * @param hi the most significant 64 bits of the IPv6 (or IPv4-mapped) address
+     * @param lo the least significant 64 bits of the IPv6 (or IPv4-mapped) address
+     * @return the value or null if no range contains the address
+     */
+    @SuppressWarnings("unchecked")
+    public T lookup(long hi, long lo) {
+        // Find the last segment starting at or before the address
+        int low = 0;
+        int high = startHi.length - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (compare(startHi[mid], startLo[mid], hi, lo) <= 0) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        if (found >= 0 && compare(hi, lo, endHi[found], endLo[found]) <= 0) {
+            return (T) values[found];
+        }
+        return null;
+    }
+
+    /**
+     * @return the number of disjoint segments in the index
+     */
+    public int size() {
+        return values.length;
+    }
+
+    private static int compare(long aHi, long aLo, long bHi, long bLo) {
+        int c = Long.compareUnsigned(aHi, bHi);
+        return c != 0 ? c : Long.compareUnsigned(aLo, bLo);
+    }
+
+    private static long toLong(byte[] bytes, int offset) {
+        long result = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            result = (result << 8) | (bytes[i] & 0xFF);
+        }
+        return result;
+    }
+
+    static BigInteger toBigInteger(InetAddress address) {
+        BigInteger value = new BigInteger(1, address.getAddress());
+        if (address instanceof Inet4Address) {
+            value = value.or(BigInteger.valueOf(IPV4_MAPPED_PREFIX));
+        }
+        return value;
+    }
+
+    public static class Builder<T> {
+        private final List<Range<T>> ranges = new ArrayList<>();
+
+        private Builder() {
+        }
+
+        /**
+         * Add a range of addresses.
+         *
+         * @param ipFrom first address in the range (inclusive)
+         * @param ipTo   last address in the range (inclusive)
+         * @param value  the value associated with the range
+         * @return this builder
+         * @throws IllegalArgumentException if one of the addresses is not a valid IP literal or ipFrom is greater
+         *                                  than ipTo
+         */
+        public Builder<T> addRange(String ipFrom, String ipTo, T value) {
+            BigInteger from = toBigInteger(InetAddresses.forString(ipFrom.trim()));
+            BigInteger to = toBigInteger(InetAddresses.forString(ipTo.trim()));
+            if (from.compareTo(to) > 0) {
+                throw new IllegalArgumentException("Illegal ip range, '" + ipFrom + "' is greater than '" + ipTo + "'");
+            }
+            ranges.add(new Range<>(from, to, value));
+            return this;
+        }
+
+        public IpRangeIndex<T> build() {
+            // Every range start and every address following a range end is a potential segment boundary
+            TreeSet<BigInteger> boundaries = new TreeSet<>();
+            for (Range<T> range : ranges) {
+                boundaries.add(range.from);
+                boundaries.add(range.to.add(BigInteger.ONE));
+            }
+
+            List<BigInteger> segStart = new ArrayList<>();
+            List<BigInteger> segEnd = new ArrayList<>();
+            List<Object> segValue = new ArrayList<>();
+
+            BigInteger prev = null;
+            for (BigInteger boundary : boundaries) {
+                if (prev != null) {
+                    BigInteger end = boundary.subtract(BigInteger.ONE);
+                    Range<T> best = narrowestCovering(prev, end);
+                    if (best != null) {
+                        int last = segValue.size() - 1;
+                        if (last >= 0 && segValue.get(last) == best.value
+                                && segEnd.get(last).add(BigInteger.ONE).equals(prev)) {
+                            // Adjacent segment with same value, extend it
+                            segEnd.set(last, end);
+                        } else {
+                            segStart.add(prev);
+                            segEnd.add(end);
+                            segValue.add(best.value);
+                        }
+                    }
+                }
+                prev = boundary;
+            }
+
+            int size = segValue.size();
+            long[] startHi = new long[size];
+            long[] startLo = new long[size];
+            long[] endHi = new long[size];
+            long[] endLo = new long[size];
+            for (int i = 0; i < size; i++) {
+                startHi[i] = segStart.get(i).shiftRight(64).longValue();
+                startLo[i] = segStart.get(i).and(MASK_64).longValue();
+                endHi[i] = segEnd.get(i).shiftRight(64).longValue();
+                endLo[i] = segEnd.get(i).and(MASK_64).longValue();
+            }
+            return new IpRangeIndex<>(startHi, startLo, endHi, endLo, segValue.toArray());
+        }
+
+        /**
+         * Find the narrowest range covering a segment. Ties are resolved in favour of the range added first.
+         * <p>
+         * Since segments never cross a range boundary, a range covering the segment start covers the whole segment.
+         */
+        private Range<T> narrowestCovering(BigInteger from, BigInteger to) {
+            Range<T> best = null;
+            for (Range<T> range : ranges) {
+                if (range.from.compareTo(from) <= 0 && range.to.compareTo(to) >= 0) {
+                    if (best == null || range.width.compareTo(best.width) < 0) {
+                        best = range;
+                    }
+                }
+            }
+            return best;
+        }
+    }
+
+    private static class Range<T> {
+        final BigInteger from;
+        final BigInteger to;
+        final BigInteger width;
+        final T value;
+
+        Range(BigInteger from, BigInteger to, T value) {
+            this.from = from;
+            this.to = to;
+            this.width = to.subtract(from);
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2020 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.nb.nna.veidemann.db;
+
+import no.nb.nna.veidemann.api.frontier.v1.JobExecutionStatus;
+
+/**
+ * The result of creating a Job Execution together with the Crawl Executions for its seeds.
+ */
+public class JobExecutionStart {
+    private final JobExecutionStatus jobExecution;
+    private final long seedCount;
+    private final long crawlExecutionCount;
+
+    JobExecutionStart(JobExecutionStatus jobExecution, long seedCount, long crawlExecutionCount) {
+        this.jobExecution = jobExecution;
+        this.seedCount = seedCount;
+        this.crawlExecutionCount = crawlExecutionCount;
+    }
+
+    /**
+     * @return the Job Execution including the count of created Crawl Executions in executionsState
+     */
+    public JobExecutionStatus getJobExecution() {
+        return jobExecution;
+    }
+
+    /**
+     * @return the number of enabled seeds referring to the job
+     */
+    public long getSeedCount() {
+        return seedCount;
+    }
+
+    /**
+     * @return the number of Crawl Executions created
+     */
+    public long getCrawlExecutionCount() {
+        return crawlExecutionCount;
+    }
+
+    @Override
+    public String toString() {
+        return "JobExecutionStart{" +
+                "jobExecutionId='" + jobExecution.getId() + '\'' +
+                ", seedCount=" + seedCount +
+                ", crawlExecutionCount=" + crawlExecutionCount +
+                '}';
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2020 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.nb.nna.veidemann.db;
+
+import com.rethinkdb.gen.ast.ReqlExpr;
+import com.rethinkdb.gen.ast.ReqlFunction1;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * In-memory sorted set of the distinct labels in a table, for fast prefix lookups.
+ * <p>
+ * The labels of each document are computed server side by a function given to the constructor and kept current by
+ * a change feed. The number of documents having a label is counted, so a label is removed when the last document
+ * having it is changed or deleted. Until the feed has delivered the initial state, callers should use the database.
+ */
+class LabelCache extends ChangeFeedWatcher {
+    /**
+     * Appended to a prefix to get the exclusive upper bound of labels with that prefix.
+     */
+    static final String MAX_CHAR = String.valueOf(Character.MAX_VALUE);
+
+    private final Tables table;
+
+    private final ReqlFunction1 labelsFunction;
+
+    private final Map<String, Integer> counts = new HashMap<>();
+
+    private NavigableSet<String> loading;
+
+    private volatile NavigableSet<String> labels = new ConcurrentSkipListSet<>();
+
+    /**
+     * @param conn           the database connection
+     * @param name           name of the change feed
+     * @param table          the table to watch
+     * @param labelsFunction function returning an array of labels for a document
+     */
+    LabelCache(RethinkDbConnection conn, String name, Tables table, ReqlFunction1 labelsFunction) {
+        super(conn, name);
+        this.table = table;
+        this.labelsFunction = labelsFunction;
+    }
+
+    /**
+     * Only valid when {@link #isReady()} returns true.
+     *
+     * @param prefix the prefix to look up
+     * @return a sorted view of the labels starting with prefix
+     */
+    NavigableSet<String> withPrefix(String prefix) {
+        return Collections.unmodifiableNavigableSet(labels.subSet(prefix, true, prefix + MAX_CHAR, false));
+    }
+
+    /**
+     * Only valid when {@link #isReady()} returns true.
+     *
+     * @return a sorted view of all labels
+     */
+    NavigableSet<String> all() {
+        return Collections.unmodifiableNavigableSet(labels);
+    }
+
+    @Override
+    ReqlExpr changeFeedQuery() {
+        return r.table(table.name)
+                .map(doc -> r.hashMap("id", doc.g("id")).with("labels", labelsFunction.apply(doc)))
+                .changes()
+                .optArg("include_initial", true)
+                .optArg("include_states", true);
+    }
+
+    /**
+     * Load the labels into a new set which replaces the current when ready, so that lookups don't see a partially
+     * loaded set after resubscribing.
+     */
+    @Override
+    void onSubscribed() {
+        counts.clear();
+        loading = new ConcurrentSkipListSet<>();
+    }
+
+    @Override
+    void onReady() {
+        labels = loading;
+        loading = null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    void onChange(Map<String, Object> oldVal, Map<String, Object> newVal) {
+        NavigableSet<String> target = loading != null ? loading : labels;
+        if (oldVal != null) {
+            for (String label : new HashSet<>((Collection<String>) oldVal.get("labels"))) {
+                if (counts.merge(label, -1, Integer::sum) <= 0) {
+                    counts.remove(label);
+                    target.remove(label);
+                }
+            }
+        }
+        if (newVal != null) {
+            for (String label : new HashSet<>((Collection<String>) newVal.get("labels"))) {
+                if (counts.merge(label, 1, Integer::sum) == 1) {
+                    target.add(label);
+                }
+            }
+        }
+    }
+}
@@ -16,6 +16,7 @@
 
 package no.nb.nna.veidemann.db;
 
+import com.rethinkdb.RethinkDB;
 import com.rethinkdb.gen.ast.ReqlExpr;
 import no.nb.nna.veidemann.api.frontier.v1.CrawlExecutionStatusOrBuilder;
 import no.nb.nna.veidemann.api.report.v1.CrawlExecutionsListRequest;
@@ -25,15 +26,29 @@ import no.nb.nna.veidemann.db.queryoptimizer.QueryOptimizer;
 import java.util.stream.Collectors;
 
 public class ListCrawlExecutionQueryBuilder {
+    static final RethinkDB r = RethinkDB.r;
+
     private static final CrawlExecutionQueryBuilder NO_MASK_BUILDER = new CrawlExecutionQueryBuilder();
 
+    private static final String HAS_ERROR_INDEX = "hasError_startTime";
+
     private ReqlExpr q;
     private final CrawlExecutionsListRequest request;
     final Tables table;
 
     public ListCrawlExecutionQueryBuilder(CrawlExecutionsListRequest request) {
+        this(request, Tables.EXECUTIONS);
+    }
+
+    public ListCrawlExecutionQueryBuilder(CrawlExecutionsListRequest request, Tables table) {
         this.request = request;
-        table = Tables.EXECUTIONS;
+        this.table = table;
+
+        if (request.getHasError() && request.getIdCount() == 0 && request.getStateCount() == 0
+                && !(request.hasQueryTemplate() && request.hasQueryMask())) {
+            q = hasErrorQuery();
+            return;
+        }
 
         QueryOptimizer<CrawlExecutionStatusOrBuilder> optimizer = new QueryOptimizer<>(NO_MASK_BUILDER, table);
 
@@ -65,9 +80,46 @@ public class ListCrawlExecutionQueryBuilder {
         }
     }
 
+    /**
+     * Query for Crawl Executions with an error, optionally within a start time range, using the sparse
+     * hasError_startTime index which only contains Crawl Executions with an error. Both ends of the time range are
+     * inclusive.
+     */
+    private ReqlExpr hasErrorQuery() {
+        Object from = request.hasStartTimeFrom() ? ProtoUtils.tsToOdt(request.getStartTimeFrom()) : r.minval();
+        Object to = request.hasStartTimeTo() ? ProtoUtils.tsToOdt(request.getStartTimeTo()) : r.maxval();
+        ReqlExpr query = r.table(table.name).between(from, to)
+                .optArg("index", HAS_ERROR_INDEX).optArg("right_bound", "closed");
+
+        if ("startTime".equals(request.getOrderByPath())) {
+            query = query.orderBy().optArg("index",
+                    request.getOrderDescending() ? r.desc(HAS_ERROR_INDEX) : HAS_ERROR_INDEX);
+        } else if (!request.getOrderByPath().isEmpty()) {
+            query = NO_MASK_BUILDER.createOrderByQuery(query, request.getOrderByPath(), null, request.getOrderDescending());
+        }
+        return query;
+    }
+
     public ReqlExpr getListQuery() {
+        return getListQuery(null);
+    }
+
+    /**
+     * Get the list query merged with the same query against another table.
+     * <p>
+     * If the request is ordered, the results from both tables are merge sorted. Paging is applied to the merged
+     * result.
+     *
+     * @param other builder for the same request against another table, or null to query only this builder's table
+     * @return the list query
+     */
+    public ReqlExpr getListQuery(ListCrawlExecutionQueryBuilder other) {
         ReqlExpr query = q;
 
+        if (other != null) {
+            query = ExecutionArchive.union(q, other.q, request.getOrderByPath(), request.getOrderDescending());
+        }
+
         if (request.hasReturnedFieldsMask()) {
             CrawlExecutionQueryBuilder queryBuilder = new CrawlExecutionQueryBuilder(request.getReturnedFieldsMask());
             query = query.pluck(queryBuilder.createPluckQuery());
@@ -84,6 +136,27 @@ public class ListCrawlExecutionQueryBuilder {
         return query;
     }
 
+    /**
+     * Get a watch query which can be reopened by a {@link ResumableCursor}.
+     * <p>
+     * Paging is not applied since it would end the change feed.
+     *
+     * @param includeInitial true if the change feed should start with the matching objects
+     * @return the watch query
+     */
+    public ReqlExpr getResumableWatchQuery(boolean includeInitial) {
+        ReqlExpr query = q;
+
+        if (request.hasReturnedFieldsMask()) {
+            CrawlExecutionQueryBuilder queryBuilder = new CrawlExecutionQueryBuilder(request.getReturnedFieldsMask());
+            query = query.pluck(queryBuilder.createPluckQuery());
+        }
+
+        return query.changes()
+                .optArg("include_initial", includeInitial)
+                .optArg("include_states", true);
+    }
+
     public ReqlExpr getCountQuery() {
         return q.count();
     }
@@ -1,52 +1,97 @@
 package no.nb.nna.veidemann.db;
 
+import com.rethinkdb.RethinkDB;
 import com.rethinkdb.gen.ast.ReqlExpr;
-import com.rethinkdb.gen.ast.Table;
+import no.nb.nna.veidemann.api.commons.v1.FieldMask;
+import no.nb.nna.veidemann.api.eventhandler.v1.EventObjectOrBuilder;
 import no.nb.nna.veidemann.api.eventhandler.v1.ListRequest;
 import no.nb.nna.veidemann.db.fieldmask.EventObjectQueryBuilder;
+import no.nb.nna.veidemann.db.queryoptimizer.QueryOptimizer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import static com.rethinkdb.RethinkDB.r;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
 
 public class ListEventObjectQueryBuilder {
     private static final Logger LOG = LoggerFactory.getLogger(ListEventObjectQueryBuilder.class);
     private static final EventObjectQueryBuilder NO_MASK_BUILDER = new EventObjectQueryBuilder();
 
+    static final RethinkDB r = RethinkDB.r;
+
     private ReqlExpr q;
     private final ListRequest request;
+    private final boolean watch;
+    private final boolean watchLatest;
     final Tables table;
 
     public ListEventObjectQueryBuilder(ListRequest request) {
+        this(request, false);
+    }
+
+    /**
+     * Create a query builder for listing event objects.
+     * <p>
+     * If watch is true, the list query is a change feed which starts with the matching event objects and then emits
+     * changes to them. Change feeds can't be ordered unless they are limited, so a watch for the first page of all
+     * events is ordered by last modified time and limited to the page size. Other watches are unordered and ignore
+     * page size and offset, since skip or limit after the change feed would end the feed after the first page.
+     *
+     * @param request the list request
+     * @param watch   true if the list query should be a change feed
+     */
+    public ListEventObjectQueryBuilder(ListRequest request, boolean watch) {
         this.request = request;
+        this.watch = watch;
         table = Tables.EVENTS;
+        watchLatest = watch && request.getIdCount() == 0 && !(request.hasQueryTemplate() && request.hasQueryMask())
+                && request.getPageSize() > 0 && request.getOffset() == 0;
 
-        q = r.table(table.name);
+        QueryOptimizer<EventObjectOrBuilder> optimizer = new QueryOptimizer<>(NO_MASK_BUILDER, table);
 
         if (request.getIdCount() > 0) {
-            if (q instanceof Table) {
-                q = ((Table) q).getAll(request.getIdList().toArray());
-            } else {
-                q = q.filter(row -> r.expr(request.getIdList().toArray()).contains(row.g("id")));
+            optimizer.wantIdQuery(request.getIdList());
+        }
+
+        List<String> labels = Collections.emptyList();
+        if (request.hasQueryTemplate() && request.hasQueryMask()) {
+            FieldMask mask = request.getQueryMask();
+            if (mask.getPathsList().contains("label")) {
+                labels = request.getQueryTemplate().getLabelList();
+                mask = mask.toBuilder().clearPaths()
+                        .addAllPaths(mask.getPathsList().stream().filter(p -> !"label".equals(p)).collect(Collectors.toList()))
+                        .build();
             }
-        } else if (request.hasQueryMask() && request.getQueryMask().getPathsList().contains("state")) {
-            q = q.orderBy().optArg("index", r.desc("state_lastModified"))
-                    .between(r.array(request.getQueryTemplate().getState().name(), r.minval()), r.array(request.getQueryTemplate().getState().name(), r.maxval()));
-        } else if (request.hasQueryMask() && request.getQueryMask().getPathsList().contains("assignee")) {
-            q = q.orderBy().optArg("index", r.desc("assignee_lastModified"))
-                    .between(r.array(request.getQueryTemplate().getAssignee(), r.minval()), r.array(request.getQueryTemplate().getAssignee(), r.maxval()));
-        } else {
-            q = q.orderBy().optArg("index", r.desc("lastModified"));
+            if (mask.getPathsCount() > 0) {
+                EventObjectQueryBuilder queryBuilder = new EventObjectQueryBuilder(mask);
+                optimizer.wantFieldMaskQuery(queryBuilder, request.getQueryTemplate());
+            }
+            if (!labels.isEmpty()) {
+                // Events must have all the labels. A getAll with more than one label would match events with any of
+                // them, so only the first label is given to the optimizer and the rest are filtered.
+                optimizer.wantMaskElem("label", Collections.singletonList(labels.get(0)));
+            }
+        }
+
+        // Most recently changed events first
+        if (!watch || watchLatest) {
+            optimizer.wantOrderQuery("lastModified", true);
         }
 
+        q = optimizer.render();
 
-        if (request.hasQueryTemplate() && request.hasQueryMask()) {
-            EventObjectQueryBuilder queryBuilder = new EventObjectQueryBuilder(request.getQueryMask());
-            q = q.filter(queryBuilder.buildFilterQuery(request.getQueryTemplate()));
+        if (labels.size() > 1) {
+            List<String> additionalLabels = labels.subList(1, labels.size());
+            q = q.filter(row -> row.g("label").contains(r.args(additionalLabels)));
         }
     }
 
     public ReqlExpr getListQuery() {
+        if (watch) {
+            return getWatchQuery();
+        }
+
         ReqlExpr query = q;
 
         if (request.hasReturnedFieldsMask()) {
@@ -60,6 +105,35 @@ public class ListEventObjectQueryBuilder {
         return query;
     }
 
+    private ReqlExpr getWatchQuery() {
+        ReqlExpr query = q;
+        List pluck = null;
+        if (request.hasReturnedFieldsMask()) {
+            pluck = new EventObjectQueryBuilder(request.getReturnedFieldsMask()).createPluckQuery();
+        }
+
+        if (watchLatest) {
+            query = query.limit(request.getPageSize());
+        } else if (pluck != null) {
+            query = query.pluck(pluck);
+        }
+
+        query = query.changes()
+                .optArg("include_initial", true)
+                .optArg("squash", true);
+
+        if (watchLatest) {
+            // Nothing can be chained between limit and changes, so the returned fields are picked from the changes
+            if (pluck != null) {
+                final List fields = pluck;
+                query = query.map(c -> r.branch(c.g("new_val").eq(null),
+                        c,
+                        r.hashMap("new_val", c.g("new_val").pluck(fields))));
+            }
+        }
+        return query;
+    }
+
     public ReqlExpr getSelectForUpdateQuery() {
         ReqlExpr query = q;
 
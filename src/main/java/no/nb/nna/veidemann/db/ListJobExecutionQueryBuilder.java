@@ -29,11 +29,17 @@ public class ListJobExecutionQueryBuilder {
 
     private final ReqlExpr q;
     private final JobExecutionsListRequest request;
+    final Tables table;
 
     public ListJobExecutionQueryBuilder(JobExecutionsListRequest request) {
+        this(request, Tables.JOB_EXECUTIONS);
+    }
+
+    public ListJobExecutionQueryBuilder(JobExecutionsListRequest request, Tables table) {
         this.request = request;
+        this.table = table;
 
-        QueryOptimizer<JobExecutionStatusOrBuilder> optimizer = new QueryOptimizer<>(NO_MASK_BUILDER, Tables.JOB_EXECUTIONS);
+        QueryOptimizer<JobExecutionStatusOrBuilder> optimizer = new QueryOptimizer<>(NO_MASK_BUILDER, table);
         if (request.getIdCount() > 0) {
             optimizer.wantIdQuery(request.getIdList());
         }
@@ -55,8 +61,25 @@ public class ListJobExecutionQueryBuilder {
     }
 
     public ReqlExpr getListQuery() {
+        return getListQuery(null);
+    }
+
+    /**
+     * Get the list query merged with the same query against another table.
+     * <p>
+     * If the request is ordered, the results from both tables are merge sorted. Paging is applied to the merged
+     * result.
+     *
+     * @param other builder for the same request against another table, or null to query only this builder's table
+     * @return the list query
+     */
+    public ReqlExpr getListQuery(ListJobExecutionQueryBuilder other) {
         ReqlExpr query = q;
 
+        if (other != null) {
+            query = ExecutionArchive.union(q, other.q, request.getOrderByPath(), request.getOrderDescending());
+        }
+
         if (request.hasReturnedFieldsMask()) {
             JobExecutionQueryBuilder queryBuilder = new JobExecutionQueryBuilder(request.getReturnedFieldsMask());
             query = query.pluck(queryBuilder.createPluckQuery());
@@ -73,6 +96,27 @@ public class ListJobExecutionQueryBuilder {
         return query;
     }
 
+    /**
+     * Get a watch query which can be reopened by a {@link ResumableCursor}.
+     * <p>
+     * Paging is not applied since it would end the change feed.
+     *
+     * @param includeInitial true if the change feed should start with the matching objects
+     * @return the watch query
+     */
+    public ReqlExpr getResumableWatchQuery(boolean includeInitial) {
+        ReqlExpr query = q;
+
+        if (request.hasReturnedFieldsMask()) {
+            JobExecutionQueryBuilder queryBuilder = new JobExecutionQueryBuilder(request.getReturnedFieldsMask());
+            query = query.pluck(queryBuilder.createPluckQuery());
+        }
+
+        return query.changes()
+                .optArg("include_initial", includeInitial)
+                .optArg("include_states", true);
+    }
+
     public ReqlExpr getCountQuery() {
         return q.count();
     }
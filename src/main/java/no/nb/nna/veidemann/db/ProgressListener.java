@@ -0,0 +1,34 @@
+/*
+ * Copyright 2020 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.nb.nna.veidemann.db;
+
+/**
+ * Callback for reporting progress of bulk operations which are executed in chunks.
+ */
+@FunctionalInterface
+public interface ProgressListener {
+    ProgressListener NOOP = (processed, modified) -> {
+    };
+
+    /**
+     * Called after each chunk is processed.
+     *
+     * @param processed total number of documents processed so far
+     * @param modified  total number of documents modified so far
+     */
+    void onProgress(long processed, long modified);
+}
@@ -0,0 +1,367 @@
+/*
+ * Copyright 2020 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.nb.nna.veidemann.db;
+
+import com.rethinkdb.RethinkDB;
+import com.rethinkdb.gen.ast.ReqlExpr;
+import com.rethinkdb.gen.exc.ReqlError;
+import com.rethinkdb.net.Cursor;
+import no.nb.nna.veidemann.commons.db.DbException;
+import no.nb.nna.veidemann.commons.db.DbQueryException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.time.OffsetDateTime;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * A change feed cursor which is reopened if the connection to the database is lost.
+ * <p>
+ * The version of objects seen on the feed is tracked by id. The version is the change time field if there is one,
+ * otherwise a content hash. When the feed is lost, it is reopened with {@code include_initial} and the initial values
+ * are compared with the tracked state. Only objects which changed while the feed was down are emitted, so clients
+ * don't have to reload everything after a reconnect. Tracked objects which are not among the initial values were
+ * deleted while the feed was down, and a change with only the id in {@code old_val} and a null {@code new_val} is
+ * emitted for each of them.
+ * <p>
+ * At most {@link #MAX_TRACKED} objects are tracked. The least recently seen objects are forgotten first, and are
+ * treated like objects which have not been seen on the feed.
+ * <p>
+ * Objects which have not been seen on the feed are identified as changed by a change time field if the table has
+ * one. The feed is then first opened without initial values. If there is no such field, the feed is first opened
+ * with initial values which are tracked, but not emitted.
+ * <p>
+ * The query factory must return a change feed with {@code include_states} set, and with {@code include_initial} set
+ * to the value of its argument.
+ */
+class ResumableCursor implements Spliterator<Map<String, Object>>, ChangeFeedPublisher.Source<Map<String, Object>>, Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(ResumableCursor.class);
+
+    static final RethinkDB r = RethinkDB.r;
+
+    static final long MIN_RETRY_DELAY_MILLIS = 500;
+
+    static final long MAX_RETRY_DELAY_MILLIS = 30000;
+
+    static final int MAX_TRACKED = 100_000;
+
+    private final RethinkDbConnection conn;
+    private final String operationName;
+    private final Function<Boolean, ReqlExpr> queryFactory;
+    private final String changeTimeField;
+
+    /**
+     * Version of the objects seen on the feed, by id, in the order they were last seen.
+     */
+    private final Map<Object, Object> seen;
+
+    private volatile CursorReader<Map<String, Object>> cursor;
+    private volatile boolean closed;
+
+    /**
+     * Server time when the current feed was opened.
+     */
+    private OffsetDateTime openedAt;
+
+    /**
+     * Server time when the lost feed was opened. Objects which changed after this might have been missed.
+     */
+    private OffsetDateTime resyncFrom;
+
+    /**
+     * Ids of initial values while the feed is loading, or null if the feed is ready.
+     */
+    private Set<Object> initialIds;
+
+    private boolean firstLoad;
+
+    /**
+     * Deletes detected when the reopened feed was ready, which are emitted before reading more from the feed.
+     */
+    private final Deque<Map<String, Object>> missedDeletes = new ArrayDeque<>();
+
+    private long retryDelay = MIN_RETRY_DELAY_MILLIS;
+
+    /**
+     * Time, as given by {@link System#nanoTime()}, when the lost feed should be reopened.
+     */
+    private volatile long retryAt;
+
+    private final Object retryMonitor = new Object();
+
+    /**
+     * Open a resumable change feed.
+     *
+     * @param conn            the database connection
+     * @param operationName   the operation name used for the queries
+     * @param queryFactory    creates the change feed query, the argument tells if initial values should be included
+     * @param changeTimeField the field which is set to the time of the last change of an object, or null if there is
+     *                        no such field
+     */
+    ResumableCursor(RethinkDbConnection conn, String operationName, Function<Boolean, ReqlExpr> queryFactory,
+                    String changeTimeField) throws DbException {
+        this(conn, operationName, queryFactory, changeTimeField, MAX_TRACKED);
+    }
+
+    ResumableCursor(RethinkDbConnection conn, String operationName, Function<Boolean, ReqlExpr> queryFactory,
+                    String changeTimeField, int maxTracked) throws DbException {
+        this.seen = new LinkedHashMap<Object, Object>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, Object> eldest) {
+                return size() > maxTracked;
+            }
+        };
+        this.conn = conn;
+        this.operationName = operationName;
+        this.queryFactory = queryFactory;
+        this.changeTimeField = changeTimeField;
+
+        firstLoad = changeTimeField == null;
+        open(firstLoad);
+    }
+
+    private void open(boolean includeInitial) throws DbException {
+        OffsetDateTime now = conn.exec(operationName + "-getServerTime", r.now());
+        Cursor<Map<String, Object>> c = conn.exec(operationName, queryFactory.apply(includeInitial));
+        cursor = new CursorReader<>(c);
+        if (includeInitial) {
+            initialIds = new HashSet<>();
+        }
+        resyncFrom = openedAt;
+        openedAt = now;
+    }
+
+    @Override
+    public Map<String, Object> poll(long timeoutMillis) throws TimeoutException {
+        return read(Math.max(timeoutMillis, 1));
+    }
+
+    /**
+     * A lost feed is reported as ready when it is time to reopen it, so that the feed is reopened by the thread
+     * calling {@link #poll(long)}.
+     */
+    @Override
+    public boolean ready() {
+        return closed || (cursor == null && System.nanoTime() - retryAt >= 0);
+    }
+
+    /**
+     * Get the next object, reopening the feed if it is lost.
+     * <p>
+     * While waiting to reopen a lost feed, a call with a timeout shorter than the remaining delay times out instead of
+     * waiting for the whole delay.
+     *
+     * @param timeoutMillis maximum time to wait, or a negative value to use the adaptive wait of {@link CursorReader}
+     * @return the next object or null if closed
+     */
+    private synchronized Map<String, Object> read(long timeoutMillis) throws TimeoutException {
+        while (!closed) {
+            if (!missedDeletes.isEmpty()) {
+                return missedDeletes.poll();
+            }
+            Map<String, Object> raw;
+            try {
+                CursorReader<Map<String, Object>> c = cursor;
+                if (c == null) {
+                    long delay = (retryAt - System.nanoTime()) / 1_000_000;
+                    if (delay > 0) {
+                        if (timeoutMillis >= 0 && delay > timeoutMillis) {
+                            if (!sleep(timeoutMillis)) {
+                                break;
+                            }
+                            throw new TimeoutException();
+                        }
+                        if (!sleep(delay)) {
+                            break;
+                        }
+                    }
+                    open(true);
+                    c = cursor;
+                    if (closed) {
+                        closeCursor();
+                        break;
+                    }
+                }
+                if (!c.hasNext()) {
+                    throw new DbQueryException("Change feed ended unexpectedly");
+                }
+                raw = timeoutMillis < 0 ? c.next() : c.next(timeoutMillis);
+            } catch (ReqlError | NoSuchElementException | DbException e) {
+                if (closed) {
+                    break;
+                }
+                LOG.warn("Change feed {} lost, reopening in {}ms. Cause: {}", operationName, retryDelay, e.toString());
+                closeCursor();
+                retryAt = System.nanoTime() + retryDelay * 1_000_000;
+                retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY_MILLIS);
+                continue;
+            }
+            retryDelay = MIN_RETRY_DELAY_MILLIS;
+
+            if (track(raw)) {
+                return raw;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Update the tracked state with an object from the feed.
+     *
+     * @return true if the object should be emitted
+     */
+    @SuppressWarnings("unchecked")
+    private boolean track(Map<String, Object> raw) {
+        if (!raw.containsKey("new_val") && !raw.containsKey("old_val")) {
+            // State document
+            if ("ready".equals(raw.get("state")) && initialIds != null) {
+                // Objects which were not among the initial values have been deleted
+                Iterator<Object> it = seen.keySet().iterator();
+                while (it.hasNext()) {
+                    Object id = it.next();
+                    if (!initialIds.contains(id)) {
+                        it.remove();
+                        missedDeletes.add(r.hashMap("old_val", r.hashMap("id", id)).with("new_val", null));
+                    }
+                }
+                initialIds = null;
+                firstLoad = false;
+            }
+            return false;
+        }
+
+        Map<String, Object> newVal = (Map<String, Object>) raw.get("new_val");
+        if (newVal == null) {
+            Map<String, Object> oldVal = (Map<String, Object>) raw.get("old_val");
+            if (oldVal != null) {
+                seen.remove(oldVal.get("id"));
+            }
+            return true;
+        }
+
+        Object id = newVal.get("id");
+        Object version = changeTimeField == null ? null : newVal.get(changeTimeField);
+        if (version == null) {
+            version = newVal.hashCode();
+        }
+        Object previous = seen.put(id, version);
+
+        if (initialIds == null) {
+            return true;
+        }
+        initialIds.add(id);
+        if (raw.containsKey("old_val")) {
+            // Not an initial value
+            return true;
+        }
+
+        if (previous != null) {
+            return !previous.equals(version);
+        }
+        if (firstLoad) {
+            return false;
+        }
+        if (changeTimeField != null && resyncFrom != null) {
+            Object changeTime = newVal.get(changeTimeField);
+            return !(changeTime instanceof OffsetDateTime) || ((OffsetDateTime) changeTime).isAfter(resyncFrom);
+        }
+        return true;
+    }
+
+    /**
+     * Wait before retrying. Close wakes us up through a separate monitor, so that close never waits for a read which
+     * is reopening the feed.
+     */
+    private boolean sleep(long millis) {
+        try {
+            synchronized (retryMonitor) {
+                if (!closed) {
+                    retryMonitor.wait(millis);
+                }
+            }
+            return !closed;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void closeCursor() {
+        CursorReader<Map<String, Object>> c = cursor;
+        cursor = null;
+        if (c != null) {
+            try {
+                c.close();
+            } catch (RuntimeException e) {
+                LOG.debug("Failed closing change feed cursor", e);
+            }
+        }
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Map<String, Object>> action) {
+        if (action == null) throw new NullPointerException();
+        while (true) {
+            try {
+                Map<String, Object> next = read(-1);
+                if (next == null) {
+                    return false;
+                }
+                action.accept(next);
+                return true;
+            } catch (TimeoutException e) {
+                continue;
+            }
+        }
+    }
+
+    @Override
+    public Spliterator<Map<String, Object>> trySplit() {
+        return null;
+    }
+
+    @Override
+    public long estimateSize() {
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        closeCursor();
+        synchronized (retryMonitor) {
+            retryMonitor.notifyAll();
+        }
+    }
+}
@@ -13,6 +13,7 @@ import no.nb.nna.veidemann.api.config.v1.Kind;
 import no.nb.nna.veidemann.api.config.v1.LabelKeysResponse;
 import no.nb.nna.veidemann.api.config.v1.ListCountResponse;
 import no.nb.nna.veidemann.api.config.v1.LogLevels;
+import no.nb.nna.veidemann.api.config.v1.Role;
 import no.nb.nna.veidemann.api.config.v1.UpdateRequest;
 import no.nb.nna.veidemann.api.config.v1.UpdateResponse;
 import no.nb.nna.veidemann.commons.auth.EmailContextKey;
@@ -25,8 +26,14 @@ import no.nb.nna.veidemann.db.fieldmask.ObjectPathAccessor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.net.InetAddress;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 
 public class RethinkDbConfigAdapter implements ConfigAdapter {
     private static final Logger LOG = LoggerFactory.getLogger(RethinkDbConfigAdapter.class);
@@ -37,8 +44,16 @@ public class RethinkDbConfigAdapter implements ConfigAdapter {
 
     private final RethinkDbConnection conn;
 
+    private final RoleMappingCache roleMappingCache;
+
+    private final CrawlHostGroupConfigCache crawlHostGroupConfigCache;
+
+    private final Map<Tables, LabelCache> labelKeyCaches = new ConcurrentHashMap<>();
+
     public RethinkDbConfigAdapter(RethinkDbConnection conn) {
         this.conn = conn;
+        this.roleMappingCache = new RoleMappingCache(conn);
+        this.crawlHostGroupConfigCache = new CrawlHostGroupConfigCache(conn);
     }
 
     @Override
@@ -71,7 +86,7 @@ public class RethinkDbConfigAdapter implements ConfigAdapter {
         ListConfigObjectQueryBuilder q = new ListConfigObjectQueryBuilder(request);
 
         Object res = conn.exec("db-listConfigObjects", q.getListQuery());
-        return new ChangeFeedBase<>(res) {
+        return new ChangeFeedBase<>(res, ChangeFeedBase.Dedup.NONE, !request.getOrderByPath().isEmpty()) {
             @Override
             protected Function<Map<String, Object>, ConfigObject> mapper() {
                 return co -> {
@@ -155,6 +170,16 @@ public class RethinkDbConfigAdapter implements ConfigAdapter {
     public LabelKeysResponse getLabelKeys(GetLabelKeysRequest request) throws DbQueryException, DbConnectionException {
         Tables table = getTableForKind(request.getKind());
 
+        LabelCache cache = getLabelKeyCache(table);
+        if (cache.isReady()) {
+            String kindPrefix = request.getKind().name() + ":";
+            return LabelKeysResponse.newBuilder()
+                    .addAllKey(cache.withPrefix(kindPrefix).stream()
+                            .map(k -> k.substring(kindPrefix.length()))
+                            .collect(Collectors.toList()))
+                    .build();
+        }
+
         try (Cursor<String> res = conn.exec("db-getLabelKeys",
                 r.table(table.name)
                         .distinct().optArg("index", "kind_label_key")
@@ -165,6 +190,83 @@ public class RethinkDbConfigAdapter implements ConfigAdapter {
         }
     }
 
+    /**
+     * Get the label keys for a kind which start with a prefix, for autocompletion.
+     * <p>
+     * Keys are served from memory when the label key cache for the kind's table is loaded, otherwise by a range on
+     * the kind_label_key index.
+     *
+     * @param kind      the kind of config objects
+     * @param keyPrefix the start of the keys, matched case insensitive
+     * @return the matching keys in lower case and sorted order
+     */
+    public List<String> getLabelKeys(Kind kind, String keyPrefix) throws DbQueryException, DbConnectionException {
+        Tables table = getTableForKind(kind);
+        String prefix = keyPrefix.toLowerCase();
+
+        LabelCache cache = getLabelKeyCache(table);
+        if (cache.isReady()) {
+            String kindPrefix = kind.name() + ":";
+            return cache.withPrefix(kindPrefix + prefix).stream()
+                    .map(k -> k.substring(kindPrefix.length()))
+                    .collect(Collectors.toList());
+        }
+
+        String upper = prefix + LabelCache.MAX_CHAR;
+        return conn.exec("db-getLabelKeysByPrefix",
+                r.table(table.name)
+                        .between(r.array(kind.name(), prefix), r.array(kind.name(), upper))
+                        .optArg("index", "kind_label_key")
+                        .concatMap(row -> row.g("meta").g("label").map(label -> label.g("key").downcase()))
+                        .filter(k -> k.ge(prefix).and(k.lt(upper)))
+                        .distinct()
+        );
+    }
+
+    /**
+     * Get the cache of label keys for a table, where each key is prefixed with the kind of the config object.
+     */
+    private LabelCache getLabelKeyCache(Tables table) {
+        LabelCache cache = labelKeyCaches.computeIfAbsent(table, t -> new LabelCache(conn, "labelKeys-" + t.name, t,
+                row -> row.g("meta").g("label").default_(r.array())
+                        .map(label -> r.add(row.g("kind"), ":", label.g("key").downcase()))));
+        cache.start();
+        return cache;
+    }
+
+    /**
+     * Get the roles granted to a principal by the role mappings.
+     * <p>
+     * Role mappings are cached in memory and kept current by a change feed, so this method is cheap enough to be
+     * called for every authenticated request.
+     *
+     * @param email  the principal's email, might be null
+     * @param groups the groups the principal is member of
+     * @return the union of roles mapped to the email and the groups
+     */
+    public Set<Role> getRolesForPrincipal(String email, Collection<String> groups) throws DbQueryException, DbConnectionException {
+        return roleMappingCache.getRolesForPrincipal(email, groups);
+    }
+
+    /**
+     * Find the crawl host group config for an IP address.
+     * <p>
+     * The IP ranges of all crawl host group configs are indexed in memory and kept current by a change feed. If the
+     * address is contained in more than one range, the config with the narrowest range is returned.
+     *
+     * @param ip the address to look up
+     * @return the matching crawl host group config or null if no config matches
+     */
+    public ConfigObject findCrawlHostGroupForIp(InetAddress ip) throws DbQueryException, DbConnectionException {
+        return crawlHostGroupConfigCache.findCrawlHostGroupForIp(ip);
+    }
+
+    public void close() {
+        roleMappingCache.close();
+        crawlHostGroupConfigCache.close();
+        labelKeyCaches.values().forEach(LabelCache::close);
+    }
+
     public static ConfigObject ensureKindAndApiVersion(ConfigObject co) {
         if (co.getApiVersion().isEmpty()) {
             throw new IllegalArgumentException("apiVersion can not be empty");
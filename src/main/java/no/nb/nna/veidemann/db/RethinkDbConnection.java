@@ -52,6 +52,10 @@ public class RethinkDbConnection implements DbServiceSPI {
 
     static final String RETHINK_ARRAY_LIMIT_KEY = "RETHINK_ARRAY_LIMIT";
 
+    static final String RETHINK_MAX_BATCH_ROWS_KEY = "RETHINK_MAX_BATCH_ROWS";
+
+    static final String RETHINK_MAX_BATCH_BYTES_KEY = "RETHINK_MAX_BATCH_BYTES";
+
     static final RethinkDB r = RethinkDB.r;
 
     private Connection conn;
@@ -88,6 +92,14 @@ public class RethinkDbConnection implements DbServiceSPI {
         if (arrayLimit > 0) {
             globalOpts = globalOpts.with("array_limit", arrayLimit);
         }
+        int maxBatchRows = getIntProperty(RETHINK_MAX_BATCH_ROWS_KEY);
+        if (maxBatchRows > 0) {
+            globalOpts = globalOpts.with("max_batch_rows", maxBatchRows);
+        }
+        int maxBatchBytes = getIntProperty(RETHINK_MAX_BATCH_BYTES_KEY);
+        if (maxBatchBytes > 0) {
+            globalOpts = globalOpts.with("max_batch_bytes", maxBatchBytes);
+        }
 
         while (true) {
             try {
@@ -164,6 +176,15 @@ public class RethinkDbConnection implements DbServiceSPI {
 
     @Override
     public void close() {
+        if (configAdapter != null) {
+            configAdapter.close();
+        }
+        if (executionsAdapter != null) {
+            executionsAdapter.close();
+        }
+        if (eventAdapter != null) {
+            eventAdapter.close();
+        }
         conn.close();
     }
 
@@ -233,6 +254,10 @@ public class RethinkDbConnection implements DbServiceSPI {
     }
 
     private int getArrayLimit() {
-        return Integer.parseInt(System.getProperty(RETHINK_ARRAY_LIMIT_KEY, "0"));
+        return getIntProperty(RETHINK_ARRAY_LIMIT_KEY);
+    }
+
+    private int getIntProperty(String key) {
+        return Integer.parseInt(System.getProperty(key, "0"));
     }
 }
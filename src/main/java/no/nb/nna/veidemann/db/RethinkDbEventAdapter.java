@@ -1,9 +1,12 @@
 package no.nb.nna.veidemann.db;
 
+import com.google.protobuf.Timestamp;
 import com.rethinkdb.RethinkDB;
 import com.rethinkdb.gen.ast.ReqlExpr;
 import com.rethinkdb.gen.ast.ReqlFunction3;
+import com.rethinkdb.model.MapObject;
 import com.rethinkdb.net.Cursor;
+import no.nb.nna.veidemann.api.eventhandler.v1.Activity;
 import no.nb.nna.veidemann.api.eventhandler.v1.Activity.ChangeType;
 import no.nb.nna.veidemann.api.eventhandler.v1.DeleteResponse;
 import no.nb.nna.veidemann.api.eventhandler.v1.EventObject;
@@ -25,10 +28,19 @@ import no.nb.nna.veidemann.commons.db.EventAdapter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.function.Function;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import java.util.stream.Collectors;
 
 public class RethinkDbEventAdapter implements EventAdapter {
     private static final ChangableField[] changeableFields = new ChangableField[]{
@@ -43,10 +55,36 @@ public class RethinkDbEventAdapter implements EventAdapter {
 
     static final RethinkDB r = RethinkDB.r;
 
+    static final int SAVE_CHUNK_SIZE = 1000;
+
+    /**
+     * Max number of activities stored in an event object. Older activities are moved to the event_activity table.
+     */
+    static final int ACTIVITY_LIMIT = 20;
+
+    /**
+     * Fields maintained by {@link #saveEventObjectDeduplicated(SaveRequest, EventFingerprint)}.
+     */
+    static final Object[] DEDUPLICATION_FIELDS = new Object[]{"fingerprint", "occurrences", "lastSeen"};
+
+    /**
+     * Number of derived ids tried by {@link #saveEventObjectDeduplicated(SaveRequest, EventFingerprint)} before
+     * giving up. More than one is only needed when events with the fingerprint have been deleted.
+     */
+    static final int DEDUPLICATION_ATTEMPTS = 10;
+
+    /**
+     * Event objects in watches are versioned by the time of their latest activity.
+     */
+    static final ChangeFeedBase.Dedup WATCH_DEDUP = ChangeFeedBase.Dedup.byVersion(RethinkDbEventAdapter::lastModified);
+
     private final RethinkDbConnection conn;
 
+    private final LabelCache labelCache;
+
     public RethinkDbEventAdapter(RethinkDbConnection conn) {
         this.conn = conn;
+        this.labelCache = new LabelCache(conn, "eventLabels", Tables.EVENTS, doc -> doc.g("label").default_(r.array()));
     }
 
     @Override
@@ -63,15 +101,53 @@ public class RethinkDbEventAdapter implements EventAdapter {
         return ProtoUtils.rethinkToProto(response, EventObject.class);
     }
 
+    /**
+     * List event objects without watching. Use {@link #listEventObjects(ListRequest, boolean)} to watch.
+     */
     @Override
     public ChangeFeed<EventObject> listEventObjects(no.nb.nna.veidemann.api.eventhandler.v1.ListRequest request) throws DbQueryException, DbConnectionException {
-        ListEventObjectQueryBuilder q = new ListEventObjectQueryBuilder(request);
+        return listEventObjects(request, false);
+    }
+
+    /**
+     * Get the modified time of the latest activity of an event object, or null if the activity is not included.
+     */
+    private static Object lastModified(Map<String, Object> eo) {
+        Object activity = eo.get("activity");
+        if (activity instanceof List && !((List) activity).isEmpty() && ((List) activity).get(0) instanceof Map) {
+            return ((Map) ((List) activity).get(0)).get("modifiedTime");
+        }
+        return null;
+    }
+
+    /**
+     * List event objects, optionally as a change feed.
+     * <p>
+     * A watch starts with the event objects matching the request and then emits event objects as they change.
+     * Changes are squashed, so an event object which changes several times in quick succession is only emitted once.
+     * Deleted event objects are not emitted.
+     *
+     * @param request the list request
+     * @param watch   true to keep the feed open and emit changes
+     * @return the matching event objects
+     */
+    public ChangeFeed<EventObject> listEventObjects(ListRequest request, boolean watch) throws DbQueryException, DbConnectionException {
+        ListEventObjectQueryBuilder q = new ListEventObjectQueryBuilder(request, watch);
 
         Object res = conn.exec("db-listEventObjects", q.getListQuery());
-        return new ChangeFeedBase<EventObject>(res) {
+        return new ChangeFeedBase<EventObject>(res, watch ? WATCH_DEDUP : ChangeFeedBase.Dedup.NONE) {
             @Override
+            @SuppressWarnings("unchecked")
             protected Function<Map<String, Object>, EventObject> mapper() {
                 return eo -> {
+                    // In case of a change feed, the real object is stored in new_val
+                    // If new_val is empty, the object is deleted. We skip those.
+                    if (eo.containsKey("new_val")) {
+                        eo = (Map) eo.get("new_val");
+                        if (eo == null) {
+                            return null;
+                        }
+                    }
                     EventObject res = ProtoUtils.rethinkToProto(eo, EventObject.class);
                     return res;
                 };
@@ -88,6 +164,185 @@ public class RethinkDbEventAdapter implements EventAdapter {
 
     @Override
     public EventObject saveEventObject(SaveRequest request) throws DbException {
+        EventObject msg = request.getObject();
+        Map rMap = toRethink(request, getCurrentUser(), ProtoUtils.getNowTs());
+
+        Map<String, Object> response = conn.exec("db-save" + msg.getClass().getSimpleName(),
+                spillActivity(r.table(Tables.EVENTS.name)
+                        .insert(rMap)
+                        // A rethink function which keeps old values for fields not allowed to be changed and updates activity log
+                        .optArg("conflict", buildOptargConflictFunction(request.getComment()))
+                        .optArg("return_changes", "always"))
+        );
+
+        List<Map<String, Map>> changes = (List<Map<String, Map>>) response.get("changes");
+        return ProtoUtils.rethinkToProto(changes.get(0).get("new_val"), EventObject.class);
+    }
+
+    /**
+     * Save a batch of event objects.
+     * <p>
+     * Each object is handled as if saved with {@link #saveEventObject(SaveRequest)}, but validation and conversion is
+     * done in parallel and the objects are inserted in chunks of {@link #SAVE_CHUNK_SIZE}. Requests are grouped by
+     * comment since the comment is part of the conflict function.
+     * <p>
+     * Validation is done before anything is written. The batch is not written atomically.
+     *
+     * @param requests the objects to save
+     * @return the saved objects in the same order as the requests
+     */
+    public List<EventObject> saveEventObjects(List<SaveRequest> requests) throws DbException {
+        List<Map<String, Object>> saved = saveEventObjects(requests, true);
+        return saved.parallelStream()
+                .map(eo -> ProtoUtils.rethinkToProto(eo, EventObject.class))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Save a batch of event objects and return only their ids.
+     * <p>
+     * Same as {@link #saveEventObjects(List)}, but the saved documents are not sent back from the database.
+     *
+     * @param requests the objects to save
+     * @return the ids of the saved objects in the same order as the requests
+     */
+    public List<String> saveEventObjectsReturnIds(List<SaveRequest> requests) throws DbException {
+        return saveEventObjects(requests, false).stream()
+                .map(eo -> (String) eo.get("id"))
+                .collect(Collectors.toList());
+    }
+
+    private List<Map<String, Object>> saveEventObjects(List<SaveRequest> requests, boolean returnChanges) throws DbException {
+        // The current user is bound to the calling thread and must be resolved before going parallel
+        String user = getCurrentUser();
+        Timestamp now = ProtoUtils.getNowTs();
+        List<Map<String, Object>> docs = requests.parallelStream()
+                .map(request -> toRethink(request, user, now))
+                .collect(Collectors.toList());
+
+        Map<String, List<Integer>> byComment = new LinkedHashMap<>();
+        for (int i = 0; i < requests.size(); i++) {
+            byComment.computeIfAbsent(requests.get(i).getComment(), k -> new ArrayList<>()).add(i);
+        }
+
+        List<Map<String, Object>> result = new ArrayList<>(Collections.nCopies(docs.size(), null));
+        for (Entry<String, List<Integer>> group : byComment.entrySet()) {
+            ReqlFunction3 conflictFunction = buildOptargConflictFunction(group.getKey());
+            List<Integer> indexes = group.getValue();
+            for (int from = 0; from < indexes.size(); from += SAVE_CHUNK_SIZE) {
+                List<Integer> chunk = indexes.subList(from, Math.min(from + SAVE_CHUNK_SIZE, indexes.size()));
+                List<Map<String, Object>> chunkDocs = chunk.stream().map(docs::get).collect(Collectors.toList());
+
+                ReqlExpr qry = spillActivity(r.table(Tables.EVENTS.name)
+                        .insert(chunkDocs)
+                        .optArg("conflict", conflictFunction)
+                        .optArg("return_changes", returnChanges ? "always" : true));
+                if (!returnChanges) {
+                    qry = qry.without("changes");
+                }
+                Map<String, Object> response = conn.exec("db-saveEventObjects", qry);
+
+                Map<String, Map<String, Object>> changes = new HashMap<>();
+                if (returnChanges) {
+                    for (Map<String, Map<String, Object>> change : (List<Map<String, Map<String, Object>>>) response.get("changes")) {
+                        Map<String, Object> newVal = change.get("new_val");
+                        changes.put((String) newVal.get("id"), newVal);
+                    }
+                }
+
+                // Generated keys are returned in the order of the documents without id
+                Iterator<String> generatedKeys = ((List<String>) response.getOrDefault("generated_keys", Collections.emptyList())).iterator();
+                for (int i = 0; i < chunk.size(); i++) {
+                    String id = (String) chunkDocs.get(i).get("id");
+                    if (id == null) {
+                        id = generatedKeys.next();
+                    }
+                    result.set(chunk.get(i), returnChanges ? changes.get(id) : Collections.singletonMap("id", id));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Save a new event object, or merge it into an open event with the same fingerprint.
+     * <p>
+     * If an event with the same fingerprint exists in state NEW or OPEN, the occurrence counter of that event is
+     * incremented and its last seen time is set to now. Otherwise the event object is inserted as with
+     * {@link #saveEventObject(SaveRequest)}. Events created by this method keep their fingerprint for their whole
+     * lifetime, but are only matched as long as they are open.
+     * <p>
+     * New events get an id derived from the fingerprint and the number of events with that fingerprint, and are
+     * inserted with a conflict function which merges the occurrence into the existing event if it is open. Since
+     * concurrent occurrences of a new fingerprint derive the same id, and a write to one document is atomic, they end
+     * up in one event. If the derived id belongs to an event which is closed, the next id is tried.
+     *
+     * @param request     a request for saving a new event object
+     * @param fingerprint the definition of which events are considered equal
+     * @return the created or updated event together with the occurrence count
+     */
+    @SuppressWarnings("unchecked")
+    public DeduplicatedEvent saveEventObjectDeduplicated(SaveRequest request, EventFingerprint fingerprint) throws DbException {
+        if (!request.getObject().getId().isEmpty()) {
+            throw new IllegalArgumentException("Deduplicated save is only allowed for new event objects");
+        }
+        String fp = fingerprint.of(request.getObject());
+        Map rMap = toRethink(request, getCurrentUser(), ProtoUtils.getNowTs());
+        rMap.put("fingerprint", fp);
+        rMap.put("occurrences", 1);
+        rMap.put("lastSeen", r.now());
+
+        for (int attempt = 0; attempt < DEDUPLICATION_ATTEMPTS; attempt++) {
+            final int offset = attempt;
+            Map<String, Object> response = conn.exec("db-saveEventObjectDeduplicated",
+                    r.table(Tables.EVENTS.name)
+                            .between(r.array(fp, r.minval()), r.array(fp, r.maxval()))
+                            .optArg("index", "fingerprint_state")
+                            .count()
+                            .do_(count -> r.table(Tables.EVENTS.name)
+                                    .getAll(r.array(fp, State.NEW.name()), r.array(fp, State.OPEN.name()))
+                                    .optArg("index", "fingerprint_state")
+                                    .limit(1)
+                                    .coerceTo("array")
+                                    .do_(existing -> r.branch(existing.isEmpty(),
+                                            r.table(Tables.EVENTS.name)
+                                                    .insert(r.expr(rMap).merge(r.hashMap("id",
+                                                            r.uuid(r.add(fp, ":", count.add(offset).coerceTo("string"))))))
+                                                    .optArg("conflict", (id, oldDoc, newDoc) -> r.branch(
+                                                            isOpen(oldDoc), addOccurrence(oldDoc), oldDoc))
+                                                    .optArg("return_changes", "always"),
+                                            r.table(Tables.EVENTS.name)
+                                                    .get(existing.nth(0).g("id"))
+                                                    .update(e -> addOccurrence(e))
+                                                    .optArg("return_changes", "always"))))
+            );
+
+            if ((long) response.get("unchanged") == 1) {
+                // The derived id belongs to a closed event
+                continue;
+            }
+            List<Map<String, Map<String, Object>>> changes = (List<Map<String, Map<String, Object>>>) response.get("changes");
+            Map<String, Object> newVal = changes.get(0).get("new_val");
+            return new DeduplicatedEvent(ProtoUtils.rethinkToProto(newVal, EventObject.class),
+                    ((Number) newVal.get("occurrences")).longValue(),
+                    ProtoUtils.odtToTs((OffsetDateTime) newVal.get("lastSeen")),
+                    (long) response.get("inserted") == 1);
+        }
+        throw new DbQueryException("Could not find a free id for event with fingerprint " + fp);
+    }
+
+    private static ReqlExpr isOpen(ReqlExpr eo) {
+        return r.expr(r.array(State.NEW.name(), State.OPEN.name())).contains(eo.g("state"));
+    }
+
+    private static MapObject addOccurrence(ReqlExpr eo) {
+        return r.hashMap("occurrences", eo.g("occurrences").default_(1).add(1)).with("lastSeen", r.now());
+    }
+
+    /**
+     * Validate and convert a save request to a RethinkDb document.
+     */
+    private static Map<String, Object> toRethink(SaveRequest request, String user, Timestamp now) {
         EventObject msg = request.getObject();
         if (msg.getType().isEmpty()) {
             throw new IllegalArgumentException("Missing type for event object");
@@ -99,7 +354,7 @@ public class RethinkDbEventAdapter implements EventAdapter {
         Map rMap;
         if (msg.getId().isEmpty()) {
             EventObject.Builder b = msg.toBuilder().setState(State.NEW);
-            b.addActivityBuilder().setModifiedTime(ProtoUtils.getNowTs()).setModifiedBy(getCurrentUser())
+            b.addActivityBuilder().setModifiedTime(now).setModifiedBy(user)
                     .setComment(request.getComment())
                     .addDescriptionBuilder().setType(ChangeType.CREATED);
             rMap = ProtoUtils.protoToRethink(b.build());
@@ -111,14 +366,7 @@ public class RethinkDbEventAdapter implements EventAdapter {
         for (int i = 0; i < labels.size(); i++) {
             labels.set(i, labels.get(i).toLowerCase());
         }
-
-        return conn.executeInsert("db-save" + msg.getClass().getSimpleName(),
-                r.table(Tables.EVENTS.name)
-                        .insert(rMap)
-                        // A rethink function which keeps old values for fields not allowed to be changed and updates activity log
-                        .optArg("conflict", buildOptargConflictFunction(request.getComment())),
-                EventObject.class
-        );
+        return rMap;
     }
 
     @Override
@@ -135,18 +383,78 @@ public class RethinkDbEventAdapter implements EventAdapter {
         return UpdateResponse.newBuilder().setUpdated((long) res.get("replaced")).build();
     }
 
+    /**
+     * Get an event object with its full activity history.
+     * <p>
+     * Only the last {@link #ACTIVITY_LIMIT} activities are stored in the event object itself. This method also
+     * fetches older activities if there are any.
+     *
+     * @param request the id of the event object
+     * @return the event object with all activities, newest first, or null if not found
+     */
+    public EventObject getEventObjectWithFullActivity(EventRef request) throws DbException {
+        EventObject eventObject = getEventObject(request);
+        if (eventObject == null || eventObject.getActivityCount() < ACTIVITY_LIMIT) {
+            return eventObject;
+        }
+
+        List<Map<String, Object>> spilled = conn.exec("db-getEventActivity",
+                r.table(Tables.EVENT_ACTIVITY.name)
+                        .between(r.array(eventObject.getId(), r.minval()), r.array(eventObject.getId(), r.maxval()))
+                        .optArg("index", "eventId_modifiedTime")
+                        .orderBy().optArg("index", r.desc("eventId_modifiedTime"))
+                        .coerceTo("array")
+        );
+
+        EventObject.Builder b = eventObject.toBuilder();
+        spilled.forEach(a -> b.addActivity(ProtoUtils.rethinkToProto(a, Activity.class)));
+        return b.build();
+    }
+
     @Override
     public DeleteResponse deleteEventObject(EventObject object) throws DbException {
         Map<String, Object> response = conn.exec("db-deleteEventObject",
                 r.table(Tables.EVENTS.name)
                         .get(object.getId())
                         .delete()
+                        .do_(res -> r.table(Tables.EVENT_ACTIVITY.name)
+                                .between(r.array(object.getId(), r.minval()), r.array(object.getId(), r.maxval()))
+                                .optArg("index", "eventId_modifiedTime")
+                                .delete()
+                                .do_(ignore -> res))
         );
         return DeleteResponse.newBuilder().setDeleted((long) response.get("deleted") == 1).build();
     }
 
+    /**
+     * List labels matching a regular expression.
+     * <p>
+     * Labels are served from memory when the label cache is loaded, otherwise from the label index. The database
+     * matches with RE2 syntax. In memory matching uses {@link Pattern}, which accepts all RE2 constructs used for
+     * label search, with named groups written as {@code (?P<name>...)} translated to Java syntax. Patterns which
+     * {@link Pattern} can not compile are matched by the database. {@link Pattern} also accepts some constructs RE2
+     * rejects, like backreferences and lookaround, which therefore only work when the cache is loaded.
+     *
+     * @see #listLabelsByPrefix(String)
+     */
     @Override
     public ListLabelResponse listLabels(ListLabelRequest listLabelRequest) throws DbException {
+        labelCache.start();
+        if (labelCache.isReady()) {
+            Pattern pattern = null;
+            try {
+                pattern = Pattern.compile(listLabelRequest.getText().replace("(?P<", "(?<"));
+            } catch (PatternSyntaxException e) {
+                LOG.debug("Label pattern '{}' not supported in memory, matching in database", listLabelRequest.getText());
+            }
+            if (pattern != null) {
+                Pattern p = pattern;
+                return ListLabelResponse.newBuilder()
+                        .addAllLabel(labelCache.all().stream().filter(l -> p.matcher(l).find()).collect(Collectors.toList()))
+                        .build();
+            }
+        }
+
         try (Cursor<String> res = conn.exec("db-listLabels",
                 r.table(Tables.EVENTS.name)
                         .distinct().optArg("index", "label")
@@ -156,19 +464,74 @@ public class RethinkDbEventAdapter implements EventAdapter {
         }
     }
 
+    /**
+     * List labels starting with a prefix, for autocompletion.
+     * <p>
+     * Labels are served from memory when the label cache is loaded, otherwise by a range on the label index.
+     *
+     * @param prefix the start of the labels, matched case insensitively since labels are stored in lower case
+     * @return the matching labels in sorted order
+     */
+    public List<String> listLabelsByPrefix(String prefix) throws DbException {
+        String lowerPrefix = prefix.toLowerCase();
+        labelCache.start();
+        if (labelCache.isReady()) {
+            return new ArrayList<>(labelCache.withPrefix(lowerPrefix));
+        }
+
+        String upper = lowerPrefix + LabelCache.MAX_CHAR;
+        return conn.exec("db-listLabelsByPrefix",
+                r.table(Tables.EVENTS.name)
+                        .between(lowerPrefix, upper).optArg("index", "label")
+                        .concatMap(e -> e.g("label"))
+                        .filter(l -> l.ge(lowerPrefix).and(l.lt(upper)))
+                        .distinct()
+        );
+    }
+
+    public void close() {
+        labelCache.close();
+    }
+
     public static ReqlFunction3 buildOptargConflictFunction(String comment) {
         return (id, old_doc, new_doc) -> r.branch(buildCheckForChanges(old_doc, new_doc),
                 old_doc,
-                new_doc.merge(r.hashMap("type", old_doc.g("type"))
+                // Fields not part of the event object, like the fingerprint of deduplicated events, are kept
+                old_doc.pluck(DEDUPLICATION_FIELDS).merge(new_doc).merge(r.hashMap("type", old_doc.g("type"))
                         .with("source", old_doc.g("source"))
                         .with("activity", old_doc.g("activity").prepend(r.hashMap("modifiedBy", getCurrentUser())
                                 .with("modifiedTime", r.now())
                                 .with("comment", comment)
-                                .with("description", buildDescription(old_doc, new_doc))))
+                                .with("description", buildDescription(old_doc, new_doc)))
+                                .limit(ACTIVITY_LIMIT))
                 )
         );
     }
 
+    /**
+     * Move activities pushed out of event objects by {@link #buildOptargConflictFunction(String)} to the
+     * event_activity table.
+     * <p>
+     * The insert must be run with return_changes set. The result of the insert is returned unchanged.
+     *
+     * @param insert an insert into the events table
+     * @return the insert followed by an insert of overflowing activities
+     */
+    static ReqlExpr spillActivity(ReqlExpr insert) {
+        return insert.do_(res -> r.table(Tables.EVENT_ACTIVITY.name)
+                .insert(res.g("changes").default_(r.array()).concatMap(c -> overflowingActivity(c.g("old_val"), c.g("new_val"))))
+                .do_(ignore -> res));
+    }
+
+    private static ReqlExpr overflowingActivity(ReqlExpr old_doc, ReqlExpr new_doc) {
+        ReqlExpr oldActivity = old_doc.g("activity").default_(r.array());
+        ReqlExpr newActivity = new_doc.g("activity").default_(r.array());
+        return r.branch(oldActivity.eq(newActivity),
+                r.array(),
+                // One activity was prepended, so everything from ACTIVITY_LIMIT - 1 in the old document was pushed out
+                oldActivity.slice(ACTIVITY_LIMIT - 1).map(a -> a.merge(r.hashMap("eventId", new_doc.g("id")))));
+    }
+
     private static ReqlExpr buildCheckForChanges(ReqlExpr old_doc, ReqlExpr new_doc) {
         ReqlExpr[] checks = new ReqlExpr[changeableFields.length];
 
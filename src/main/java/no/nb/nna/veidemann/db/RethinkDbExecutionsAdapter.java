@@ -17,22 +17,33 @@
 package no.nb.nna.veidemann.db;
 
 import com.google.protobuf.Message;
+import com.google.protobuf.Timestamp;
 import com.rethinkdb.RethinkDB;
+import com.rethinkdb.gen.ast.ReqlExpr;
 import com.rethinkdb.model.MapObject;
 import com.rethinkdb.net.Cursor;
+import no.nb.nna.veidemann.api.config.v1.Kind;
 import no.nb.nna.veidemann.api.frontier.v1.CrawlExecutionStatus;
 import no.nb.nna.veidemann.api.frontier.v1.JobExecutionStatus;
 import no.nb.nna.veidemann.api.report.v1.CrawlExecutionsListRequest;
 import no.nb.nna.veidemann.api.report.v1.JobExecutionsListRequest;
 import no.nb.nna.veidemann.commons.db.ChangeFeed;
 import no.nb.nna.veidemann.commons.db.DbException;
+import no.nb.nna.veidemann.commons.db.DbQueryException;
 import no.nb.nna.veidemann.commons.db.ExecutionsAdapter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 
 public class RethinkDbExecutionsAdapter implements ExecutionsAdapter {
 
@@ -40,10 +51,64 @@ public class RethinkDbExecutionsAdapter implements ExecutionsAdapter {
 
     static final RethinkDB r = RethinkDB.r;
 
+    static final int ABORT_CHUNK_SIZE = 1000;
+
+    /**
+     * Number of update tokens kept on a Crawl Execution for detecting updates which were applied before.
+     */
+    static final int UPDATE_TOKENS_KEPT = 16;
+
+    static final int GET_MANY_CHUNK_SIZE = 1000;
+
+    static final int CREATE_CHUNK_SIZE = 1000;
+
+    static final String WRITE_BEHIND_WINDOW_KEY = "RETHINK_EXECUTIONS_WRITE_BEHIND_MS";
+
+    static final String ARCHIVE_CUTOFF_CACHE_KEY = "RETHINK_ARCHIVE_CUTOFF_CACHE_MS";
+
+    /**
+     * Maximum number of changes queued for a watch. Queued changes to the same execution are coalesced.
+     */
+    static final int WATCH_QUEUE_SIZE = 1000;
+
+    /**
+     * Crawl Executions are versioned by their last change time. Job Executions have no version and are not
+     * deduplicated in watches.
+     */
+    static final ChangeFeedBase.Dedup CRAWL_EXECUTION_DEDUP =
+            ChangeFeedBase.Dedup.byVersion(ce -> ce.get("lastChangeTime"));
+
     private final RethinkDbConnection conn;
 
+    private final CrawlExecutionWriteBehind writeBehind;
+
+    private final ExecutionRollups rollups;
+
+    private final ExecutionArchive archive;
+
+    private final SystemStateWatcher systemState;
+
+    private final DesiredStateWatcher desiredState;
+
+    private final ChangeFeedMultiplexer<JobExecutionStatus> jobExecutionFeeds;
+
+    private final ChangeFeedMultiplexer<CrawlExecutionStatus> crawlExecutionFeeds;
+
     public RethinkDbExecutionsAdapter(RethinkDbConnection conn) {
         this.conn = conn;
+        this.rollups = new ExecutionRollups(conn);
+        this.archive = new ExecutionArchive(conn,
+                Long.parseLong(System.getProperty(ARCHIVE_CUTOFF_CACHE_KEY, "5000")));
+        this.systemState = new SystemStateWatcher(conn);
+        this.desiredState = new DesiredStateWatcher(conn);
+        this.writeBehind = new CrawlExecutionWriteBehind(this,
+                Long.parseLong(System.getProperty(WRITE_BEHIND_WINDOW_KEY, "250")));
+        this.jobExecutionFeeds = new ChangeFeedMultiplexer<>("job-executions",
+                co -> changeToProto(co, JobExecutionStatus.class), JobExecutionStatus::getId,
+                ChangeFeedBase.Dedup.NONE, WATCH_QUEUE_SIZE, ChangeFeedMultiplexer.OverflowPolicy.COALESCE);
+        this.crawlExecutionFeeds = new ChangeFeedMultiplexer<>("crawl-executions",
+                co -> changeToProto(co, CrawlExecutionStatus.class), CrawlExecutionStatus::getId,
+                CRAWL_EXECUTION_DEDUP, WATCH_QUEUE_SIZE, ChangeFeedMultiplexer.OverflowPolicy.COALESCE);
     }
 
     @Override
@@ -66,40 +131,160 @@ public class RethinkDbExecutionsAdapter implements ExecutionsAdapter {
                 JobExecutionStatus.class);
     }
 
+    /**
+     * Create a Job Execution and a Crawl Execution in state CREATED for every enabled seed of the job.
+     * <p>
+     * The ids of the seeds are streamed from the configRefs index. The Crawl Executions are inserted in chunks of
+     * {@link #CREATE_CHUNK_SIZE}. Each chunk is built server side and adds its count to executionsState of the Job
+     * Execution in the same query. If creating Crawl Executions fails, the Job Execution is ended with state FAILED
+     * and the Crawl Executions already created are aborted.
+     *
+     * @param jobId            the id of the crawl job
+     * @param progressListener called after each chunk with the number of seeds processed and Crawl Executions created
+     * @return the Job Execution and counts
+     */
+    public JobExecutionStart startJobExecution(String jobId, ProgressListener progressListener) throws DbException {
+        JobExecutionStatus jes = createJobExecutionStatus(jobId);
+
+        long seedCount = 0;
+        long created = 0;
+        try (Cursor<String> seedIds = conn.exec("db-listSeedIdsForJob",
+                r.table(Tables.SEEDS.name)
+                        .getAll(r.array(Kind.crawlJob.name(), jobId)).optArg("index", "configRefs")
+                        .filter(seed -> seed.g("seed").g("disabled").default_(false).eq(false))
+                        .g("id"))) {
+            List<String> chunk = new ArrayList<>(CREATE_CHUNK_SIZE);
+            while (seedIds.hasNext()) {
+                chunk.add(seedIds.next());
+                if (chunk.size() >= CREATE_CHUNK_SIZE || !seedIds.hasNext()) {
+                    seedCount += chunk.size();
+                    created += createCrawlExecutions(jes, chunk);
+                    progressListener.onProgress(seedCount, created);
+                    chunk.clear();
+                }
+            }
+        } catch (DbException | RuntimeException e) {
+            try {
+                setJobExecutionStateFailed(jes.getId());
+            } catch (DbException | RuntimeException e2) {
+                e.addSuppressed(e2);
+            }
+            throw e;
+        }
+        LOG.debug("Created {} Crawl Executions for {} seeds in Job Execution {}", created, seedCount, jes.getId());
+
+        return new JobExecutionStart(getJobExecutionStatus(jes.getId()), seedCount, created);
+    }
+
+    /**
+     * Create a Job Execution and a Crawl Execution in state CREATED for every enabled seed of the job.
+     *
+     * @param jobId the id of the crawl job
+     * @return the Job Execution and counts
+     * @see #startJobExecution(String, ProgressListener)
+     */
+    public JobExecutionStart startJobExecution(String jobId) throws DbException {
+        return startJobExecution(jobId, ProgressListener.NOOP);
+    }
+
+    /**
+     * End a Job Execution which could not be started and abort the Crawl Executions created for it.
+     */
+    private void setJobExecutionStateFailed(String jobExecutionId) throws DbException {
+        LOG.warn("Failed creating Crawl Executions for Job Execution {}, marking it as failed", jobExecutionId);
+        conn.exec("db-setJobExecutionStateFailed",
+                r.table(Tables.JOB_EXECUTIONS.name)
+                        .get(jobExecutionId)
+                        .update(r.hashMap("state", JobExecutionStatus.State.FAILED.name()).with("endTime", r.now())));
+        abortCrawlExecutions(jobExecutionId, CrawlExecutionStatus.State.ABORTED_MANUAL, ProgressListener.NOOP);
+    }
+
+    private long createCrawlExecutions(JobExecutionStatus jes, List<String> seedIds) throws DbException {
+        String created = CrawlExecutionStatus.State.CREATED.name();
+        Map<String, Object> res = conn.exec("db-createCrawlExecutions",
+                r.table(Tables.EXECUTIONS.name)
+                        .insert(r.expr(seedIds).map(seedId -> r.hashMap("jobId", jes.getJobId())
+                                .with("jobExecutionId", jes.getId())
+                                .with("seedId", seedId)
+                                .with("state", created)
+                                .with("createdTime", r.now())
+                                .with("lastChangeTime", r.now())))
+                        .do_(ins -> r.table(Tables.JOB_EXECUTIONS.name)
+                                .get(jes.getId())
+                                .update(job -> r.hashMap("executionsState",
+                                        executionsStateToObject(job.g("executionsState").default_(r.array()))
+                                                .do_(s -> s.merge(r.object(created,
+                                                        s.g(created).default_(0).add(ins.g("inserted")))))
+                                                .do_(s -> executionsStateToArray(s))))
+                                .do_(ignore -> ins.without("generated_keys"))));
+
+        if (!Long.valueOf(0L).equals(res.get("errors"))) {
+            throw new DbQueryException("Error while creating Crawl Executions for Job Execution "
+                    + jes.getId() + ": " + res.get("first_error"));
+        }
+        return (Long) res.get("inserted");
+    }
+
     @Override
     public JobExecutionStatus getJobExecutionStatus(String jobExecutionId) throws DbException {
         return ProtoUtils.rethinkToProto(conn.exec("db-getJobExecutionStatus",
-                r.table(Tables.JOB_EXECUTIONS.name)
-                        .get(jobExecutionId)
+                ExecutionArchive.get(Tables.JOB_EXECUTIONS, jobExecutionId)
         ), JobExecutionStatus.class);
     }
 
+    /**
+     * Get many Job Executions by id.
+     *
+     * @param jobExecutionIds the ids of the Job Executions
+     * @return a map from id to Job Execution in the iteration order of the ids. Ids which were not found are mapped
+     * to null
+     */
+    public Map<String, JobExecutionStatus> getJobExecutionStatuses(Collection<String> jobExecutionIds) throws DbException {
+        return getMany(Tables.JOB_EXECUTIONS, jobExecutionIds, JobExecutionStatus.class);
+    }
+
     @Override
     public ChangeFeed<JobExecutionStatus> listJobExecutionStatus(JobExecutionsListRequest jobExecutionsListRequest) throws DbException {
         ListJobExecutionQueryBuilder q = new ListJobExecutionQueryBuilder(jobExecutionsListRequest);
+        ListJobExecutionQueryBuilder archived = null;
+        if (!jobExecutionsListRequest.getWatch() && archive.mightContain(Tables.JOB_EXECUTIONS,
+                jobExecutionsListRequest.hasStartTimeFrom() ? jobExecutionsListRequest.getStartTimeFrom() : null)) {
+            archived = new ListJobExecutionQueryBuilder(jobExecutionsListRequest, Tables.JOB_EXECUTIONS_ARCHIVE);
+        }
 
-        Object res = conn.exec("db-listJobExecutions", q.getListQuery());
-        return new ChangeFeedBase<JobExecutionStatus>(res) {
+        if (jobExecutionsListRequest.getWatch()
+                && jobExecutionsListRequest.getPageSize() == 0 && jobExecutionsListRequest.getOffset() == 0) {
+            // Watches for the same query share one change feed which is reopened if the connection is lost
+            return jobExecutionFeeds.subscribe(q.getResumableWatchQuery(false),
+                    () -> new ResumableCursor(conn, "db-listJobExecutions", q::getResumableWatchQuery, null));
+        }
+
+        // Executions being archived might be in both tables
+        ChangeFeedBase.Dedup dedup = archived != null ? ChangeFeedBase.Dedup.byId() : ChangeFeedBase.Dedup.NONE;
+
+        Object res = conn.exec("db-listJobExecutions", q.getListQuery(archived));
+        return new ChangeFeedBase<JobExecutionStatus>(res, dedup) {
             @Override
-            @SuppressWarnings("unchecked")
             protected Function<Map<String, Object>, JobExecutionStatus> mapper() {
-                return co -> {
-                    // In case of a change feed, the real object is stored in new_val
-                    // If new_val is empty, the object is deleted. We skip those.
-                    if (co.containsKey("new_val")) {
-                        co = (Map) co.get("new_val");
-                        if (co == null) {
-                            return null;
-                        }
-                    }
-                    return ProtoUtils.rethinkToProto(co, JobExecutionStatus.class);
-                };
+                return co -> changeToProto(co, JobExecutionStatus.class);
             }
         };
     }
 
     @Override
     public JobExecutionStatus setJobExecutionStateAborted(String jobExecutionId) throws DbException {
+        return setJobExecutionStateAborted(jobExecutionId, ProgressListener.NOOP);
+    }
+
+    /**
+     * Abort a Job Execution and all its Crawl Executions.
+     *
+     * @param jobExecutionId   the id of the Job Execution to abort
+     * @param progressListener listener notified after each chunk of Crawl Executions is processed
+     * @return the updated Job Execution
+     */
+    public JobExecutionStatus setJobExecutionStateAborted(String jobExecutionId, ProgressListener progressListener)
+            throws DbException {
         JobExecutionStatus result = conn.executeUpdate("db-setJobExecutionStateAborted",
                 r.table(Tables.JOB_EXECUTIONS.name)
                         .get(jobExecutionId)
@@ -112,78 +297,206 @@ public class RethinkDbExecutionsAdapter implements ExecutionsAdapter {
                 JobExecutionStatus.class);
 
         // Set all Crawl Executions which are part of this Job Execution to aborted
-        Cursor<Map<String, String>> res = conn.exec("db-setJobExecutionStateAborted",
-                r.table(Tables.EXECUTIONS.name)
-                        .between(
-                                r.array(jobExecutionId, r.minval()),
-                                r.array(jobExecutionId, r.maxval()))
-                        .optArg("index", "jobExecutionId_seedId")
-                        .pluck("id")
-        );
-
-        res.iterator().forEachRemaining(e -> {
-            try {
-                setCrawlExecutionStateAborted(e.get("id"), CrawlExecutionStatus.State.ABORTED_MANUAL);
-            } catch (DbException ex) {
-                LOG.error("Error while aborting Crawl Execution", ex);
-            }
-        });
+        abortCrawlExecutions(jobExecutionId, CrawlExecutionStatus.State.ABORTED_MANUAL, progressListener);
 
         return result;
     }
 
     @Override
     public void setJobExecutionStateAbortedTimeout(String jobExecutionId) throws DbException {
-        // Set all Crawl Executions which are part of this Job Execution to aborted
-        Cursor<Map<String, String>> res = conn.exec("db-setJobExecutionStateAborted",
-                r.table(Tables.EXECUTIONS.name)
-                        .between(
-                                r.array(jobExecutionId, r.minval()),
-                                r.array(jobExecutionId, r.maxval()))
-                        .optArg("index", "jobExecutionId_seedId")
-                        .pluck("id")
-        );
+        setJobExecutionStateAbortedTimeout(jobExecutionId, ProgressListener.NOOP);
+    }
 
-        res.iterator().forEachRemaining(e -> {
-            try {
-                setCrawlExecutionStateAborted(e.get("id"), CrawlExecutionStatus.State.ABORTED_TIMEOUT);
-            } catch (DbException ex) {
-                LOG.error("Error while setting ABORTED_TIMEOUT for Crawl Execution {}", e.get("id"), ex);
+    /**
+     * Set all Crawl Executions which are part of a Job Execution to ABORTED_TIMEOUT.
+     *
+     * @param jobExecutionId   the id of the Job Execution
+     * @param progressListener listener notified after each chunk of Crawl Executions is processed
+     */
+    public void setJobExecutionStateAbortedTimeout(String jobExecutionId, ProgressListener progressListener)
+            throws DbException {
+        abortCrawlExecutions(jobExecutionId, CrawlExecutionStatus.State.ABORTED_TIMEOUT, progressListener);
+    }
+
+    /**
+     * Set desired state for all unfinished Crawl Executions of a Job Execution.
+     * <p>
+     * The update is executed server side in chunks of {@link #ABORT_CHUNK_SIZE} Crawl Executions ordered by the
+     * jobExecutionId_seedId index. Each chunk is one query which only returns counts and the seedId to continue from.
+     * Since the index is not unique, all Crawl Executions for the last seedId in a chunk are fetched by that seedId
+     * before the next chunk continues after it, so executions sharing a seedId across a chunk boundary are not skipped.
+     */
+    @SuppressWarnings("unchecked")
+    private void abortCrawlExecutions(String jobExecutionId, CrawlExecutionStatus.State state,
+                                      ProgressListener progressListener) throws DbException {
+        long processed = 0;
+        long modified = 0;
+        Object lastSeedId = r.minval();
+        boolean first = true;
+
+        while (true) {
+            Map<String, Object> res = conn.exec("db-abortCrawlExecutions",
+                    r.table(Tables.EXECUTIONS.name)
+                            .between(r.array(jobExecutionId, lastSeedId), r.array(jobExecutionId, r.maxval()))
+                            .optArg("index", "jobExecutionId_seedId")
+                            .optArg("left_bound", first ? "closed" : "open")
+                            .orderBy().optArg("index", "jobExecutionId_seedId")
+                            .limit(ABORT_CHUNK_SIZE)
+                            .pluck("id", "seedId")
+                            .coerceTo("array")
+                            .do_(chunk -> r.branch(
+                                    chunk.isEmpty(),
+                                    r.hashMap("chunkSize", 0)
+                                            .with("count", 0)
+                                            .with("lastSeedId", null)
+                                            .with("result", r.hashMap("replaced", 0).with("errors", 0)),
+                                    chunk.nth(-1).g("seedId").do_(last -> chunk
+                                            .filter(row -> row.g("seedId").ne(last))
+                                            .g("id")
+                                            .union(r.table(Tables.EXECUTIONS.name)
+                                                    .getAll(r.array(jobExecutionId, last))
+                                                    .optArg("index", "jobExecutionId_seedId")
+                                                    .g("id"))
+                                            .coerceTo("array")
+                                            .do_(ids -> r.hashMap("chunkSize", chunk.count())
+                                                    .with("count", ids.count())
+                                                    .with("lastSeedId", last)
+                                                    .with("result", r.table(Tables.EXECUTIONS.name)
+                                                            .getAll(r.args(ids))
+                                                            .update(doc -> r.branch(
+                                                                    doc.hasFields("endTime"),
+                                                                    r.hashMap(),
+                                                                    r.hashMap("desiredState", state.name())))))))));
+
+            Map<String, Object> result = (Map<String, Object>) res.get("result");
+            if (!Long.valueOf(0L).equals(result.get("errors"))) {
+                throw new DbQueryException("Error while aborting Crawl Executions for Job Execution "
+                        + jobExecutionId + ": " + result.get("first_error"));
             }
-        });
+
+            processed += (Long) res.get("count");
+            modified += (Long) result.get("replaced");
+            progressListener.onProgress(processed, modified);
+
+            if ((Long) res.get("chunkSize") < ABORT_CHUNK_SIZE) {
+                break;
+            }
+            lastSeedId = res.get("lastSeedId");
+            first = false;
+        }
+        LOG.debug("Set desired state {} for {} of {} Crawl Executions in Job Execution {}",
+                state, modified, processed, jobExecutionId);
     }
 
     @Override
     public CrawlExecutionStatus getCrawlExecutionStatus(String crawlExecutionId) throws DbException {
         Map<String, Object> response = conn.exec("db-getExecutionStatus",
-                r.table(Tables.EXECUTIONS.name)
-                        .get(crawlExecutionId)
+                ExecutionArchive.get(Tables.EXECUTIONS, crawlExecutionId)
         );
 
         return ProtoUtils.rethinkToProto(response, CrawlExecutionStatus.class);
     }
 
+    /**
+     * Get many Crawl Executions by id.
+     *
+     * @param crawlExecutionIds the ids of the Crawl Executions
+     * @return a map from id to Crawl Execution in the iteration order of the ids. Ids which were not found are mapped
+     * to null
+     */
+    public Map<String, CrawlExecutionStatus> getCrawlExecutionStatuses(Collection<String> crawlExecutionIds) throws DbException {
+        return getMany(Tables.EXECUTIONS, crawlExecutionIds, CrawlExecutionStatus.class);
+    }
+
+    /**
+     * Get the most recently created Crawl Execution for each of a list of seeds.
+     * <p>
+     * The lookup uses the seedId_createdTime index and is done for a chunk of {@link #GET_MANY_CHUNK_SIZE} seeds per
+     * query. For seeds with no Crawl Execution in the hot table, the archive is searched.
+     *
+     * @param seedIds the ids of the seeds
+     * @return a map from seed id to Crawl Execution in the order of the seed ids. Seeds with no Crawl Execution are
+     * mapped to null
+     */
+    @SuppressWarnings("unchecked")
+    public Map<String, CrawlExecutionStatus> getLatestCrawlExecutions(List<String> seedIds) throws DbException {
+        Map<String, CrawlExecutionStatus> result = new LinkedHashMap<>();
+        seedIds.forEach(id -> result.put(id, null));
+
+        List<String> distinctIds = new ArrayList<>(result.keySet());
+        for (int i = 0; i < distinctIds.size(); i += GET_MANY_CHUNK_SIZE) {
+            List<String> chunk = distinctIds.subList(i, Math.min(i + GET_MANY_CHUNK_SIZE, distinctIds.size()));
+            List<Map<String, Object>> docs = conn.exec("db-getLatestCrawlExecutions",
+                    r.expr(chunk).map(seedId -> latestBySeed(Tables.EXECUTIONS, seedId)
+                            .do_(latest -> r.branch(latest.isEmpty(),
+                                    latestBySeed(Tables.EXECUTIONS_ARCHIVE, seedId), latest))
+                            .nth(0).default_((Object) null)));
+            for (int j = 0; j < chunk.size(); j++) {
+                if (docs.get(j) != null) {
+                    result.put(chunk.get(j), ProtoUtils.rethinkToProto(docs.get(j), CrawlExecutionStatus.class));
+                }
+            }
+        }
+        return result;
+    }
+
+    private static ReqlExpr latestBySeed(Tables table, ReqlExpr seedId) {
+        return r.table(table.name)
+                .between(r.array(seedId, r.minval()), r.array(seedId, r.maxval()))
+                .optArg("index", "seedId_createdTime")
+                .orderBy().optArg("index", r.desc("seedId_createdTime"))
+                .limit(1)
+                .coerceTo("array");
+    }
+
+    /**
+     * Get documents by id in chunks of {@link #GET_MANY_CHUNK_SIZE}, falling back to the archive table. The
+     * documents are converted to protobuf in parallel.
+     */
+    private <T extends Message> Map<String, T> getMany(Tables table, Collection<String> ids, Class<T> type)
+            throws DbException {
+        Map<String, T> result = new LinkedHashMap<>();
+        ids.forEach(id -> result.put(id, null));
+
+        List<String> distinctIds = new ArrayList<>(result.keySet());
+        for (int i = 0; i < distinctIds.size(); i += GET_MANY_CHUNK_SIZE) {
+            List<String> chunk = distinctIds.subList(i, Math.min(i + GET_MANY_CHUNK_SIZE, distinctIds.size()));
+            List<Map<String, Object>> docs = conn.exec("db-getMany-" + table.name,
+                    ExecutionArchive.getAll(table, chunk).coerceTo("array"));
+            // A document might be found in both tables if archiving was interrupted, they are equal so keep either
+            Map<String, T> decoded = docs.parallelStream()
+                    .collect(Collectors.toConcurrentMap(doc -> (String) doc.get("id"),
+                            doc -> ProtoUtils.rethinkToProto(doc, type), (a, b) -> a));
+            result.putAll(decoded);
+        }
+        return result;
+    }
+
     @Override
     public ChangeFeed<CrawlExecutionStatus> listCrawlExecutionStatus(CrawlExecutionsListRequest crawlExecutionsListRequest) throws DbException {
         ListCrawlExecutionQueryBuilder q = new ListCrawlExecutionQueryBuilder(crawlExecutionsListRequest);
+        ListCrawlExecutionQueryBuilder archived = null;
+        if (!crawlExecutionsListRequest.getWatch() && archive.mightContain(Tables.EXECUTIONS,
+                crawlExecutionsListRequest.hasStartTimeFrom() ? crawlExecutionsListRequest.getStartTimeFrom() : null)) {
+            archived = new ListCrawlExecutionQueryBuilder(crawlExecutionsListRequest, Tables.EXECUTIONS_ARCHIVE);
+        }
+
+        if (crawlExecutionsListRequest.getWatch()
+                && crawlExecutionsListRequest.getPageSize() == 0 && crawlExecutionsListRequest.getOffset() == 0) {
+            // Watches for the same query share one change feed which is reopened if the connection is lost
+            return crawlExecutionFeeds.subscribe(q.getResumableWatchQuery(false),
+                    () -> new ResumableCursor(conn, "db-listCrawlExecutions", q::getResumableWatchQuery, "lastChangeTime"));
+        }
+
+        // Executions being archived might be in both tables
+        ChangeFeedBase.Dedup dedup = crawlExecutionsListRequest.getWatch() ? CRAWL_EXECUTION_DEDUP
+                : archived != null ? ChangeFeedBase.Dedup.byId() : ChangeFeedBase.Dedup.NONE;
 
-        Object res = conn.exec("db-listCrawlExecutions", q.getListQuery());
-        return new ChangeFeedBase<CrawlExecutionStatus>(res) {
+        Object res = conn.exec("db-listCrawlExecutions", q.getListQuery(archived));
+        return new ChangeFeedBase<CrawlExecutionStatus>(res, dedup) {
             @Override
-            @SuppressWarnings("unchecked")
             protected Function<Map<String, Object>, CrawlExecutionStatus> mapper() {
-                return co -> {
-                    // In case of a change feed, the real object is stored in new_val
-                    // If new_val is empty, the object is deleted. We skip those.
-                    if (co.containsKey("new_val")) {
-                        co = (Map) co.get("new_val");
-                        if (co == null) {
-                            return null;
-                        }
-                    }
-                    CrawlExecutionStatus res = ProtoUtils.rethinkToProto(co, CrawlExecutionStatus.class);
-                    return res;
-                };
+                return co -> changeToProto(co, CrawlExecutionStatus.class);
             }
         };
     }
@@ -211,6 +524,294 @@ public class RethinkDbExecutionsAdapter implements ExecutionsAdapter {
         }
     }
 
+    /**
+     * Subscribe to the desired state of a running Crawl Execution.
+     * <p>
+     * The listener is called when the Crawl Execution is requested to abort, either directly by
+     * {@link #setCrawlExecutionStateAborted(String, CrawlExecutionStatus.State)} or through its Job Execution. If a
+     * desired state is already set, the listener is called before this method returns. One change feed is shared by
+     * all subscriptions, so there is no per execution load on the database. Only one listener can be registered per
+     * Crawl Execution, subscribing again replaces the previous listener.
+     * <p>
+     * Callbacks are executed on a shared watcher thread and should return quickly. The listener might be called again
+     * with an unchanged value, e.g. after a reconnect to the database.
+     *
+     * @param crawlExecutionId the id of the Crawl Execution
+     * @param listener         called with the desired state
+     * @return a handle which unsubscribes the listener when closed
+     */
+    public AutoCloseable subscribeCrawlExecutionDesiredState(String crawlExecutionId,
+                                                             Consumer<CrawlExecutionStatus.State> listener) throws DbException {
+        desiredState.register(crawlExecutionId, listener);
+        return () -> desiredState.unregister(crawlExecutionId, listener);
+    }
+
+    /**
+     * Update a Crawl Execution and the aggregated statistics of the Job Execution it belongs to.
+     * <p>
+     * Counters in the update are added to the stored values and the change in counters and state is applied to the
+     * Job Execution in the same query, keeping the Job Execution statistics current without scanning its Crawl
+     * Executions.
+     *
+     * @param update the change to apply
+     * @return the updated Crawl Execution or null if it does not exist
+     */
+    @SuppressWarnings("unchecked")
+    public CrawlExecutionStatus updateCrawlExecutionStatus(CrawlExecutionUpdate update) throws DbException {
+        Map<String, Object> response = conn.exec("db-updateCrawlExecutionStatus",
+                updateCrawlExecution(r.expr(update.toRethink()))
+                        .do_(res -> res.merge(r.hashMap("jobExecution", updateJobExecutionStats(res))))
+        );
+
+        List<Map<String, Map>> changes = (List<Map<String, Map>>) response.get("changes");
+        if (changes == null || changes.isEmpty() || changes.get(0).get("new_val") == null) {
+            return null;
+        }
+        return ProtoUtils.rethinkToProto(changes.get(0).get("new_val"), CrawlExecutionStatus.class);
+    }
+
+    /**
+     * Update a batch of Crawl Executions and the aggregated statistics of their Job Executions in one query.
+     * <p>
+     * Each Crawl Execution should occur at most once in the batch. The batch is not applied atomically, but updates
+     * which were applied before are skipped, so a batch which failed can be written again.
+     *
+     * @param updates the changes to apply
+     */
+    public void updateCrawlExecutionStatuses(Collection<CrawlExecutionUpdate> updates) throws DbException {
+        if (updates.isEmpty()) {
+            return;
+        }
+        List<MapObject> batch = updates.stream().map(CrawlExecutionUpdate::toRethink).collect(Collectors.toList());
+        conn.exec("db-updateCrawlExecutionStatuses",
+                r.expr(batch).forEach(u -> updateCrawlExecution(u)
+                        .do_(res -> r.array(res.without("changes"), updateJobExecutionStats(res))))
+        );
+    }
+
+    /**
+     * Queue an update of a Crawl Execution in the write-behind buffer.
+     * <p>
+     * Updates for the same Crawl Execution are coalesced and written in batches. Updates changing the state are
+     * written before this method returns, together with everything else in the buffer.
+     *
+     * @param update the change to apply
+     * @see CrawlExecutionWriteBehind
+     */
+    public void updateCrawlExecutionStatusBuffered(CrawlExecutionUpdate update) throws DbException {
+        writeBehind.submit(update);
+    }
+
+    /**
+     * Write all buffered Crawl Execution updates.
+     */
+    public void flushCrawlExecutionUpdates() throws DbException {
+        writeBehind.flush();
+    }
+
+    /**
+     * Roll up Crawl Executions and Job Executions which have ended since the last call into hourly and daily
+     * aggregates.
+     * <p>
+     * This method is meant to be called periodically. Only executions ended since the previous call are read.
+     */
+    public void updateExecutionRollups() throws DbException {
+        rollups.update();
+    }
+
+    /**
+     * List hourly or daily aggregates of ended executions.
+     *
+     * @param granularity the size of the time buckets
+     * @param type        list aggregates for Crawl Executions or Job Executions
+     * @param jobId       only list aggregates for this job, or for all jobs if null
+     * @param from        start of time range (inclusive)
+     * @param to          end of time range (exclusive)
+     * @return the aggregates ordered by time bucket
+     * @see #updateExecutionRollups()
+     */
+    public List<ExecutionRollup> listExecutionRollups(ExecutionRollup.Granularity granularity, ExecutionRollup.Type type,
+                                                      String jobId, Timestamp from, Timestamp to) throws DbException {
+        return rollups.list(granularity, type, jobId, from, to);
+    }
+
+    /**
+     * Move Crawl Executions and Job Executions which ended more than a retention period ago to the archive tables.
+     * <p>
+     * Rollups are updated before archiving so that no executions are archived before they are rolled up. Archived
+     * executions are still returned by the get and list methods, but list requests with a start time range after
+     * the archived period are served from the hot tables only. Watch requests only see the hot tables.
+     *
+     * @param retention        how long to keep ended executions in the hot tables
+     * @param progressListener called after each chunk with the number of executions archived so far
+     */
+    public void archiveExecutions(Duration retention, ProgressListener progressListener) throws DbException {
+        rollups.update();
+        OffsetDateTime cutoff = ((OffsetDateTime) conn.exec("db-getServerTime", r.now())).minus(retention);
+        archive.archive(cutoff, progressListener);
+    }
+
+    /**
+     * Move Crawl Executions and Job Executions which ended more than a retention period ago to the archive tables.
+     *
+     * @param retention how long to keep ended executions in the hot tables
+     * @see #archiveExecutions(Duration, ProgressListener)
+     */
+    public void archiveExecutions(Duration retention) throws DbException {
+        archiveExecutions(retention, ProgressListener.NOOP);
+    }
+
+    /**
+     * Flush buffered writes and release resources.
+     */
+    public void close() {
+        writeBehind.close();
+        systemState.close();
+        desiredState.close();
+        jobExecutionFeeds.close();
+        crawlExecutionFeeds.close();
+    }
+
+    /**
+     * Convert a query result to a proto. In case of a change feed, the real object is stored in new_val.
+     *
+     * @return the proto, or null if the object was deleted
+     */
+    @SuppressWarnings("unchecked")
+    private static <M extends Message> M changeToProto(Map<String, Object> co, Class<M> type) {
+        if (co.containsKey("new_val")) {
+            co = (Map) co.get("new_val");
+            if (co == null) {
+                return null;
+            }
+        }
+        return ProtoUtils.rethinkToProto(co, type);
+    }
+
+    /**
+     * Build an update of a Crawl Execution from an update object as created by {@link CrawlExecutionUpdate#toRethink()}.
+     * The returned write result always includes the changes.
+     * <p>
+     * The tokens of the last {@link #UPDATE_TOKENS_KEPT} updates are stored in the field updateTokens. If the Crawl
+     * Execution already has the token, the update has been applied before and is skipped. The change is then reported
+     * with equal old and new values, so the Job Execution statistics are not updated either. Keeping more than one
+     * token lets a failed batch be retried even if other updates were applied to the Crawl Execution in between.
+     */
+    private static ReqlExpr updateCrawlExecution(ReqlExpr u) {
+        return r.table(Tables.EXECUTIONS.name)
+                .get(u.g("id"))
+                .update(doc -> r.branch(doc.g("updateTokens").default_(r.array()).contains(u.g("token")),
+                        r.hashMap(),
+                        u.g("set")
+                                .merge(r.hashMap("lastChangeTime", r.now())
+                                        .with("updateTokens", r.array(u.g("token"))
+                                                .add(doc.g("updateTokens").default_(r.array()))
+                                                .limit(UPDATE_TOKENS_KEPT)))
+                                .merge(u.g("add").coerceTo("array")
+                                        .map(kv -> r.array(kv.nth(0), doc.g(kv.nth(0)).default_(0).add(kv.nth(1))))
+                                        .coerceTo("object"))))
+                .optArg("return_changes", "always");
+    }
+
+    /**
+     * Build a query applying the changes in a Crawl Execution write result to the aggregated statistics of the
+     * Job Executions.
+     */
+    private static ReqlExpr updateJobExecutionStats(ReqlExpr writeResult) {
+        return writeResult.g("changes")
+                .forEach(change -> updateJobExecutionStats(change.g("old_val"), change.g("new_val")));
+    }
+
+    /**
+     * Build a query applying the difference between two versions of a Crawl Execution to the aggregated statistics
+     * of its Job Execution.
+     * <p>
+     * Counters are adjusted by the difference between the new and old values and the per state count in
+     * executionsState is moved from the old state to the new state. A null old value represents a newly created
+     * Crawl Execution. The count for the old state is only decremented if it exists, so drifted statistics never get
+     * negative counts.
+     *
+     * @param oldVal the Crawl Execution before the change
+     * @param newVal the Crawl Execution after the change
+     * @return the update query for the Job Execution
+     */
+    static ReqlExpr updateJobExecutionStats(ReqlExpr oldVal, ReqlExpr newVal) {
+        ReqlExpr oldState = oldVal.g("state").default_((Object) null);
+        ReqlExpr newState = newVal.g("state").default_((Object) null);
+
+        return r.branch(newVal.hasFields("jobExecutionId"),
+                r.table(Tables.JOB_EXECUTIONS.name)
+                        .get(newVal.g("jobExecutionId"))
+                        .update(job -> {
+                            MapObject m = r.hashMap();
+                            for (String f : CrawlExecutionUpdate.STAT_FIELDS) {
+                                m.with(f, job.g(f).default_(0)
+                                        .add(newVal.g(f).default_(0))
+                                        .sub(oldVal.g(f).default_(0)));
+                            }
+                            m.with("executionsState", r.branch(oldState.eq(newState),
+                                    job.g("executionsState").default_(r.array()),
+                                    executionsStateToObject(job.g("executionsState").default_(r.array()))
+                                            .do_(s -> r.branch(oldState.eq(null).or(s.hasFields(oldState).not()), s,
+                                                    s.merge(r.object(oldState, s.g(oldState).sub(1)))))
+                                            .do_(s -> r.branch(newState.eq(null), s,
+                                                    s.merge(r.object(newState, s.g(newState).default_(0).add(1)))))
+                                            .do_(s -> executionsStateToArray(s))));
+                            return m;
+                        }),
+                r.hashMap("skipped", 1));
+    }
+
+    /**
+     * The executionsState map is stored as an array of single entry objects. Convert it to one object.
+     */
+    private static ReqlExpr executionsStateToObject(ReqlExpr executionsState) {
+        return r.expr(r.array(r.hashMap())).add(executionsState).reduce((left, right) -> left.merge(right));
+    }
+
+    /**
+     * Convert an object to the array of single entry objects used for storing the executionsState map.
+     * Entries with a count of zero or less are removed.
+     */
+    private static ReqlExpr executionsStateToArray(ReqlExpr executionsState) {
+        return executionsState.coerceTo("array")
+                .filter(kv -> kv.nth(1).gt(0))
+                .map(kv -> r.object(kv.nth(0), kv.nth(1)));
+    }
+
+    /**
+     * Recalculate the aggregated statistics of a Job Execution from its Crawl Executions.
+     * <p>
+     * The statistics are normally maintained incrementally by {@link #updateCrawlExecutionStatus(CrawlExecutionUpdate)}.
+     * This method repairs drift caused by Crawl Executions modified by other means. It scans all Crawl Executions of
+     * the Job Execution.
+     *
+     * @param jobExecutionId the id of the Job Execution
+     * @return the updated Job Execution
+     */
+    public JobExecutionStatus rebuildJobExecutionStats(String jobExecutionId) throws DbException {
+        Map<String, Object> stats = summarizeJobExecutionStats(jobExecutionId);
+
+        MapObject m = r.hashMap();
+        for (String f : CrawlExecutionUpdate.STAT_FIELDS) {
+            m.with(f, stats.get(f));
+        }
+        List<Map<String, Object>> executionsState = r.array();
+        for (CrawlExecutionStatus.State s : CrawlExecutionStatus.State.values()) {
+            Object count = stats.get(s.name());
+            if (count instanceof Number && ((Number) count).longValue() != 0) {
+                executionsState.add(r.hashMap(s.name(), count));
+            }
+        }
+        m.with("executionsState", executionsState);
+
+        return conn.executeUpdate("db-rebuildJobExecutionStats",
+                r.table(Tables.JOB_EXECUTIONS.name)
+                        .get(jobExecutionId)
+                        .update(m),
+                JobExecutionStatus.class);
+    }
+
     @Override
     @SuppressWarnings("unchecked")
     public boolean setDesiredPausedState(boolean value) throws DbException {
@@ -222,6 +823,7 @@ public class RethinkDbExecutionsAdapter implements ExecutionsAdapter {
                         .optArg("conflict", "update")
                         .optArg("return_changes", "always")
         );
+        systemState.expect(state.get("changes").get(0).get("new_val"));
         Map oldValue = state.get("changes").get(0).get("old_val");
         if (oldValue == null || (Boolean) oldValue.computeIfAbsent(key, k -> Boolean.FALSE) == false) {
             return false;
@@ -232,8 +834,13 @@ public class RethinkDbExecutionsAdapter implements ExecutionsAdapter {
 
     @Override
     public boolean getDesiredPausedState() throws DbException {
-        String id = "state";
-        String key = "shouldPause";
+        systemState.start();
+        if (systemState.isCurrent()) {
+            return systemState.isPaused();
+        }
+
+        String id = SystemStateWatcher.STATE_ID;
+        String key = SystemStateWatcher.SHOULD_PAUSE;
         Map<String, Object> state = conn.exec("get-paused",
                 r.table(Tables.SYSTEM.name)
                         .get(id)
@@ -244,14 +851,47 @@ public class RethinkDbExecutionsAdapter implements ExecutionsAdapter {
         return (Boolean) state.computeIfAbsent(key, k -> Boolean.FALSE);
     }
 
-    private Map summarizeJobExecutionStats(String jobExecutionId) throws DbException {
-        String[] EXECUTIONS_STAT_FIELDS = new String[]{"documentsCrawled", "documentsDenied",
-                "documentsFailed", "documentsOutOfScope", "documentsRetried", "urisCrawled", "bytesCrawled"};
+    /**
+     * Subscribe to changes of the desired paused state.
+     * <p>
+     * The listener is called with the current value when the subscription is established, and then every time the
+     * value changes. Callbacks, including the first, are executed on a shared notifier thread and should return
+     * quickly.
+     * The listener might be called again with an unchanged value, e.g. after a reconnect to the database.
+     *
+     * @param listener called with the desired paused state
+     * @return a handle which unsubscribes the listener when closed
+     */
+    public AutoCloseable subscribeDesiredPausedState(Consumer<Boolean> listener) {
+        return subscribeSystemState(state -> listener.accept(Boolean.TRUE.equals(state.get(SystemStateWatcher.SHOULD_PAUSE))));
+    }
+
+    /**
+     * Subscribe to changes of the flags in the system state document.
+     * <p>
+     * The listener is called with the current flags when the subscription is established, and then every time the
+     * flags change. Callbacks, including the first, are executed on a shared notifier thread and should return
+     * quickly.
+     * The listener might be called again with an unchanged value, e.g. after a reconnect to the database.
+     *
+     * @param listener called with an unmodifiable map of the flags
+     * @return a handle which unsubscribes the listener when closed
+     */
+    public AutoCloseable subscribeSystemState(Consumer<Map<String, Object>> listener) {
+        systemState.addListener(listener);
+        return () -> systemState.removeListener(listener);
+    }
+
+    private Map<String, Object> summarizeJobExecutionStats(String jobExecutionId) throws DbException {
+        String[] EXECUTIONS_STAT_FIELDS = CrawlExecutionUpdate.STAT_FIELDS;
 
         return conn.exec("db-summarizeJobExecutionStats",
                 r.table(Tables.EXECUTIONS.name)
                         .between(r.array(jobExecutionId, r.minval()), r.array(jobExecutionId, r.maxval()))
                         .optArg("index", "jobExecutionId_seedId")
+                        .union(r.table(Tables.EXECUTIONS_ARCHIVE.name)
+                                .between(r.array(jobExecutionId, r.minval()), r.array(jobExecutionId, r.maxval()))
+                                .optArg("index", "jobExecutionId_seedId"))
                         .map(doc -> {
                                     MapObject m = r.hashMap();
                                     for (String f : EXECUTIONS_STAT_FIELDS) {
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2020 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.nb.nna.veidemann.db;
+
+import com.rethinkdb.gen.ast.ReqlExpr;
+import no.nb.nna.veidemann.api.config.v1.ConfigObject;
+import no.nb.nna.veidemann.api.config.v1.Kind;
+import no.nb.nna.veidemann.api.config.v1.Role;
+import no.nb.nna.veidemann.api.config.v1.RoleMapping;
+import no.nb.nna.veidemann.commons.db.DbConnectionException;
+import no.nb.nna.veidemann.commons.db.DbQueryException;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory lookup of roles by email or group.
+ * <p>
+ * The role mappings are kept current by a change feed on the config table. Until the feed has delivered the initial
+ * state, lookups are served from the database using the {@link #ROLE_MAPPING_INDEX} index.
+ */
+class RoleMappingCache extends ChangeFeedWatcher {
+    static final String ROLE_MAPPING_INDEX = "roleMapping_emailOrGroup";
+
+    private final Map<String, RoleMapping> mappings = new HashMap<>();
+
+    private volatile Snapshot snapshot = new Snapshot(Collections.emptyMap(), Collections.emptyMap());
+
+    RoleMappingCache(RethinkDbConnection conn) {
+        super(conn, "roleMapping");
+    }
+
+    /**
+     * Get the union of roles mapped to an email or any of a set of groups.
+     *
+     * @param email  the email of the principal, might be null
+     * @param groups the groups the principal is member of
+     * @return the roles for the principal
+     */
+    Set<Role> getRolesForPrincipal(String email, Collection<String> groups) throws DbQueryException, DbConnectionException {
+        start();
+
+        Set<Role> roles = EnumSet.noneOf(Role.class);
+        if (isReady()) {
+            Snapshot s = snapshot;
+            if (email != null) {
+                roles.addAll(s.byEmail.getOrDefault(email, Collections.emptySet()));
+            }
+            if (groups != null) {
+                for (String group : groups) {
+                    roles.addAll(s.byGroup.getOrDefault(group, Collections.emptySet()));
+                }
+            }
+        } else {
+            roles.addAll(lookupInDb(email, groups));
+        }
+        return roles;
+    }
+
+    private Set<Role> lookupInDb(String email, Collection<String> groups) throws DbQueryException, DbConnectionException {
+        List<Object> keys = r.array();
+        if (email != null) {
+            keys.add(r.array("email", email));
+        }
+        if (groups != null) {
+            for (String group : groups) {
+                keys.add(r.array("group", group));
+            }
+        }
+
+        Set<Role> roles = EnumSet.noneOf(Role.class);
+        if (keys.isEmpty()) {
+            return roles;
+        }
+
+        List<String> res = conn.exec("db-getRolesForPrincipal",
+                r.table(Tables.CONFIG.name)
+                        .getAll(r.args(keys)).optArg("index", ROLE_MAPPING_INDEX)
+                        .concatMap(doc -> doc.g("roleMapping").g("role").default_(r.array()))
+                        .distinct()
+        );
+        res.forEach(role -> roles.add(Role.valueOf(role)));
+        return roles;
+    }
+
+    @Override
+    ReqlExpr changeFeedQuery() {
+        return r.table(Tables.CONFIG.name)
+                .filter(doc -> doc.g("kind").eq(Kind.roleMapping.name()))
+                .changes()
+                .optArg("include_initial", true)
+                .optArg("include_states", true);
+    }
+
+    @Override
+    void onSubscribed() {
+        mappings.clear();
+    }
+
+    @Override
+    void onChange(Map<String, Object> oldVal, Map<String, Object> newVal) {
+        if (oldVal != null) {
+            mappings.remove(oldVal.get("id"));
+        }
+        if (newVal != null) {
+            ConfigObject co = ProtoUtils.rethinkToProto(newVal, ConfigObject.class);
+            mappings.put(co.getId(), co.getRoleMapping());
+        }
+        if (isReady()) {
+            publish();
+        }
+    }
+
+    @Override
+    void onReady() {
+        publish();
+    }
+
+    private void publish() {
+        Map<String, Set<Role>> byEmail = new HashMap<>();
+        Map<String, Set<Role>> byGroup = new HashMap<>();
+        for (RoleMapping rm : mappings.values()) {
+            if (!rm.getEmail().isEmpty()) {
+                byEmail.computeIfAbsent(rm.getEmail(), k -> EnumSet.noneOf(Role.class)).addAll(rm.getRoleList());
+            }
+            if (!rm.getGroup().isEmpty()) {
+                byGroup.computeIfAbsent(rm.getGroup(), k -> EnumSet.noneOf(Role.class)).addAll(rm.getRoleList());
+            }
+        }
+        snapshot = new Snapshot(byEmail, byGroup);
+    }
+
+    private static class Snapshot {
+        final Map<String, Set<Role>> byEmail;
+        final Map<String, Set<Role>> byGroup;
+
+        Snapshot(Map<String, Set<Role>> byEmail, Map<String, Set<Role>> byGroup) {
+            this.byEmail = byEmail;
+            this.byGroup = byGroup;
+        }
+    }
+}
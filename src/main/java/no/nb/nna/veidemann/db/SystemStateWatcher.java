@@ -0,0 +1,222 @@
+/*
+ * Copyright 2020 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.nb.nna.veidemann.db;
+
+import com.rethinkdb.gen.ast.ReqlExpr;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * In-memory copy of the flags in the {@code state} document of the system table.
+ * <p>
+ * The flags are kept current by a change feed, so reading them is a memory read. Listeners are notified whenever the
+ * flags change, and with the current flags every time the feed is (re)established. All notifications are executed in
+ * order on one notifier thread shared by all listeners.
+ * <p>
+ * After a local write, the watcher reports that it is not current until the feed has delivered the written flags or
+ * {@link #EXPECT_TIMEOUT_MILLIS} has passed, so that callers can read their own writes from the database meanwhile.
+ */
+class SystemStateWatcher extends ChangeFeedWatcher {
+    private static final Logger LOG = LoggerFactory.getLogger(SystemStateWatcher.class);
+
+    static final String STATE_ID = "state";
+
+    static final String SHOULD_PAUSE = "shouldPause";
+
+    static final long EXPECT_TIMEOUT_MILLIS = 5000;
+
+    private final List<Consumer<Map<String, Object>>> listeners = new CopyOnWriteArrayList<>();
+
+    private volatile Map<String, Object> state = Collections.emptyMap();
+
+    private volatile boolean paused;
+
+    private volatile Map<String, Object> expected;
+
+    private volatile long expectedDeadline;
+
+    private final ThreadPoolExecutor notifier = new ThreadPoolExecutor(0, 1, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), runnable -> {
+        Thread t = new Thread(runnable, "changefeed-" + name + "-listeners");
+        t.setDaemon(true);
+        return t;
+    }, new ThreadPoolExecutor.DiscardPolicy());
+
+    /**
+     * True when the initial flags of the current subscription are delivered. Guarded by the lock on
+     * {@link #listeners}.
+     */
+    private boolean loaded;
+
+    SystemStateWatcher(RethinkDbConnection conn) {
+        super(conn, "systemState");
+    }
+
+    /**
+     * @return true if the feed is ready and has delivered the flags of the last local write
+     */
+    boolean isCurrent() {
+        if (!isReady()) {
+            return false;
+        }
+        if (expected != null && System.nanoTime() - expectedDeadline > 0) {
+            expected = null;
+        }
+        return expected == null;
+    }
+
+    /**
+     * Tell the watcher that the state document was written by this process.
+     *
+     * @param newVal the state document after the write
+     */
+    void expect(Map<String, Object> newVal) {
+        expectedDeadline = System.nanoTime() + EXPECT_TIMEOUT_MILLIS * 1_000_000;
+        expected = toFlags(newVal);
+    }
+
+    /**
+     * Only valid when {@link #isReady()} returns true.
+     *
+     * @return the desired paused state
+     */
+    boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * Only valid when {@link #isReady()} returns true.
+     *
+     * @return the flags of the state document
+     */
+    Map<String, Object> getState() {
+        return state;
+    }
+
+    /**
+     * Add a listener. If the flags are loaded, the listener is notified with the current flags.
+     *
+     * @param listener called with an unmodifiable map of the flags
+     */
+    void addListener(Consumer<Map<String, Object>> listener) {
+        synchronized (listeners) {
+            listeners.add(listener);
+            if (loaded) {
+                Map<String, Object> current = state;
+                notifier.execute(() -> notifyListener(listener, current));
+            }
+        }
+        start();
+    }
+
+    void removeListener(Consumer<Map<String, Object>> listener) {
+        listeners.remove(listener);
+    }
+
+    @Override
+    ReqlExpr changeFeedQuery() {
+        return r.table(Tables.SYSTEM.name)
+                .get(STATE_ID)
+                .changes()
+                .optArg("include_initial", true)
+                .optArg("include_states", true);
+    }
+
+    @Override
+    void onChange(Map<String, Object> oldVal, Map<String, Object> newVal) {
+        Map<String, Object> newState = toFlags(newVal);
+        if (newState.equals(expected)) {
+            expected = null;
+        }
+        if (newState.equals(state)) {
+            return;
+        }
+
+        synchronized (listeners) {
+            state = newState;
+            paused = Boolean.TRUE.equals(newState.get(SHOULD_PAUSE));
+
+            if (loaded) {
+                notifyListeners();
+            }
+        }
+    }
+
+    /**
+     * Notify listeners after each subscription since changes might have been missed while disconnected.
+     */
+    @Override
+    void onSubscribed() {
+        synchronized (listeners) {
+            loaded = false;
+        }
+    }
+
+    @Override
+    void onReady() {
+        synchronized (listeners) {
+            loaded = true;
+            notifyListeners();
+        }
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        notifier.shutdownNow();
+    }
+
+    /**
+     * Queue a notification of all listeners with the current flags. Must be called while holding the lock on
+     * {@link #listeners} to keep notifications in order.
+     */
+    private void notifyListeners() {
+        Map<String, Object> current = state;
+        notifier.execute(() -> {
+            for (Consumer<Map<String, Object>> listener : listeners) {
+                notifyListener(listener, current);
+            }
+        });
+    }
+
+    private void notifyListener(Consumer<Map<String, Object>> listener, Map<String, Object> flags) {
+        try {
+            listener.accept(flags);
+        } catch (RuntimeException e) {
+            LOG.warn("System state listener failed", e);
+        }
+    }
+
+    private static Map<String, Object> toFlags(Map<String, Object> doc) {
+        Map<String, Object> flags = new HashMap<>();
+        if (doc != null) {
+            flags.putAll(doc);
+        }
+        flags.remove("id");
+        return Collections.unmodifiableMap(flags);
+    }
+}
@@ -4,6 +4,7 @@ import com.google.protobuf.Message;
 import no.nb.nna.veidemann.api.config.v1.ConfigObject;
 import no.nb.nna.veidemann.api.contentwriter.v1.CrawledContent;
 import no.nb.nna.veidemann.api.contentwriter.v1.StorageRef;
+import no.nb.nna.veidemann.api.eventhandler.v1.Activity;
 import no.nb.nna.veidemann.api.eventhandler.v1.EventObject;
 import no.nb.nna.veidemann.api.frontier.v1.CrawlExecutionStatus;
 import no.nb.nna.veidemann.api.frontier.v1.JobExecutionStatus;
@@ -18,7 +19,11 @@ public enum Tables {
     JOB_EXECUTIONS("job_executions", JobExecutionStatus.getDefaultInstance()),
     CRAWL_ENTITIES("config_crawl_entities", ConfigObject.getDefaultInstance()),
     SEEDS("config_seeds", ConfigObject.getDefaultInstance()),
-    EVENTS("events", EventObject.getDefaultInstance());
+    EVENTS("events", EventObject.getDefaultInstance()),
+    EXECUTION_ROLLUPS("execution_rollups", null),
+    EXECUTIONS_ARCHIVE("executions_archive", CrawlExecutionStatus.getDefaultInstance()),
+    JOB_EXECUTIONS_ARCHIVE("job_executions_archive", JobExecutionStatus.getDefaultInstance()),
+    EVENT_ACTIVITY("event_activity", Activity.getDefaultInstance());
 
     public final String name;
 
@@ -10,6 +10,7 @@ import org.slf4j.LoggerFactory;
 
 import static com.rethinkdb.RethinkDB.r;
 import static no.nb.nna.veidemann.db.RethinkDbEventAdapter.buildOptargConflictFunction;
+import static no.nb.nna.veidemann.db.RethinkDbEventAdapter.spillActivity;
 
 public class UpdateEventObjectQueryBuilder {
     private static final Logger LOG = LoggerFactory.getLogger(UpdateEventObjectQueryBuilder.class);
@@ -37,10 +38,12 @@ public class UpdateEventObjectQueryBuilder {
         }
 
         q = q.merge(updateDoc)
-                .forEach(doc -> r.table(l.table.name)
+                .forEach(doc -> spillActivity(r.table(l.table.name)
                         .insert(doc)
                         // A rethink function which keeps old values for fields not allowed to be changed and updates activity log
                         .optArg("conflict", buildOptargConflictFunction(request.getComment()))
+                        .optArg("return_changes", true))
+                        .without("changes")
                 );
     }
 
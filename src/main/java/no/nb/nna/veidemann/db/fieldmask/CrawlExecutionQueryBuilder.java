@@ -35,11 +35,14 @@ public class CrawlExecutionQueryBuilder extends RethinkDbFieldMasksQueryBuilder<
     protected void init() {
         addPrimaryIndex("id", "id");
         addIndex("startTime", "startTime");
+        addIndex("endTime", "endTime");
         addIndex("jobId", "jobId");
         addIndex("state", "state");
         addIndex("seedId", "seedId");
         addIndex("jobExecutionId_seedId", "jobExecutionId", "seedId");
         addIndex("seedId_createdTime", "seedId", "createdTime");
+        addIndex("state_startTime", "state", "startTime");
+        addIndex("jobId_state", "jobId", "state");
 
         addMinimumReturnedField("id");
     }
@@ -33,6 +33,16 @@ public class EventObjectQueryBuilder extends RethinkDbFieldMasksQueryBuilder<Eve
 
     @Override
     protected void init() {
+        addComputedPath("lastModified", e -> e.g("activity").nth(0).g("modifiedTime"));
+
+        addPrimaryIndex("id", "id");
+        addIndex("lastModified", "lastModified");
+        addIndex("state_lastModified", "state", "lastModified");
+        addIndex("assignee_lastModified", "assignee", "lastModified");
+        addIndex("state_assignee_lastModified", "state", "assignee", "lastModified");
+        addIndex("label", "label");
+        addIndex("label_lastModified", "label", "lastModified");
+
         addReadOnlyPath("id");
         addReadOnlyPath("lastUpdated");
         addReadOnlyPath("activity");
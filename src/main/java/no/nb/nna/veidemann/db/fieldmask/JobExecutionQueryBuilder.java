@@ -35,6 +35,7 @@ public class JobExecutionQueryBuilder extends RethinkDbFieldMasksQueryBuilder<Jo
     protected void init() {
         addPrimaryIndex("id", "id");
         addIndex("startTime", "startTime");
+        addIndex("endTime", "endTime");
         addIndex("jobId", "jobId");
         addIndex("state", "state");
         addIndex("jobId_startTime", "jobId", "startTime");
@@ -29,6 +29,7 @@ import no.nb.nna.veidemann.db.fieldmask.MaskedObject.UpdateType;
 import no.nb.nna.veidemann.db.queryoptimizer.QueryOptimizer;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -38,6 +39,7 @@ public abstract class RethinkDbFieldMasksQueryBuilder<T extends MessageOrBuilder
     private Indexes indexes = new Indexes();
     private List<String> readOnlyPaths = new ArrayList<>();
     private List<String> minimumReturnedFields = new ArrayList<>();
+    private Map<String, ReqlFunction1> computedPaths = new HashMap<>();
     private final ObjectOrMask<T> maskedObject;
 
     public RethinkDbFieldMasksQueryBuilder(ObjectOrMask<T> maskedObject) {
@@ -59,6 +61,26 @@ public abstract class RethinkDbFieldMasksQueryBuilder<T extends MessageOrBuilder
         indexes.addPrimaryIndex(indexName, path);
     }
 
+    /**
+     * Add a path which is not a field of the object, but computed from it.
+     * <p>
+     * A computed path can be part of an index and be used for ordering. It can not be used in field masks.
+     *
+     * @param path       the name of the computed path
+     * @param expression function computing the value from a document
+     */
+    protected void addComputedPath(String path, ReqlFunction1 expression) {
+        computedPaths.put(path, expression);
+    }
+
+    public boolean isComputedPath(String path) {
+        return computedPaths.containsKey(path);
+    }
+
+    public ReqlExpr buildComputedPathExpression(String path, ReqlExpr row) {
+        return r.expr(computedPaths.get(path).apply(row));
+    }
+
     public Index getPrimaryIndex() {
         return indexes.getPrimary();
     }
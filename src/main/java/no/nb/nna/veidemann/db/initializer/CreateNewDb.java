@@ -27,7 +27,7 @@ import org.slf4j.LoggerFactory;
 public class CreateNewDb extends TableCreator implements Runnable {
     private static final Logger LOG = LoggerFactory.getLogger(CreateNewDb.class);
 
-    public static final String DB_VERSION = "1.14";
+    public static final String DB_VERSION = "1.21";
 
     public CreateNewDb(String dbName, RethinkDbConnection conn) {
         super(dbName, conn);
@@ -54,11 +54,14 @@ public class CreateNewDb extends TableCreator implements Runnable {
         createConfigsTable();
         createCrawledContentTable();
         createUriQueueTable();
-        createCrawlExecutionsTable();
-        createJobExecutionsTable();
+        createCrawlExecutionsTable(Tables.EXECUTIONS);
+        createJobExecutionsTable(Tables.JOB_EXECUTIONS);
         createCrawlEntitiesTable();
         createSeedsTable();
         createEventTable();
+        createExecutionRollupsTable();
+        createCrawlExecutionsTable(Tables.EXECUTIONS_ARCHIVE);
+        createJobExecutionsTable(Tables.JOB_EXECUTIONS_ARCHIVE);
 
         waitForIndexes();
     }
@@ -88,6 +91,8 @@ public class CreateNewDb extends TableCreator implements Runnable {
                         .add(configRefSingular(row, Kind.crawlConfig.name(), "browserConfigRef"))
                         .add(configRefSingular(row, Kind.crawlConfig.name(), "politenessRef"))
         );
+        createIndex(Tables.CONFIG, "roleMapping_emailOrGroup", true, row ->
+                r.add(principalRef(row, "email"), principalRef(row, "group")));
         createMetaIndexes(Tables.CONFIG);
     }
 
@@ -99,25 +104,32 @@ public class CreateNewDb extends TableCreator implements Runnable {
         createTable(Tables.URI_QUEUE);
     }
 
-    private void createCrawlExecutionsTable() throws DbQueryException, DbConnectionException {
-        createTable(Tables.EXECUTIONS);
-        createIndex(Tables.EXECUTIONS, "startTime");
-        createIndex(Tables.EXECUTIONS, "jobId");
-        createIndex(Tables.EXECUTIONS, "state");
-        createIndex(Tables.EXECUTIONS, "seedId");
-        createIndex(Tables.EXECUTIONS, "jobExecutionId_seedId", row ->
+    private void createCrawlExecutionsTable(Tables table) throws DbQueryException, DbConnectionException {
+        createTable(table);
+        createIndex(table, "startTime");
+        createIndex(table, "jobId");
+        createIndex(table, "state");
+        createIndex(table, "seedId");
+        createIndex(table, "jobExecutionId_seedId", row ->
                 r.array(row.g("jobExecutionId"), row.g("seedId")));
-        createIndex(Tables.EXECUTIONS, "seedId_createdTime", row ->
+        createIndex(table, "seedId_createdTime", row ->
                 r.array(row.g("seedId"), row.g("createdTime")));
+        createIndex(table, "endTime");
+        createIndex(table, "state_startTime", row ->
+                r.array(row.g("state"), row.g("startTime")));
+        createIndex(table, "jobId_state", row ->
+                r.array(row.g("jobId"), row.g("state")));
+        createIndex(table, "hasError_startTime", row -> hasErrorStartTime(row));
     }
 
-    private void createJobExecutionsTable() throws DbQueryException, DbConnectionException {
-        createTable(Tables.JOB_EXECUTIONS);
-        createIndex(Tables.JOB_EXECUTIONS, "startTime");
-        createIndex(Tables.JOB_EXECUTIONS, "jobId");
-        createIndex(Tables.JOB_EXECUTIONS, "state");
-        createIndex(Tables.JOB_EXECUTIONS, "jobId_startTime", row ->
+    private void createJobExecutionsTable(Tables table) throws DbQueryException, DbConnectionException {
+        createTable(table);
+        createIndex(table, "startTime");
+        createIndex(table, "jobId");
+        createIndex(table, "state");
+        createIndex(table, "jobId_startTime", row ->
                 r.array(row.g("jobId"), row.g("startTime")));
+        createIndex(table, "endTime");
     }
 
     private void createCrawlEntitiesTable() throws DbQueryException, DbConnectionException {
@@ -139,6 +151,20 @@ public class CreateNewDb extends TableCreator implements Runnable {
         createIndex(Tables.EVENTS, "assignee_lastModified", e -> r.array(e.g("assignee"), e.g("activity").nth(0).g("modifiedTime")));
         createIndex(Tables.EVENTS, "label", true);
         createIndex(Tables.EVENTS, "lastModified", e -> e.g("activity").nth(0).g("modifiedTime"));
+        createIndex(Tables.EVENTS, "state_assignee_lastModified", e -> r.array(e.g("state"), e.g("assignee").default_(""), e.g("activity").nth(0).g("modifiedTime")));
+        createIndex(Tables.EVENTS, "label_lastModified", true, e -> e.g("label").map(l -> r.array(l, e.g("activity").nth(0).g("modifiedTime"))));
+        createIndex(Tables.EVENTS, "fingerprint_state", e -> r.array(e.g("fingerprint"), e.g("state")));
+
+        createTable(Tables.EVENT_ACTIVITY);
+        createIndex(Tables.EVENT_ACTIVITY, "eventId_modifiedTime", a -> r.array(a.g("eventId"), a.g("modifiedTime")));
+    }
+
+    private void createExecutionRollupsTable() throws DbQueryException, DbConnectionException {
+        createTable(Tables.EXECUTION_ROLLUPS);
+        createIndex(Tables.EXECUTION_ROLLUPS, "granularity_type_bucket", row ->
+                r.array(row.g("granularity"), row.g("type"), row.g("bucket")));
+        createIndex(Tables.EXECUTION_ROLLUPS, "granularity_type_jobId_bucket", row ->
+                r.array(row.g("granularity"), row.g("type"), row.g("jobId"), row.g("bucket")));
     }
 
     private void createMetaIndexes(Tables table) throws DbQueryException, DbConnectionException {
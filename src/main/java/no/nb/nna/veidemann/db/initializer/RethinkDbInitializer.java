@@ -137,6 +137,27 @@ public class RethinkDbInitializer implements DbInitializer {
             case "1.13":
                 new Upgrade1_13To1_14(dbName, conn).run();
                 break;
+            case "1.14":
+                new Upgrade1_14To1_15(dbName, conn).run();
+                break;
+            case "1.15":
+                new Upgrade1_15To1_16(dbName, conn).run();
+                break;
+            case "1.16":
+                new Upgrade1_16To1_17(dbName, conn).run();
+                break;
+            case "1.17":
+                new Upgrade1_17To1_18(dbName, conn).run();
+                break;
+            case "1.18":
+                new Upgrade1_18To1_19(dbName, conn).run();
+                break;
+            case "1.19":
+                new Upgrade1_19To1_20(dbName, conn).run();
+                break;
+            case "1.20":
+                new Upgrade1_20To1_21(dbName, conn).run();
+                break;
             default:
                 throw new DbUpgradeException("Unknown database version '" + fromVersion + "', unable to upgrade");
         }
@@ -20,6 +20,7 @@ import com.rethinkdb.RethinkDB;
 import com.rethinkdb.gen.ast.Branch;
 import com.rethinkdb.gen.ast.ReqlExpr;
 import com.rethinkdb.gen.ast.ReqlFunction1;
+import no.nb.nna.veidemann.api.config.v1.Kind;
 import no.nb.nna.veidemann.commons.db.DbConnectionException;
 import no.nb.nna.veidemann.commons.db.DbQueryException;
 import no.nb.nna.veidemann.db.RethinkDbConnection;
@@ -159,4 +160,33 @@ public class TableCreator {
                 r.array(row.g(kind).g(field).do_(d -> r.array(d.g("kind"), d.g("id")))),
                 r.array());
     }
+
+    /**
+     * Helper method to assist in creating roleMapping_emailOrGroup index
+     *
+     * @param row   ConfigObject
+     * @param field Either email or group
+     * @return An array with a [field, value] pair or empty array
+     */
+    Branch principalRef(ReqlExpr row, String field) {
+        return r.branch(
+                row.hasFields(Kind.roleMapping.name()).and(row.g(Kind.roleMapping.name()).hasFields(field)),
+                r.array(r.array(field, row.g(Kind.roleMapping.name()).g(field))),
+                r.array());
+    }
+
+    /**
+     * Helper method to assist in creating the sparse hasError_startTime index
+     * <p>
+     * Only Crawl Executions with an error are indexed. Crawl Executions without a start time are indexed at epoch.
+     *
+     * @param row Crawl Execution
+     * @return The start time or an error if the Crawl Execution has no error
+     */
+    Branch hasErrorStartTime(ReqlExpr row) {
+        return r.branch(
+                row.hasFields("error"),
+                row.g("startTime").default_(r.epochTime(0)),
+                r.error("Crawl Execution has no error"));
+    }
 }
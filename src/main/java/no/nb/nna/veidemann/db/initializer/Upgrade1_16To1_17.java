@@ -0,0 +1,59 @@
+/*
+ * Copyright 2020 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.db.initializer;
+
+import no.nb.nna.veidemann.commons.db.DbConnectionException;
+import no.nb.nna.veidemann.commons.db.DbQueryException;
+import no.nb.nna.veidemann.db.RethinkDbConnection;
+import no.nb.nna.veidemann.db.Tables;
+
+
+public class Upgrade1_16To1_17 extends UpgradeDbBase {
+    public Upgrade1_16To1_17(String dbName, RethinkDbConnection conn) {
+        super(dbName, conn);
+    }
+
+    final void upgrade() throws DbQueryException, DbConnectionException {
+        createTable(Tables.EXECUTIONS_ARCHIVE);
+        createIndex(Tables.EXECUTIONS_ARCHIVE, "startTime");
+        createIndex(Tables.EXECUTIONS_ARCHIVE, "jobId");
+        createIndex(Tables.EXECUTIONS_ARCHIVE, "state");
+        createIndex(Tables.EXECUTIONS_ARCHIVE, "seedId");
+        createIndex(Tables.EXECUTIONS_ARCHIVE, "jobExecutionId_seedId", row ->
+                r.array(row.g("jobExecutionId"), row.g("seedId")));
+        createIndex(Tables.EXECUTIONS_ARCHIVE, "seedId_createdTime", row ->
+                r.array(row.g("seedId"), row.g("createdTime")));
+        createIndex(Tables.EXECUTIONS_ARCHIVE, "endTime");
+
+        createTable(Tables.JOB_EXECUTIONS_ARCHIVE);
+        createIndex(Tables.JOB_EXECUTIONS_ARCHIVE, "startTime");
+        createIndex(Tables.JOB_EXECUTIONS_ARCHIVE, "jobId");
+        createIndex(Tables.JOB_EXECUTIONS_ARCHIVE, "state");
+        createIndex(Tables.JOB_EXECUTIONS_ARCHIVE, "jobId_startTime", row ->
+                r.array(row.g("jobId"), row.g("startTime")));
+        createIndex(Tables.JOB_EXECUTIONS_ARCHIVE, "endTime");
+    }
+
+    @Override
+    String fromVersion() {
+        return "1.16";
+    }
+
+    @Override
+    String toVersion() {
+        return "1.17";
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2020 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.db.initializer;
+
+import no.nb.nna.veidemann.commons.db.DbConnectionException;
+import no.nb.nna.veidemann.commons.db.DbQueryException;
+import no.nb.nna.veidemann.db.RethinkDbConnection;
+import no.nb.nna.veidemann.db.Tables;
+
+
+public class Upgrade1_20To1_21 extends UpgradeDbBase {
+    public Upgrade1_20To1_21(String dbName, RethinkDbConnection conn) {
+        super(dbName, conn);
+    }
+
+    final void upgrade() throws DbQueryException, DbConnectionException {
+        createIndex(Tables.EVENTS, "state_assignee_lastModified", e -> r.array(e.g("state"), e.g("assignee").default_(""), e.g("activity").nth(0).g("modifiedTime")));
+        createIndex(Tables.EVENTS, "label_lastModified", true, e -> e.g("label").map(l -> r.array(l, e.g("activity").nth(0).g("modifiedTime"))));
+    }
+
+    @Override
+    String fromVersion() {
+        return "1.20";
+    }
+
+    @Override
+    String toVersion() {
+        return "1.21";
+    }
+}
@@ -88,6 +88,10 @@ class GetAllSnippet<T extends MessageOrBuilder> extends Snippet<T> {
                 }
                 qry = ((Table) qry).getAll(values.toArray()).optArg("index", chosenIndex.indexName);
                 break;
+            case GET_ALL_COMPOUND1_INDEX:
+                qry = ((Table) qry).getAll(r.array(values.get(0), next.values.get(0))).optArg("index", chosenIndex.indexName);
+                // The next snippet is rendered as part of the compound key, skip to next's next.
+                return next.renderNext(qry);
             case FILTER:
                 qry = qry.filter(row -> renderAndFilterSnippets(asFilter(row), next, row));
                 return renderNext(qry);
@@ -99,7 +103,19 @@ class GetAllSnippet<T extends MessageOrBuilder> extends Snippet<T> {
                 }
                 return qry;
             case BETWEEN_COMPOUND1_INDEX:
-                if (hasNext() && next.renderType == Type.BETWEEN_COMPOUND2_INDEX) {
+                if (hasNext() && next.renderType == Type.GET_ALL_COMPOUND2_INDEX) {
+                    // Three part compound index with single values for the first two parts and a range for the third
+                    Snippet<T> third = next.next;
+                    qry = qry.between(r.array(values.get(0), next.values.get(0), third.values.get(0)),
+                            r.array(values.get(0), next.values.get(0), third.values.get(1)))
+                            .optArg("right_bound", "closed").optArg("index", chosenIndex.indexName);
+                    if (third.getClass() == OrderBySnippet.class) {
+                        return next.renderNext(qry);
+                    } else {
+                        // The third snippet is rendered as part of the compound key, skip to third's next.
+                        return third.renderNext(qry);
+                    }
+                } else if (hasNext() && next.renderType == Type.BETWEEN_COMPOUND2_INDEX) {
                     qry = qry.between(r.array(values.get(0), next.values.get(0)), r.array(values.get(0), next.values.get(1)))
                             .optArg("right_bound", "closed").optArg("index", chosenIndex.indexName);
                 } else if (values.size() == 1) {
@@ -59,19 +59,19 @@ class OrderBySnippet<T extends MessageOrBuilder> extends Snippet<T> {
             case ORDER_BY:
                 long ignoreCaseIndexCount = bestIndexes.stream()
                         .filter(i -> i.isIgnoreCase() && i.path.length == 1 && i.path[0].equals(path)
-                                && pathDef.getDescriptor().getType() == FieldDescriptor.Type.STRING)
+                                && pathDef != null && pathDef.getDescriptor().getType() == FieldDescriptor.Type.STRING)
                         .count();
                 if (isDescending) {
                     if (ignoreCaseIndexCount > 0) {
-                        qry = qry.orderBy(r.desc(row -> queryBuilder.buildGetFieldExpression(pathDef, row).downcase()));
+                        qry = qry.orderBy(r.desc(row -> fieldExpression(row).downcase()));
                     } else {
-                        qry = qry.orderBy(r.desc(row -> queryBuilder.buildGetFieldExpression(pathDef, row)));
+                        qry = qry.orderBy(r.desc(row -> fieldExpression(row)));
                     }
                 } else {
                     if (ignoreCaseIndexCount > 0) {
-                        qry = qry.orderBy(row -> queryBuilder.buildGetFieldExpression(pathDef, row).downcase());
+                        qry = qry.orderBy(row -> fieldExpression(row).downcase());
                     } else {
-                        qry = qry.orderBy(row -> queryBuilder.buildGetFieldExpression(pathDef, row));
+                        qry = qry.orderBy(row -> fieldExpression(row));
                     }
                 }
                 break;
@@ -88,4 +88,11 @@ class OrderBySnippet<T extends MessageOrBuilder> extends Snippet<T> {
         }
         return renderNext(qry);
     }
+
+    private ReqlExpr fieldExpression(ReqlExpr row) {
+        if (pathDef == null) {
+            return queryBuilder.buildComputedPathExpression(path, row);
+        }
+        return queryBuilder.buildGetFieldExpression(pathDef, row);
+    }
 }
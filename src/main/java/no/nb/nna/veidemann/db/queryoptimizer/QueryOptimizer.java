@@ -137,6 +137,44 @@ public class QueryOptimizer<T extends MessageOrBuilder> {
             return first;
         }
 
+        // Find two getAll with single value using the first two parts of a three part compound index and another
+        // snippet using the third part of the index
+        for (Snippet<T> s : snippets) {
+            if (s.getClass() == GetAllSnippet.class && s.values.size() == 1) {
+                for (Index i : s.bestIndexes) {
+                    if (i.path.length == 3 && i.path[0].equals(s.path)) {
+                        for (Snippet<T> s2 : snippets) {
+                            if (s2.getClass() == GetAllSnippet.class && s2.values.size() == 1 && i.path[1].equals(s2.path)) {
+                                for (Snippet<T> s3 : snippets) {
+                                    if (s3.getClass() != GetAllSnippet.class && i.path[2].equals(s3.path)) {
+                                        s.chosenIndex = i;
+                                        s.renderType = Type.BETWEEN_COMPOUND1_INDEX;
+                                        s.linkNext(s2);
+                                        first = s;
+                                        snippets.remove(s);
+                                        s2.chosenIndex = i;
+                                        s2.renderType = Type.GET_ALL_COMPOUND2_INDEX;
+                                        s2.linkNext(s3);
+                                        snippets.remove(s2);
+                                        s3.chosenIndex = i;
+                                        s3.renderType = Type.BETWEEN_COMPOUND2_INDEX;
+                                        snippets.remove(s3);
+
+                                        // If third part is an order by, set values
+                                        if (s3.getClass() == OrderBySnippet.class) {
+                                            s3.values.add(r.minval());
+                                            s3.values.add(r.maxval());
+                                        }
+                                        return s3;
+                                    }
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
         // Find getAll with compound index and single value and another snippet using the second part of index
         for (Snippet<T> s : snippets) {
             if (s.getClass() == GetAllSnippet.class && s.values.size() == 1) {
@@ -176,6 +214,29 @@ public class QueryOptimizer<T extends MessageOrBuilder> {
             }
         }
 
+        // Find two getAll with single value using both parts of a compound index
+        for (Snippet<T> s : snippets) {
+            if (s.getClass() == GetAllSnippet.class && s.values.size() == 1) {
+                for (Index i : s.bestIndexes) {
+                    if (i.path.length == 2 && i.path[0].equals(s.path)) {
+                        for (Snippet<T> s2 : snippets) {
+                            if (s2.getClass() == GetAllSnippet.class && s2.values.size() == 1 && i.path[1].equals(s2.path)) {
+                                s.chosenIndex = i;
+                                s.renderType = Type.GET_ALL_COMPOUND1_INDEX;
+                                s.linkNext(s2);
+                                first = s;
+                                snippets.remove(s);
+                                s2.chosenIndex = i;
+                                s2.renderType = Type.GET_ALL_COMPOUND2_INDEX;
+                                snippets.remove(s2);
+                                return s2;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
         // Find Between, GetAll or Label with index and orderBy using same index
         for (Snippet<T> s : snippets) {
             if ((s.getClass() == BetweenSnippet.class || s.getClass() == LabelSnippet.class ||
@@ -15,6 +15,8 @@ abstract class Snippet<T extends MessageOrBuilder> {
     enum Type {
         GET_ALL,
         GET_ALL_INDEX,
+        GET_ALL_COMPOUND1_INDEX,
+        GET_ALL_COMPOUND2_INDEX,
         ORDER_BY,
         ORDER_BY_INDEX,
         BETWEEN,
@@ -40,7 +42,9 @@ abstract class Snippet<T extends MessageOrBuilder> {
     public Snippet(RethinkDbFieldMasksQueryBuilder<T> queryBuilder, String path) {
         this.queryBuilder = queryBuilder;
         this.path = path;
-        pathDef = queryBuilder.getMaskedObject().getPathDef(path);
+        if (!queryBuilder.isComputedPath(path)) {
+            pathDef = queryBuilder.getMaskedObject().getPathDef(path);
+        }
         this.bestIndexes = queryBuilder.getBestIndexes(path);
     }
 
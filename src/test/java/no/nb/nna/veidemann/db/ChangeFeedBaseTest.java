@@ -22,11 +22,22 @@ import no.nb.nna.veidemann.api.config.v1.ConfigObject;
 import no.nb.nna.veidemann.commons.db.ChangeFeed;
 import org.junit.Test;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Flow;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
 import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -74,4 +85,132 @@ public class ChangeFeedBaseTest {
                     assertThat(objects.get(2)).isEqualTo("id4");
                 });
     }
-}
\ No newline at end of file
+
+    @Test
+    public void dedup() {
+        List<Map<String, Object>> changes = Arrays.asList(
+                change(null, r.hashMap("id", "id1").with("apiVersion", "v1")),
+                change(null, r.hashMap("id", "id2").with("apiVersion", "v1")),
+                // Unchanged version is a duplicate
+                change(r.hashMap("id", "id1").with("apiVersion", "v1"), r.hashMap("id", "id1").with("apiVersion", "v1")),
+                change(r.hashMap("id", "id1").with("apiVersion", "v1"), r.hashMap("id", "id1").with("apiVersion", "v2")),
+                // Deleted objects are forgotten
+                change(r.hashMap("id", "id2").with("apiVersion", "v1"), null),
+                change(null, r.hashMap("id", "id2").with("apiVersion", "v1")),
+                // Objects without a version are never duplicates
+                change(null, r.hashMap("id", "id3")),
+                change(r.hashMap("id", "id3"), r.hashMap("id", "id3")));
+
+        Function<Map<String, Object>, Object> version = o -> o.get("apiVersion");
+
+        assertThat(feed(changes, ChangeFeedBase.Dedup.byVersion(version)).stream())
+                .extracting("id", "apiVersion")
+                .containsExactly(
+                        tuple("id1", "v1"),
+                        tuple("id2", "v1"),
+                        tuple("id1", "v2"),
+                        tuple("id2", "v1"),
+                        tuple("id3", ""),
+                        tuple("id3", ""));
+
+        // Only the last object is remembered
+        assertThat(feed(changes, ChangeFeedBase.Dedup.byVersion(1, Duration.ofMinutes(1), version)).stream())
+                .extracting("id", "apiVersion")
+                .containsExactly(
+                        tuple("id1", "v1"),
+                        tuple("id2", "v1"),
+                        tuple("id1", "v1"),
+                        tuple("id1", "v2"),
+                        tuple("id2", "v1"),
+                        tuple("id3", ""),
+                        tuple("id3", ""));
+
+        List<Map<String, Object>> objects = Arrays.asList(
+                r.hashMap("id", "id1").with("apiVersion", "v1"),
+                r.hashMap("id", "id1").with("apiVersion", "v2"));
+
+        assertThat(feed(objects, ChangeFeedBase.Dedup.NONE).stream()).hasSize(2);
+        assertThat(feed(objects, ChangeFeedBase.Dedup.byId()).stream()).hasSize(1);
+    }
+
+    @Test
+    public void parallelStream() throws TimeoutException {
+        int count = 5000;
+        AtomicInteger next = new AtomicInteger();
+        Cursor<Map<String, Object>> cursorMock = mock(Cursor.class);
+        when(cursorMock.hasNext()).thenAnswer(invocation -> next.get() < count);
+        when(cursorMock.next(anyLong())).thenAnswer(invocation -> r.hashMap("id", "id" + next.getAndIncrement()));
+
+        List<String> expected = IntStream.range(0, count).mapToObj(i -> "id" + i).collect(Collectors.toList());
+
+        assertThat(feed(cursorMock, ChangeFeedBase.Dedup.NONE).stream().parallel().map(ConfigObject::getId))
+                .containsExactlyElementsOf(expected);
+    }
+
+    @Test
+    public void publisher() {
+        List<Map<String, Object>> objects = Arrays.asList(
+                r.hashMap("id", "id1"),
+                r.hashMap("id", "id2"),
+                r.hashMap("id", "id3"));
+
+        List<String> received = new ArrayList<>();
+        AtomicBoolean completed = new AtomicBoolean();
+        AtomicReference<Flow.Subscription> subscription = new AtomicReference<>();
+
+        feed(objects, ChangeFeedBase.Dedup.NONE).publisher(Runnable::run).subscribe(new Flow.Subscriber<ConfigObject>() {
+            @Override
+            public void onSubscribe(Flow.Subscription s) {
+                subscription.set(s);
+            }
+
+            @Override
+            public void onNext(ConfigObject item) {
+                received.add(item.getId());
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                throw new AssertionError(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                completed.set(true);
+            }
+        });
+
+        // Nothing is read before it is requested
+        assertThat(received).isEmpty();
+
+        subscription.get().request(2);
+        assertThat(received).containsExactly("id1", "id2");
+        assertThat(completed).isFalse();
+
+        subscription.get().request(10);
+        assertThat(received).containsExactly("id1", "id2", "id3");
+        assertThat(completed).isTrue();
+    }
+
+    private static Map<String, Object> change(Map<String, Object> oldVal, Map<String, Object> newVal) {
+        return r.hashMap("old_val", oldVal).with("new_val", newVal);
+    }
+
+    private static ChangeFeedBase<ConfigObject> feed(Object result, ChangeFeedBase.Dedup dedup) {
+        return new ChangeFeedBase<ConfigObject>(result, dedup) {
+            @Override
+            @SuppressWarnings("unchecked")
+            protected Function<Map<String, Object>, ConfigObject> mapper() {
+                return co -> {
+                    if (co.containsKey("new_val")) {
+                        co = (Map) co.get("new_val");
+                        if (co == null) {
+                            return null;
+                        }
+                    }
+                    return ProtoUtils.rethinkToProto(co, ConfigObject.class);
+                };
+            }
+        };
+    }
+}
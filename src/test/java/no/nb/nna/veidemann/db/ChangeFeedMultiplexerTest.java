@@ -0,0 +1,186 @@
+/*
+ * Copyright 2020 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.nb.nna.veidemann.db;
+
+import com.rethinkdb.RethinkDB;
+import no.nb.nna.veidemann.commons.db.ChangeFeed;
+import no.nb.nna.veidemann.commons.db.DbException;
+import no.nb.nna.veidemann.commons.db.DbQueryException;
+import no.nb.nna.veidemann.db.ChangeFeedMultiplexer.OverflowPolicy;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ChangeFeedMultiplexerTest {
+    static final RethinkDB r = RethinkDB.r;
+
+    @Test
+    public void shareFeedForSameQuery() throws DbException {
+        ChangeFeedMultiplexer<String> multiplexer = new ChangeFeedMultiplexer<>("test",
+                doc -> doc.get("id") + ":" + doc.get("rev"), s -> s.split(":")[0],
+                ChangeFeedBase.Dedup.NONE, 10, OverflowPolicy.DROP_OLDEST);
+
+        AtomicInteger opened = new AtomicInteger();
+        QueueSource source = new QueueSource();
+        ChangeFeedMultiplexer.SourceFactory factory = () -> {
+            opened.incrementAndGet();
+            return source;
+        };
+
+        ChangeFeed<String> s1 = multiplexer.subscribe(r.table("t").filter(row -> row.g("a").eq(1)), factory);
+        ChangeFeed<String> s2 = multiplexer.subscribe(r.table("t").filter(row -> row.g("a").eq(1)), factory);
+        assertThat(opened).hasValue(1);
+        assertThat(multiplexer.feedCount()).isEqualTo(1);
+
+        ChangeFeed<String> s3 = multiplexer.subscribe(r.table("t").filter(row -> row.g("a").eq(2)), QueueSource::new);
+        assertThat(multiplexer.feedCount()).isEqualTo(2);
+        s3.close();
+        assertThat(multiplexer.feedCount()).isEqualTo(1);
+
+        source.add(r.hashMap("id", "a").with("rev", 1));
+        assertThat(s1.stream().findFirst()).hasValue("a:1");
+        assertThat(s2.stream().findFirst()).hasValue("a:1");
+
+        // The feed is closed when the last subscriber leaves
+        s1.close();
+        assertThat(source.closed).isFalse();
+        s2.close();
+        assertThat(source.closed).isTrue();
+        assertThat(multiplexer.feedCount()).isZero();
+
+        multiplexer.close();
+    }
+
+    @Test
+    public void coalesce() throws DbException, InterruptedException {
+        ChangeFeedMultiplexer<String> multiplexer = new ChangeFeedMultiplexer<>("test",
+                doc -> doc.get("id") + ":" + doc.get("rev"), s -> s.split(":")[0],
+                ChangeFeedBase.Dedup.NONE, 2, OverflowPolicy.COALESCE);
+
+        QueueSource source = new QueueSource();
+        ChangeFeed<String> s1 = multiplexer.subscribe(r.table("t"), () -> source);
+
+        source.add(r.hashMap("id", "a").with("rev", 1));
+        source.add(r.hashMap("id", "b").with("rev", 1));
+        // Replaces a:1
+        source.add(r.hashMap("id", "a").with("rev", 2));
+        // Queue is full, drops a:2
+        source.add(r.hashMap("id", "c").with("rev", 1));
+        source.end();
+
+        // Wait for the reader to finish before consuming
+        while (!source.closed) {
+            Thread.sleep(10);
+        }
+        assertThat(s1.stream().collect(Collectors.toList())).containsExactly("b:1", "c:1");
+
+        multiplexer.close();
+    }
+
+    @Test
+    public void openFeedWithoutBlockingOtherQueries() throws Exception {
+        ChangeFeedMultiplexer<String> multiplexer = new ChangeFeedMultiplexer<>("test",
+                doc -> doc.get("id") + ":" + doc.get("rev"), s -> s.split(":")[0],
+                ChangeFeedBase.Dedup.NONE, 10, OverflowPolicy.DROP_OLDEST);
+        ExecutorService executor = Executors.newCachedThreadPool();
+
+        CountDownLatch opening = new CountDownLatch(1);
+        CountDownLatch fail = new CountDownLatch(1);
+        Future<ChangeFeed<String>> slow = executor.submit(() -> multiplexer.subscribe(r.table("slow"), () -> {
+            opening.countDown();
+            try {
+                fail.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            throw new DbQueryException("failed");
+        }));
+        assertThat(opening.await(5, TimeUnit.SECONDS)).isTrue();
+
+        // Waits for the feed being opened
+        Future<ChangeFeed<String>> waiting = executor.submit(() -> multiplexer.subscribe(r.table("slow"), () -> {
+            throw new AssertionError("Feed should only be opened once");
+        }));
+
+        // Other queries are not blocked
+        ChangeFeed<String> other = multiplexer.subscribe(r.table("other"), QueueSource::new);
+        assertThat(multiplexer.feedCount()).isEqualTo(2);
+
+        fail.countDown();
+        assertThatThrownBy(slow::get).hasCauseInstanceOf(DbQueryException.class);
+        assertThatThrownBy(waiting::get).hasCauseInstanceOf(DbQueryException.class);
+        assertThat(multiplexer.feedCount()).isEqualTo(1);
+
+        other.close();
+        multiplexer.close();
+        executor.shutdownNow();
+    }
+
+    private static class QueueSource implements ChangeFeedPublisher.Source<Map<String, Object>> {
+        static final Map<String, Object> END = r.hashMap();
+
+        final BlockingQueue<Map<String, Object>> queue = new LinkedBlockingQueue<>();
+        volatile boolean closed;
+
+        void add(Map<String, Object> doc) {
+            queue.add(doc);
+        }
+
+        void end() {
+            queue.add(END);
+        }
+
+        @Override
+        public Map<String, Object> poll(long timeoutMillis) throws TimeoutException {
+            if (closed) {
+                return null;
+            }
+            try {
+                Map<String, Object> doc = queue.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+                if (doc == null) {
+                    throw new TimeoutException();
+                }
+                return doc == END ? null : doc;
+            } catch (InterruptedException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public boolean ready() {
+            return closed || !queue.isEmpty();
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
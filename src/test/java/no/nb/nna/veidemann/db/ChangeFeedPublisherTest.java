@@ -0,0 +1,156 @@
+/*
+ * Copyright 2020 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package no.nb.nna.veidemann.db;
+
+import com.rethinkdb.RethinkDB;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ChangeFeedPublisherTest {
+    static final RethinkDB r = RethinkDB.r;
+
+    @Test
+    public void idleFeedDoesNotOccupyExecutor() throws InterruptedException {
+        QueueSource source = new QueueSource();
+        AtomicInteger tasks = new AtomicInteger();
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        TestSubscriber subscriber = new TestSubscriber(1);
+
+        new ChangeFeedPublisher<>(source, o -> true, o -> (String) o.get("id"), task -> {
+            tasks.incrementAndGet();
+            pool.execute(task);
+        }).subscribe(subscriber);
+        subscriber.subscription.get().request(1);
+
+        // The drain task parks the subscription instead of being resubmitted while the source is idle
+        Thread.sleep(500);
+        assertThat(tasks).hasValue(1);
+
+        source.add(r.hashMap("id", "id1"));
+        assertThat(subscriber.received.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(subscriber.items).containsExactly("id1");
+        assertThat(tasks).hasValue(2);
+
+        subscriber.subscription.get().cancel();
+        assertThat(source.closed).isTrue();
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void invalidRequestIsSignalledFromDrain() throws InterruptedException {
+        QueueSource source = new QueueSource();
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        TestSubscriber subscriber = new TestSubscriber(1);
+
+        new ChangeFeedPublisher<>(source, o -> true, o -> (String) o.get("id"), pool).subscribe(subscriber);
+        subscriber.subscription.get().request(1);
+        subscriber.subscription.get().request(0);
+
+        assertThat(subscriber.terminated.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(subscriber.error.get()).isInstanceOf(IllegalArgumentException.class);
+        assertThat(subscriber.errorThread.get()).isNotEqualTo(Thread.currentThread());
+        assertThat(source.closed).isTrue();
+        pool.shutdownNow();
+    }
+
+    private static class TestSubscriber implements Flow.Subscriber<String> {
+        final AtomicReference<Flow.Subscription> subscription = new AtomicReference<>();
+        final List<String> items = new ArrayList<>();
+        final CountDownLatch received;
+        final CountDownLatch terminated = new CountDownLatch(1);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final AtomicReference<Thread> errorThread = new AtomicReference<>();
+
+        TestSubscriber(int expected) {
+            received = new CountDownLatch(expected);
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription s) {
+            subscription.set(s);
+        }
+
+        @Override
+        public synchronized void onNext(String item) {
+            items.add(item);
+            received.countDown();
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error.set(throwable);
+            errorThread.set(Thread.currentThread());
+            terminated.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            terminated.countDown();
+        }
+    }
+
+    private static class QueueSource implements ChangeFeedPublisher.Source<Map<String, Object>> {
+        final BlockingQueue<Map<String, Object>> queue = new LinkedBlockingQueue<>();
+        volatile boolean closed;
+
+        void add(Map<String, Object> doc) {
+            queue.add(doc);
+        }
+
+        @Override
+        public Map<String, Object> poll(long timeoutMillis) throws TimeoutException {
+            if (closed) {
+                return null;
+            }
+            try {
+                Map<String, Object> doc = queue.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+                if (doc == null) {
+                    throw new TimeoutException();
+                }
+                return doc;
+            } catch (InterruptedException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public boolean ready() {
+            return closed || !queue.isEmpty();
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
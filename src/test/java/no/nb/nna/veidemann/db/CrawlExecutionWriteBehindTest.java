@@ -0,0 +1,100 @@
+/*
+ * Copyright 2020 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.nb.nna.veidemann.db;
+
+import no.nb.nna.veidemann.api.frontier.v1.CrawlExecutionStatus;
+import no.nb.nna.veidemann.commons.db.DbException;
+import no.nb.nna.veidemann.commons.db.DbQueryException;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.assertj.core.api.Assertions.entry;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class CrawlExecutionWriteBehindTest {
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void coalesceUpdates() throws DbException {
+        RethinkDbExecutionsAdapter adapter = mock(RethinkDbExecutionsAdapter.class);
+        CrawlExecutionWriteBehind writeBehind = new CrawlExecutionWriteBehind(adapter, 60000);
+
+        writeBehind.submit(new CrawlExecutionUpdate("ce1").addDocumentsCrawled(1).addBytesCrawled(100));
+        writeBehind.submit(new CrawlExecutionUpdate("ce2").addDocumentsFailed(1));
+        writeBehind.submit(new CrawlExecutionUpdate("ce1").addDocumentsCrawled(2).addBytesCrawled(200));
+        verify(adapter, never()).updateCrawlExecutionStatuses(any());
+
+        // A state change flushes the buffer synchronously
+        writeBehind.submit(new CrawlExecutionUpdate("ce1").withState(CrawlExecutionStatus.State.FINISHED));
+
+        ArgumentCaptor<Collection<CrawlExecutionUpdate>> captor = ArgumentCaptor.forClass(Collection.class);
+        verify(adapter, times(1)).updateCrawlExecutionStatuses(captor.capture());
+        List<CrawlExecutionUpdate> batch = new ArrayList<>(captor.getValue());
+
+        assertThat(batch).hasSize(2);
+        assertThat(batch.get(0).getId()).isEqualTo("ce1");
+        assertThat(batch.get(0).getState()).isEqualTo(CrawlExecutionStatus.State.FINISHED);
+        assertThat(batch.get(0).getCounterDeltas())
+                .containsOnly(entry("documentsCrawled", 3L), entry("bytesCrawled", 300L));
+        assertThat(batch.get(1).getId()).isEqualTo("ce2");
+        assertThat(batch.get(1).getState()).isNull();
+        assertThat(batch.get(1).getCounterDeltas()).containsOnly(entry("documentsFailed", 1L));
+
+        writeBehind.close();
+        verify(adapter, times(1)).updateCrawlExecutionStatuses(any());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void failedFlushIsRetried() throws DbException {
+        RethinkDbExecutionsAdapter adapter = mock(RethinkDbExecutionsAdapter.class);
+        CrawlExecutionWriteBehind writeBehind = new CrawlExecutionWriteBehind(adapter, 60000);
+
+        doThrow(new DbQueryException("failed")).doNothing().when(adapter).updateCrawlExecutionStatuses(any());
+
+        writeBehind.submit(new CrawlExecutionUpdate("ce1").addDocumentsCrawled(1));
+        assertThatExceptionOfType(DbQueryException.class).isThrownBy(writeBehind::flush);
+
+        writeBehind.submit(new CrawlExecutionUpdate("ce1").addDocumentsCrawled(1));
+        writeBehind.close();
+
+        // The failed update is retried unchanged, followed by the update received after the failure
+        ArgumentCaptor<Collection<CrawlExecutionUpdate>> captor = ArgumentCaptor.forClass(Collection.class);
+        verify(adapter, times(3)).updateCrawlExecutionStatuses(captor.capture());
+        List<Collection<CrawlExecutionUpdate>> batches = captor.getAllValues();
+
+        CrawlExecutionUpdate failed = batches.get(0).iterator().next();
+        CrawlExecutionUpdate retried = batches.get(1).iterator().next();
+        CrawlExecutionUpdate newer = batches.get(2).iterator().next();
+        assertThat(retried).isSameAs(failed);
+        assertThat(retried.toRethink().get("token")).isEqualTo(failed.toRethink().get("token"));
+        assertThat(retried.getCounterDeltas()).containsOnly(entry("documentsCrawled", 1L));
+        assertThat(newer.getCounterDeltas()).containsOnly(entry("documentsCrawled", 1L));
+        assertThat(newer.toRethink().get("token")).isNotEqualTo(failed.toRethink().get("token"));
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2020 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.nb.nna.veidemann.db;
+
+import com.rethinkdb.gen.exc.ReqlDriverError;
+import com.rethinkdb.net.Cursor;
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.InOrder;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class CursorReaderTest {
+
+    @After
+    public void clearMaxWait() {
+        System.clearProperty(CursorReader.MAX_WAIT_KEY);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void closeWakesBlockedReader() throws Exception {
+        CountDownLatch blocked = new CountDownLatch(1);
+        Cursor<String> cursor = mock(Cursor.class);
+        when(cursor.hasNext()).thenReturn(true);
+        when(cursor.next(anyLong())).thenAnswer(invocation -> {
+            blocked.countDown();
+            try {
+                Thread.sleep(60000);
+            } catch (InterruptedException e) {
+                throw new ReqlDriverError(e);
+            }
+            return "too late";
+        });
+
+        CursorReader<String> reader = new CursorReader<>(cursor);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread thread = new Thread(() -> {
+            try {
+                reader.next();
+            } catch (Throwable t) {
+                error.set(t);
+            }
+        });
+        thread.start();
+
+        assertThat(blocked.await(5, TimeUnit.SECONDS)).isTrue();
+        reader.close();
+        thread.join(5000);
+
+        assertThat(thread.isAlive()).isFalse();
+        assertThat(error.get()).isInstanceOf(NoSuchElementException.class);
+        assertThat(reader.isClosed()).isTrue();
+        assertThat(reader.hasNext()).isFalse();
+        verify(cursor).close();
+        assertThatThrownBy(reader::next).isInstanceOf(NoSuchElementException.class);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void waitIsDoubledUntilObjectArrives() throws Exception {
+        Cursor<String> cursor = mock(Cursor.class);
+        when(cursor.next(anyLong()))
+                .thenThrow(new TimeoutException())
+                .thenThrow(new TimeoutException())
+                .thenReturn("a")
+                .thenReturn("b");
+
+        CursorReader<String> reader = new CursorReader<>(cursor);
+        assertThatThrownBy(reader::next).isInstanceOf(TimeoutException.class);
+        assertThatThrownBy(reader::next).isInstanceOf(TimeoutException.class);
+        assertThat(reader.next()).isEqualTo("a");
+        assertThat(reader.next()).isEqualTo("b");
+
+        InOrder order = inOrder(cursor);
+        order.verify(cursor).next(CursorReader.MIN_WAIT_MILLIS);
+        order.verify(cursor).next(2 * CursorReader.MIN_WAIT_MILLIS);
+        order.verify(cursor).next(4 * CursorReader.MIN_WAIT_MILLIS);
+        order.verify(cursor).next(CursorReader.MIN_WAIT_MILLIS);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void waitIsBoundedByMaxWait() throws Exception {
+        System.setProperty(CursorReader.MAX_WAIT_KEY, "300");
+        Cursor<String> cursor = mock(Cursor.class);
+        when(cursor.next(anyLong())).thenThrow(new TimeoutException());
+
+        CursorReader<String> reader = new CursorReader<>(cursor);
+        for (int i = 0; i < 4; i++) {
+            assertThatThrownBy(reader::next).isInstanceOf(TimeoutException.class);
+        }
+
+        InOrder order = inOrder(cursor);
+        order.verify(cursor).next(100L);
+        order.verify(cursor).next(200L);
+        order.verify(cursor, times(2)).next(300L);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void zeroMaxWaitBlocks() throws Exception {
+        System.setProperty(CursorReader.MAX_WAIT_KEY, "0");
+        Cursor<String> cursor = mock(Cursor.class);
+        when(cursor.next()).thenReturn("a");
+
+        CursorReader<String> reader = new CursorReader<>(cursor);
+        assertThat(reader.next()).isEqualTo("a");
+
+        verify(cursor).next();
+        verify(cursor, never()).next(anyLong());
+    }
+}
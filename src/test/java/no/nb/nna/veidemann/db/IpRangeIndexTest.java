@@ -0,0 +1,89 @@
+/*
+ * Copyright 2020 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.nb.nna.veidemann.db;
+
+import com.google.common.net.InetAddresses;
+import org.junit.Test;
+
+import java.net.InetAddress;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+public class IpRangeIndexTest {
+
+    @Test
+    public void lookup() {
+        IpRangeIndex<String> index = IpRangeIndex.<String>newBuilder()
+                .addRange("10.0.0.0", "10.255.255.255", "wide")
+                .addRange("10.1.0.0", "10.1.255.255", "narrow")
+                .addRange("10.1.2.0", "10.1.2.255", "narrowest")
+                .addRange("192.168.0.1", "192.168.0.1", "single")
+                .addRange("2001:db8::", "2001:db8::ffff", "v6")
+                .build();
+
+        assertThat(index.lookup(ip("9.255.255.255"))).isNull();
+        assertThat(index.lookup(ip("10.0.0.0"))).isEqualTo("wide");
+        assertThat(index.lookup(ip("10.0.255.255"))).isEqualTo("wide");
+        assertThat(index.lookup(ip("10.1.0.0"))).isEqualTo("narrow");
+        assertThat(index.lookup(ip("10.1.1.255"))).isEqualTo("narrow");
+        assertThat(index.lookup(ip("10.1.2.0"))).isEqualTo("narrowest");
+        assertThat(index.lookup(ip("10.1.2.255"))).isEqualTo("narrowest");
+        assertThat(index.lookup(ip("10.1.3.0"))).isEqualTo("narrow");
+        assertThat(index.lookup(ip("10.2.0.0"))).isEqualTo("wide");
+        assertThat(index.lookup(ip("10.255.255.255"))).isEqualTo("wide");
+        assertThat(index.lookup(ip("11.0.0.0"))).isNull();
+        assertThat(index.lookup(ip("192.168.0.0"))).isNull();
+        assertThat(index.lookup(ip("192.168.0.1"))).isEqualTo("single");
+        assertThat(index.lookup(ip("192.168.0.2"))).isNull();
+        assertThat(index.lookup(ip("2001:db8::1"))).isEqualTo("v6");
+        assertThat(index.lookup(ip("2001:db8::1:0"))).isNull();
+        assertThat(index.lookup(ip("::ffff:10.1.2.3"))).isEqualTo("narrowest");
+    }
+
+    @Test
+    public void adjacentSegmentsAreMerged() {
+        IpRangeIndex<String> index = IpRangeIndex.<String>newBuilder()
+                .addRange("10.0.0.0", "10.0.0.127", "a")
+                .addRange("10.0.0.128", "10.0.0.255", "a")
+                .addRange("10.0.1.0", "10.0.1.255", "b")
+                .build();
+
+        assertThat(index.size()).isEqualTo(2);
+        assertThat(index.lookup(ip("10.0.0.200"))).isEqualTo("a");
+        assertThat(index.lookup(ip("10.0.1.0"))).isEqualTo("b");
+    }
+
+    @Test
+    public void emptyIndex() {
+        IpRangeIndex<String> index = IpRangeIndex.<String>newBuilder().build();
+        assertThat(index.size()).isEqualTo(0);
+        assertThat(index.lookup(ip("127.0.0.1"))).isNull();
+    }
+
+    @Test
+    public void illegalRange() {
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> IpRangeIndex.<String>newBuilder().addRange("10.0.0.2", "10.0.0.1", "a"));
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> IpRangeIndex.<String>newBuilder().addRange("example.com", "10.0.0.1", "a"));
+    }
+
+    private static InetAddress ip(String address) {
+        return InetAddresses.forString(address);
+    }
+}
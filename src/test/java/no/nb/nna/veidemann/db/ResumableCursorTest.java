@@ -0,0 +1,223 @@
+/*
+ * Copyright 2020 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.nb.nna.veidemann.db;
+
+import com.rethinkdb.RethinkDB;
+import com.rethinkdb.gen.ast.ReqlExpr;
+import com.rethinkdb.gen.exc.ReqlDriverError;
+import com.rethinkdb.net.Cursor;
+import no.nb.nna.veidemann.commons.db.DbException;
+import org.junit.Test;
+
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ResumableCursorTest {
+    static final RethinkDB r = RethinkDB.r;
+
+    static final OffsetDateTime T1 = OffsetDateTime.parse("2020-01-01T10:00:00Z");
+    static final OffsetDateTime T2 = OffsetDateTime.parse("2020-01-01T11:00:00Z");
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void resumeWithoutChangeTime() throws DbException, TimeoutException {
+        Cursor<Map<String, Object>> first = mock(Cursor.class);
+        when(first.hasNext()).thenReturn(true);
+        when(first.next(anyLong()))
+                .thenReturn(initial(doc("a", 1)))
+                .thenReturn(initial(doc("b", 1)))
+                .thenReturn(r.hashMap("state", "ready"))
+                .thenReturn(change(doc("a", 1), doc("a", 2)))
+                .thenThrow(new ReqlDriverError("Connection lost"));
+
+        Cursor<Map<String, Object>> second = mock(Cursor.class);
+        when(second.hasNext()).thenReturn(true);
+        when(second.next(anyLong()))
+                .thenReturn(initial(doc("a", 2)))
+                .thenReturn(initial(doc("b", 2)))
+                .thenReturn(initial(doc("c", 1)))
+                .thenReturn(r.hashMap("state", "ready"));
+
+        RethinkDbConnection conn = mock(RethinkDbConnection.class);
+        when(conn.<Object>exec(eq("db-test-getServerTime"), any())).thenReturn(T1, T2);
+        when(conn.<Object>exec(eq("db-test"), any())).thenReturn(first, second);
+
+        List<Object> queries = new ArrayList<>();
+        ResumableCursor cursor = new ResumableCursor(conn, "db-test", includeInitial -> {
+            queries.add(includeInitial);
+            return r.expr(includeInitial);
+        }, null);
+
+        // Initial values are tracked, but not emitted on first load
+        assertThat(value(next(cursor))).isEqualTo(doc("a", 2));
+
+        // Only objects changed while the feed was lost are emitted after reopening
+        assertThat(value(next(cursor))).isEqualTo(doc("b", 2));
+        assertThat(value(next(cursor))).isEqualTo(doc("c", 1));
+        assertThat(queries).containsExactly(true, true);
+
+        cursor.close();
+        assertThat(cursor.poll(100)).isNull();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void resumeWithChangeTime() throws DbException, TimeoutException {
+        Cursor<Map<String, Object>> first = mock(Cursor.class);
+        when(first.hasNext()).thenReturn(true).thenReturn(true).thenReturn(false);
+        when(first.next(anyLong()))
+                .thenReturn(r.hashMap("state", "ready"))
+                .thenReturn(change(doc("a", 1).with("lastChangeTime", T1), doc("a", 2).with("lastChangeTime", T2)));
+
+        Cursor<Map<String, Object>> second = mock(Cursor.class);
+        when(second.hasNext()).thenReturn(true);
+        when(second.next(anyLong()))
+                .thenReturn(initial(doc("a", 2).with("lastChangeTime", T2)))
+                // Not changed since the feed was opened
+                .thenReturn(initial(doc("b", 1).with("lastChangeTime", T1.minusHours(1))))
+                .thenReturn(initial(doc("c", 1).with("lastChangeTime", T1.plusMinutes(1))))
+                .thenReturn(r.hashMap("state", "ready"));
+
+        RethinkDbConnection conn = mock(RethinkDbConnection.class);
+        when(conn.<Object>exec(eq("db-test-getServerTime"), any())).thenReturn(T1, T2);
+        when(conn.<Object>exec(eq("db-test"), any())).thenReturn(first, second);
+
+        List<Object> queries = new ArrayList<>();
+        ResumableCursor cursor = new ResumableCursor(conn, "db-test", includeInitial -> {
+            queries.add(includeInitial);
+            return r.expr(includeInitial);
+        }, "lastChangeTime");
+
+        assertThat(value(next(cursor))).containsEntry("rev", 2);
+        assertThat(value(next(cursor))).containsEntry("id", "c");
+        assertThat(queries).containsExactly(false, true);
+
+        cursor.close();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void trackedObjectsAreBounded() throws DbException {
+        Cursor<Map<String, Object>> first = mock(Cursor.class);
+        when(first.hasNext()).thenReturn(true);
+        when(first.next(anyLong()))
+                .thenReturn(initial(doc("a", 1)))
+                .thenReturn(initial(doc("b", 1)))
+                .thenReturn(r.hashMap("state", "ready"))
+                .thenThrow(new ReqlDriverError("Connection lost"));
+
+        Cursor<Map<String, Object>> second = mock(Cursor.class);
+        when(second.hasNext()).thenReturn(true);
+        when(second.next(anyLong()))
+                .thenReturn(initial(doc("a", 1)))
+                .thenReturn(initial(doc("b", 1)))
+                .thenReturn(r.hashMap("state", "ready"))
+                .thenReturn(change(null, doc("c", 1)));
+
+        RethinkDbConnection conn = mock(RethinkDbConnection.class);
+        when(conn.<Object>exec(eq("db-test-getServerTime"), any())).thenReturn(T1, T2);
+        when(conn.<Object>exec(eq("db-test"), any())).thenReturn(first, second);
+
+        ResumableCursor cursor = new ResumableCursor(conn, "db-test", includeInitial -> r.expr(includeInitial), null, 1);
+
+        // Only one object is tracked, so unchanged objects which were forgotten are emitted after reopening
+        assertThat(value(next(cursor))).isEqualTo(doc("a", 1));
+        assertThat(value(next(cursor))).isEqualTo(doc("b", 1));
+        assertThat(value(next(cursor))).isEqualTo(doc("c", 1));
+
+        cursor.close();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void emitDeletesMissedWhileLost() throws DbException, TimeoutException {
+        Cursor<Map<String, Object>> first = mock(Cursor.class);
+        when(first.hasNext()).thenReturn(true);
+        when(first.next(anyLong()))
+                .thenReturn(initial(doc("a", 1)))
+                .thenReturn(initial(doc("b", 1)))
+                .thenReturn(initial(doc("c", 1)))
+                .thenReturn(r.hashMap("state", "ready"))
+                .thenThrow(new ReqlDriverError("Connection lost"));
+
+        Cursor<Map<String, Object>> second = mock(Cursor.class);
+        when(second.hasNext()).thenReturn(true);
+        when(second.next(anyLong()))
+                .thenReturn(initial(doc("b", 1)))
+                .thenReturn(r.hashMap("state", "ready"))
+                .thenReturn(change(doc("b", 1), doc("b", 2)));
+
+        RethinkDbConnection conn = mock(RethinkDbConnection.class);
+        when(conn.<Object>exec(eq("db-test-getServerTime"), any())).thenReturn(T1, T2);
+        when(conn.<Object>exec(eq("db-test"), any())).thenReturn(first, second);
+
+        ResumableCursor cursor = new ResumableCursor(conn, "db-test", includeInitial -> r.expr(includeInitial), null);
+
+        // Objects deleted while the feed was lost are emitted as deletes with only the id
+        List<Object> deleted = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            Map<String, Object> change = next(cursor);
+            assertThat(change).containsEntry("new_val", null);
+            deleted.add(((Map<String, Object>) change.get("old_val")).get("id"));
+        }
+        assertThat(deleted).containsExactlyInAnyOrder("a", "c");
+        assertThat(value(next(cursor))).isEqualTo(doc("b", 2));
+
+        cursor.close();
+        assertThat(cursor.poll(100)).isNull();
+    }
+
+    /**
+     * Poll until an object arrives. Polls time out while waiting to reopen a lost feed.
+     */
+    private static Map<String, Object> next(ResumableCursor cursor) {
+        while (true) {
+            try {
+                return cursor.poll(100);
+            } catch (TimeoutException e) {
+                // Try again
+            }
+        }
+    }
+
+    private static Map<String, Object> doc(String id, int rev) {
+        return r.hashMap("id", id).with("rev", rev);
+    }
+
+    private static Map<String, Object> initial(Map<String, Object> newVal) {
+        return r.hashMap("new_val", newVal);
+    }
+
+    private static Map<String, Object> change(Map<String, Object> oldVal, Map<String, Object> newVal) {
+        return r.hashMap("old_val", oldVal).with("new_val", newVal);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> value(Map<String, Object> change) {
+        return (Map<String, Object>) change.get("new_val");
+    }
+}
@@ -20,6 +20,8 @@ import io.grpc.Context;
 import no.nb.nna.veidemann.api.config.v1.ConfigObject;
 import no.nb.nna.veidemann.api.config.v1.ConfigRef;
 import no.nb.nna.veidemann.api.config.v1.CrawlConfig;
+import no.nb.nna.veidemann.api.config.v1.CrawlHostGroupConfig;
+import no.nb.nna.veidemann.api.config.v1.CrawlHostGroupConfig.IpRange;
 import no.nb.nna.veidemann.api.config.v1.CrawlJob;
 import no.nb.nna.veidemann.api.config.v1.CrawlScheduleConfig;
 import no.nb.nna.veidemann.api.config.v1.GetLabelKeysRequest;
@@ -28,6 +30,8 @@ import no.nb.nna.veidemann.api.config.v1.Label;
 import no.nb.nna.veidemann.api.config.v1.ListRequest;
 import no.nb.nna.veidemann.api.config.v1.LogLevels;
 import no.nb.nna.veidemann.api.config.v1.LogLevels.LogLevel;
+import no.nb.nna.veidemann.api.config.v1.Role;
+import no.nb.nna.veidemann.api.config.v1.RoleMapping;
 import no.nb.nna.veidemann.api.config.v1.UpdateRequest;
 import no.nb.nna.veidemann.commons.auth.EmailContextKey;
 import no.nb.nna.veidemann.commons.auth.RolesContextKey;
@@ -40,7 +44,10 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.net.InetAddress;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
 
 import static no.nb.nna.veidemann.api.config.v1.Kind.*;
@@ -392,6 +399,13 @@ public class RethinkDbConfigAdapterIT {
                 .containsExactlyInAnyOrder("foo", "aaa");
     }
 
+    @Test
+    public void testGetLabelKeysByPrefix() throws Exception {
+        assertThat(configAdapter.getLabelKeys(crawlScheduleConfig, "F")).containsExactly("foo");
+        assertThat(configAdapter.getLabelKeys(crawlScheduleConfig, "")).containsExactly("aaa", "foo");
+        assertThat(configAdapter.getLabelKeys(crawlScheduleConfig, "x")).isEmpty();
+    }
+
     @Test
     public void testUpdateConfigObjects() throws Exception {
         // Test add label to objects which already has 'foo:bar' label
@@ -785,4 +799,60 @@ public class RethinkDbConfigAdapterIT {
         response = configAdapter.getLogConfig();
         assertThat(response).isEqualTo(logLevels);
     }
+
+    @Test
+    public void testGetRolesForPrincipal() throws DbException {
+        configAdapter.saveConfigObject(createConfBuilder(roleMapping, "rm1")
+                .setRoleMapping(RoleMapping.newBuilder()
+                        .setGroup("operators")
+                        .addRole(Role.OPERATOR))
+                .build());
+
+        assertThat(configAdapter.getRolesForPrincipal("admin@example.com", Collections.emptyList()))
+                .containsOnly(Role.ADMIN, Role.CURATOR);
+        assertThat(configAdapter.getRolesForPrincipal("admin@example.com", List.of("operators", "unknown")))
+                .containsOnly(Role.ADMIN, Role.CURATOR, Role.OPERATOR);
+        assertThat(configAdapter.getRolesForPrincipal(null, List.of("operators")))
+                .containsOnly(Role.OPERATOR);
+        assertThat(configAdapter.getRolesForPrincipal("unknown@example.com", Collections.emptyList()))
+                .isEmpty();
+    }
+
+    @Test
+    public void testFindCrawlHostGroupForIp() throws Exception {
+        ConfigObject wide = configAdapter.saveConfigObject(createConfBuilder(crawlHostGroupConfig, "chg-wide")
+                .setCrawlHostGroupConfig(CrawlHostGroupConfig.newBuilder()
+                        .addIpRange(IpRange.newBuilder().setIpFrom("10.0.0.0").setIpTo("10.255.255.255")))
+                .build());
+        ConfigObject narrow = configAdapter.saveConfigObject(createConfBuilder(crawlHostGroupConfig, "chg-narrow")
+                .setCrawlHostGroupConfig(CrawlHostGroupConfig.newBuilder()
+                        .addIpRange(IpRange.newBuilder().setIpFrom("10.1.0.0").setIpTo("10.1.0.255"))
+                        .addIpRange(IpRange.newBuilder().setIpFrom("2001:db8::").setIpTo("2001:db8::ffff")))
+                .build());
+
+        assertThat(awaitCrawlHostGroupForIp("10.2.3.4", wide.getId()).getId()).isEqualTo(wide.getId());
+        assertThat(awaitCrawlHostGroupForIp("10.1.0.17", narrow.getId()).getId()).isEqualTo(narrow.getId());
+        assertThat(awaitCrawlHostGroupForIp("2001:db8::1", narrow.getId()).getId()).isEqualTo(narrow.getId());
+        assertThat(configAdapter.findCrawlHostGroupForIp(InetAddress.getByName("192.168.1.1"))).isNull();
+
+        // Changes are picked up by the change feed
+        configAdapter.deleteConfigObject(narrow);
+        assertThat(awaitCrawlHostGroupForIp("10.1.0.17", wide.getId()).getId()).isEqualTo(wide.getId());
+        assertThat(awaitCrawlHostGroupForIp("2001:db8::1", null)).isNull();
+    }
+
+    private ConfigObject awaitCrawlHostGroupForIp(String ip, String expectedId) throws Exception {
+        InetAddress address = InetAddress.getByName(ip);
+        long deadline = System.currentTimeMillis() + 10000;
+        ConfigObject result = configAdapter.findCrawlHostGroupForIp(address);
+        while (!matches(result, expectedId) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+            result = configAdapter.findCrawlHostGroupForIp(address);
+        }
+        return result;
+    }
+
+    private static boolean matches(ConfigObject co, String expectedId) {
+        return expectedId == null ? co == null : co != null && expectedId.equals(co.getId());
+    }
 }
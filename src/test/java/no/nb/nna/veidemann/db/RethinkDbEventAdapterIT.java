@@ -29,13 +29,25 @@ import no.nb.nna.veidemann.api.eventhandler.v1.SaveRequest;
 import no.nb.nna.veidemann.api.eventhandler.v1.UpdateRequest;
 import no.nb.nna.veidemann.commons.auth.EmailContextKey;
 import no.nb.nna.veidemann.commons.auth.RolesContextKey;
+import no.nb.nna.veidemann.commons.db.ChangeFeed;
 import no.nb.nna.veidemann.commons.db.DbException;
 import no.nb.nna.veidemann.commons.db.DbService;
 import no.nb.nna.veidemann.commons.settings.CommonSettings;
+import no.nb.nna.veidemann.db.initializer.RethinkDbInitializer;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
 
@@ -251,6 +263,137 @@ public class RethinkDbEventAdapterIT {
         return SaveRequest.newBuilder().setObject(obj).setComment(comment).build();
     }
 
+    @Test
+    public void testSaveEventObjects() throws DbException {
+        EventObject existing = eventAdapter.saveEventObject(saveRequest(EventObject.newBuilder().setType("type1").setSource("system"), "c1"));
+
+        List<EventObject> saved = eventAdapter.saveEventObjects(Arrays.asList(
+                saveRequest(EventObject.newBuilder().setType("type1").setSource("system").addLabel("FOO"), "c1"),
+                saveRequest(existing.toBuilder().setSeverity(Severity.ERROR), "c2"),
+                saveRequest(EventObject.newBuilder().setType("type2").setSource("system"), "c1")));
+
+        assertThat(saved).hasSize(3);
+        assertThat(saved.get(0).getId()).isNotEmpty();
+        assertThat(saved.get(0).getLabelList()).containsExactly("foo");
+        assertThat(saved.get(0).getActivity(0).getComment()).isEqualTo("c1");
+        assertThat(saved.get(1).getId()).isEqualTo(existing.getId());
+        assertThat(saved.get(1).getSeverity()).isEqualTo(Severity.ERROR);
+        assertThat(saved.get(1).getActivityList()).hasSize(2);
+        assertThat(saved.get(1).getActivity(0).getComment()).isEqualTo("c2");
+        assertThat(saved.get(2).getType()).isEqualTo("type2");
+
+        List<String> ids = eventAdapter.saveEventObjectsReturnIds(Arrays.asList(
+                saveRequest(EventObject.newBuilder().setType("type3").setSource("system"), ""),
+                saveRequest(saved.get(2).toBuilder().setAssignee("admin"), "")));
+
+        assertThat(ids).hasSize(2);
+        assertThat(ids.get(1)).isEqualTo(saved.get(2).getId());
+        assertThat(eventAdapter.getEventObject(EventRef.newBuilder().setId(ids.get(0)).build()).getType()).isEqualTo("type3");
+        assertThat(eventAdapter.getEventObject(EventRef.newBuilder().setId(ids.get(1)).build()).getAssignee()).isEqualTo("admin");
+
+        assertThatExceptionOfType(IllegalArgumentException.class).isThrownBy(() ->
+                eventAdapter.saveEventObjects(Arrays.asList(
+                        saveRequest(EventObject.newBuilder().setType("type1").setSource("system"), ""),
+                        saveRequest(EventObject.newBuilder().setType("type1"), ""))))
+                .withMessage("Missing source for event object");
+    }
+
+    @Test
+    public void testSaveEventObjectDeduplicated() throws DbException {
+        EventFingerprint fingerprint = new EventFingerprint("seed");
+        EventObject.Builder eo = EventObject.newBuilder().setType("type1").setSource("system")
+                .addData(Data.newBuilder().setKey("seed").setValue("seed1"))
+                .addData(Data.newBuilder().setKey("error").setValue("error1"));
+
+        DeduplicatedEvent first = eventAdapter.saveEventObjectDeduplicated(saveRequest(eo, "c1"), fingerprint);
+        assertThat(first.isCreated()).isTrue();
+        assertThat(first.getOccurrences()).isEqualTo(1);
+        assertThat(first.getEventObject().getState()).isEqualTo(State.NEW);
+
+        // Data not part of the fingerprint is ignored
+        eo.setData(1, Data.newBuilder().setKey("error").setValue("error2"));
+        DeduplicatedEvent second = eventAdapter.saveEventObjectDeduplicated(saveRequest(eo, "c2"), fingerprint);
+        assertThat(second.isCreated()).isFalse();
+        assertThat(second.getOccurrences()).isEqualTo(2);
+        assertThat(second.getEventObject().getId()).isEqualTo(first.getEventObject().getId());
+        assertThat(second.getEventObject().getActivityList()).hasSize(1);
+
+        // Other seed gives another fingerprint
+        DeduplicatedEvent other = eventAdapter.saveEventObjectDeduplicated(saveRequest(EventObject.newBuilder()
+                .setType("type1").setSource("system")
+                .addData(Data.newBuilder().setKey("seed").setValue("seed2")), "c3"), fingerprint);
+        assertThat(other.isCreated()).isTrue();
+
+        // Saving the event keeps the occurrence count and fingerprint
+        EventObject opened = eventAdapter.saveEventObject(saveRequest(second.getEventObject().toBuilder().setState(State.OPEN), "c4"));
+        DeduplicatedEvent third = eventAdapter.saveEventObjectDeduplicated(saveRequest(eo, "c5"), fingerprint);
+        assertThat(third.isCreated()).isFalse();
+        assertThat(third.getOccurrences()).isEqualTo(3);
+        assertThat(third.getEventObject().getId()).isEqualTo(opened.getId());
+
+        // Closed events are not matched
+        eventAdapter.saveEventObject(saveRequest(third.getEventObject().toBuilder().setState(State.CLOSED), "c6"));
+        DeduplicatedEvent fourth = eventAdapter.saveEventObjectDeduplicated(saveRequest(eo, "c7"), fingerprint);
+        assertThat(fourth.isCreated()).isTrue();
+        assertThat(fourth.getEventObject().getId()).isNotEqualTo(first.getEventObject().getId());
+
+        assertThatExceptionOfType(IllegalArgumentException.class).isThrownBy(() ->
+                eventAdapter.saveEventObjectDeduplicated(saveRequest(opened.toBuilder(), ""), fingerprint));
+    }
+
+    @Test
+    public void testSaveEventObjectDeduplicatedConcurrently() throws Exception {
+        EventFingerprint fingerprint = new EventFingerprint("seed");
+        EventObject eo = EventObject.newBuilder().setType("type1").setSource("system")
+                .addData(Data.newBuilder().setKey("seed").setValue("seed1"))
+                .build();
+
+        int count = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(count);
+        try {
+            List<Future<DeduplicatedEvent>> results = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                results.add(executor.submit(() -> eventAdapter.saveEventObjectDeduplicated(saveRequest(eo.toBuilder(), ""), fingerprint)));
+            }
+            List<DeduplicatedEvent> events = new ArrayList<>();
+            for (Future<DeduplicatedEvent> result : results) {
+                events.add(result.get());
+            }
+            assertThat(events).filteredOn(DeduplicatedEvent::isCreated).hasSize(1);
+            assertThat(events).extracting(e -> e.getEventObject().getId()).containsOnly(events.get(0).getEventObject().getId());
+            assertThat(events).extracting(DeduplicatedEvent::getOccurrences).contains((long) count);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testActivityLimit() throws DbException {
+        EventObject eo = eventAdapter.saveEventObject(saveRequest(EventObject.newBuilder().setType("type1").setSource("system"), "c0"));
+        int updates = RethinkDbEventAdapter.ACTIVITY_LIMIT + 5;
+        for (int i = 1; i <= updates; i++) {
+            eo = eventAdapter.saveEventObject(saveRequest(eo.toBuilder().setAssignee("user" + i), "c" + i));
+        }
+
+        assertThat(eo.getActivityList()).hasSize(RethinkDbEventAdapter.ACTIVITY_LIMIT);
+        assertThat(eo.getActivity(0).getComment()).isEqualTo("c" + updates);
+
+        EventRef ref = EventRef.newBuilder().setId(eo.getId()).build();
+        assertThat(eventAdapter.getEventObject(ref).getActivityList()).hasSize(RethinkDbEventAdapter.ACTIVITY_LIMIT);
+
+        EventObject full = eventAdapter.getEventObjectWithFullActivity(ref);
+        assertThat(full.getActivityList()).hasSize(updates + 1);
+        for (int i = 0; i <= updates; i++) {
+            assertThat(full.getActivity(i).getComment()).isEqualTo("c" + (updates - i));
+        }
+        assertThat(full.getActivity(updates).getDescription(0).getType()).isEqualTo(ChangeType.CREATED);
+
+        eventAdapter.deleteEventObject(eo);
+        RethinkDbConnection conn = ((RethinkDbInitializer) DbService.getInstance().getDbInitializer()).getDbConnection();
+        long spilled = conn.exec(r.table(Tables.EVENT_ACTIVITY.name).count());
+        assertThat(spilled).isZero();
+    }
+
     @Test
     public void testListEventObjects() throws DbException {
         EventObject eo1 = eventAdapter.saveEventObject(saveRequest(EventObject.newBuilder().setType("type1").setSource("system"), "c1-1"));
@@ -338,6 +481,48 @@ public class RethinkDbEventAdapterIT {
                 .containsExactly(eo5);
     }
 
+    @Test
+    public void testListEventObjectsWatch() throws Exception {
+        EventObject eo1 = eventAdapter.saveEventObject(saveRequest(EventObject.newBuilder().setType("type1").setSource("source1"), "c1-1"));
+        eventAdapter.saveEventObject(saveRequest(EventObject.newBuilder().setType("type1").setSource("system"), "c2-1"));
+
+        ListRequest.Builder request = ListRequest.newBuilder();
+        request.getQueryTemplateBuilder().setSource("source1");
+        request.getQueryMaskBuilder().addPaths("source");
+
+        ChangeFeed<EventObject> feed = eventAdapter.listEventObjects(request.build(), true);
+        BlockingQueue<EventObject> values = new LinkedBlockingQueue<>();
+        Thread reader = new Thread(() -> feed.stream().forEach(values::add));
+        reader.start();
+
+        assertThat(values.poll(10, TimeUnit.SECONDS)).isEqualTo(eo1);
+        eventAdapter.saveEventObject(saveRequest(EventObject.newBuilder().setType("type2").setSource("system"), "c4-1"));
+        EventObject eo3 = eventAdapter.saveEventObject(saveRequest(EventObject.newBuilder().setType("type2").setSource("source1"), "c3-1"));
+        assertThat(values.poll(10, TimeUnit.SECONDS)).isEqualTo(eo3);
+
+        feed.stream().close();
+        reader.join(10000);
+        assertThat(reader.isAlive()).isFalse();
+        assertThat(values).isEmpty();
+
+        // Watch of the first page of all events
+        ListRequest.Builder latest = ListRequest.newBuilder().setPageSize(1);
+        latest.getReturnedFieldsMaskBuilder().addPaths("type");
+
+        ChangeFeed<EventObject> latestFeed = eventAdapter.listEventObjects(latest.build(), true);
+        BlockingQueue<String> types = new LinkedBlockingQueue<>();
+        Thread latestReader = new Thread(() -> latestFeed.stream().forEach(e -> types.add(e.getType())));
+        latestReader.start();
+
+        assertThat(types.poll(10, TimeUnit.SECONDS)).isEqualTo("type2");
+        eventAdapter.saveEventObject(saveRequest(EventObject.newBuilder().setType("type3").setSource("system"), "c5-1"));
+        assertThat(types.poll(10, TimeUnit.SECONDS)).isEqualTo("type3");
+
+        latestFeed.stream().close();
+        latestReader.join(10000);
+        assertThat(latestReader.isAlive()).isFalse();
+    }
+
     @Test
     public void testCountEventObjects() throws Exception {
         eventAdapter.saveEventObject(saveRequest(EventObject.newBuilder().setType("type1").setSource("system"), ""));
@@ -498,5 +683,25 @@ public class RethinkDbEventAdapterIT {
         assertThat(eventAdapter.listLabels(ListLabelRequest.newBuilder()
                 .setText("foo").build()).getLabelList())
                 .containsExactlyInAnyOrder("foo", "fooabc", "abcfoo", "pinkfooabc");
+
+        // RE2 syntax for named groups
+        assertThat(eventAdapter.listLabels(ListLabelRequest.newBuilder()
+                .setText("^(?P<start>foo)abc").build()).getLabelList())
+                .containsExactlyInAnyOrder("fooabc");
+    }
+
+    @Test
+    public void testListLabelsByPrefix() throws Exception {
+        eventAdapter.saveEventObject(saveRequest(EventObject.newBuilder().setType("type1").setSource("system")
+                .addLabel("abc").addLabel("foo"), ""));
+        eventAdapter.saveEventObject(saveRequest(EventObject.newBuilder().setType("type1").setSource("system")
+                .addLabel("FOO").addLabel("fooabc").addLabel("abcfoo"), ""));
+
+        assertThat(eventAdapter.listLabelsByPrefix("foo")).containsExactly("foo", "fooabc");
+        assertThat(eventAdapter.listLabelsByPrefix("abc")).containsExactly("abc", "abcfoo");
+        assertThat(eventAdapter.listLabelsByPrefix("x")).isEmpty();
+
+        // Labels are stored in lower case, so the prefix is matched case insensitively
+        assertThat(eventAdapter.listLabelsByPrefix("FOO")).containsExactly("foo", "fooabc");
     }
-}
\ No newline at end of file
+}
@@ -37,10 +37,18 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import java.text.ParseException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
 
 public class RethinkDbExecutionsAdapterIT {
     public static RethinkDbConnection conn;
@@ -50,6 +58,7 @@ public class RethinkDbExecutionsAdapterIT {
 
     @BeforeClass
     public static void init() throws DbException {
+        System.setProperty(RethinkDbExecutionsAdapter.ARCHIVE_CUTOFF_CACHE_KEY, "100");
         String dbHost = System.getProperty("db.host");
         int dbPort = Integer.parseInt(System.getProperty("db.port"));
 
@@ -254,4 +263,326 @@ public class RethinkDbExecutionsAdapterIT {
         jList = executionsAdapter.listJobExecutionStatus(JobExecutionsListRequest.newBuilder().setStartTimeTo(ProtoUtils.getNowTs()).build());
         assertThat(jList.stream()).hasSize(2).containsExactlyInAnyOrder(jes1, jes2);
     }
+
+    @Test
+    public void setJobExecutionStateAborted() throws DbException {
+        JobExecutionStatus jes = executionsAdapter.createJobExecutionStatus("jobId1");
+        CrawlExecutionStatus ces1 = createCrawlExecutionStatus("jobId1", jes.getId(), "seedId1");
+        CrawlExecutionStatus ces2 = createCrawlExecutionStatus("jobId1", jes.getId(), "seedId2");
+        CrawlExecutionStatus ces3 = createCrawlExecutionStatus("jobId1", jes.getId(), "seedId3");
+        CrawlExecutionStatus other = createCrawlExecutionStatus("jobId1", "otherJobExe", "seedId1");
+
+        // A finished Crawl Execution should not get a desired state
+        conn.exec(r.table(Tables.EXECUTIONS.name).get(ces3.getId())
+                .update(r.hashMap("state", "FINISHED").with("endTime", r.now())));
+
+        List<long[]> progress = new ArrayList<>();
+        jes = executionsAdapter.setJobExecutionStateAborted(jes.getId(),
+                (processed, modified) -> progress.add(new long[]{processed, modified}));
+
+        assertThat(jes.getDesiredState()).isEqualTo(State.ABORTED_MANUAL);
+        assertThat(progress).hasSize(1);
+        assertThat(progress.get(0)).containsExactly(3L, 2L);
+        assertThat(executionsAdapter.getCrawlExecutionStatus(ces1.getId()).getDesiredState())
+                .isEqualTo(CrawlExecutionStatus.State.ABORTED_MANUAL);
+        assertThat(executionsAdapter.getCrawlExecutionStatus(ces2.getId()).getDesiredState())
+                .isEqualTo(CrawlExecutionStatus.State.ABORTED_MANUAL);
+        assertThat(executionsAdapter.getCrawlExecutionStatus(ces3.getId()).getDesiredState())
+                .isEqualTo(CrawlExecutionStatus.State.UNDEFINED);
+        assertThat(executionsAdapter.getCrawlExecutionStatus(other.getId()).getDesiredState())
+                .isEqualTo(CrawlExecutionStatus.State.UNDEFINED);
+    }
+
+    @Test
+    public void setJobExecutionStateAbortedAcrossChunkBoundary() throws DbException {
+        JobExecutionStatus jes = executionsAdapter.createJobExecutionStatus("jobId1");
+
+        // The last seedId is shared by executions on both sides of the first chunk boundary
+        List<Map<String, Object>> docs = new ArrayList<>();
+        for (int i = 0; i < RethinkDbExecutionsAdapter.ABORT_CHUNK_SIZE + 2; i++) {
+            String seedId = i < RethinkDbExecutionsAdapter.ABORT_CHUNK_SIZE - 1 ? String.format("seed%05d", i) : "seedLast";
+            docs.add(r.hashMap("jobId", "jobId1")
+                    .with("jobExecutionId", jes.getId())
+                    .with("seedId", seedId)
+                    .with("state", "CREATED"));
+        }
+        conn.exec(r.table(Tables.EXECUTIONS.name).insert(docs));
+
+        List<long[]> progress = new ArrayList<>();
+        executionsAdapter.setJobExecutionStateAborted(jes.getId(),
+                (processed, modified) -> progress.add(new long[]{processed, modified}));
+
+        long notAborted = conn.exec(r.table(Tables.EXECUTIONS.name)
+                .between(r.array(jes.getId(), r.minval()), r.array(jes.getId(), r.maxval()))
+                .optArg("index", "jobExecutionId_seedId")
+                .filter(doc -> doc.g("desiredState").default_("").ne(CrawlExecutionStatus.State.ABORTED_MANUAL.name()))
+                .count());
+        assertThat(notAborted).isZero();
+        assertThat(progress.get(progress.size() - 1))
+                .containsExactly(RethinkDbExecutionsAdapter.ABORT_CHUNK_SIZE + 2L, RethinkDbExecutionsAdapter.ABORT_CHUNK_SIZE + 2L);
+    }
+
+    @Test
+    public void updateCrawlExecutionStatus() throws DbException {
+        JobExecutionStatus jes = executionsAdapter.createJobExecutionStatus("jobId1");
+        CrawlExecutionStatus ces1 = createCrawlExecutionStatus("jobId1", jes.getId(), "seedId1");
+        CrawlExecutionStatus ces2 = createCrawlExecutionStatus("jobId1", jes.getId(), "seedId2");
+
+        jes = executionsAdapter.rebuildJobExecutionStats(jes.getId());
+        assertThat(jes.getExecutionsStateMap()).containsOnly(entry("CREATED", 2));
+        assertThat(jes.getDocumentsCrawled()).isEqualTo(0);
+
+        ces1 = executionsAdapter.updateCrawlExecutionStatus(new CrawlExecutionUpdate(ces1.getId())
+                .withState(CrawlExecutionStatus.State.FETCHING)
+                .addDocumentsCrawled(2)
+                .addBytesCrawled(1000));
+        assertThat(ces1.getState()).isEqualTo(CrawlExecutionStatus.State.FETCHING);
+        assertThat(ces1.getDocumentsCrawled()).isEqualTo(2);
+        assertThat(ces1.getBytesCrawled()).isEqualTo(1000);
+
+        ces1 = executionsAdapter.updateCrawlExecutionStatus(new CrawlExecutionUpdate(ces1.getId())
+                .addDocumentsCrawled(1)
+                .addBytesCrawled(500));
+        assertThat(ces1.getState()).isEqualTo(CrawlExecutionStatus.State.FETCHING);
+        assertThat(ces1.getDocumentsCrawled()).isEqualTo(3);
+
+        executionsAdapter.updateCrawlExecutionStatus(new CrawlExecutionUpdate(ces2.getId())
+                .withState(CrawlExecutionStatus.State.FINISHED)
+                .addDocumentsFailed(1));
+
+        jes = executionsAdapter.getJobExecutionStatus(jes.getId());
+        assertThat(jes.getExecutionsStateMap()).containsOnly(entry("FETCHING", 1), entry("FINISHED", 1));
+        assertThat(jes.getDocumentsCrawled()).isEqualTo(3);
+        assertThat(jes.getBytesCrawled()).isEqualTo(1500);
+        assertThat(jes.getDocumentsFailed()).isEqualTo(1);
+
+        // Rebuilding should give the same result
+        assertThat(executionsAdapter.rebuildJobExecutionStats(jes.getId())).isEqualTo(jes);
+
+        assertThat(executionsAdapter.updateCrawlExecutionStatus(new CrawlExecutionUpdate("missing"))).isNull();
+
+        // A state missing from drifted statistics should not get a negative count
+        conn.exec(r.table(Tables.JOB_EXECUTIONS.name).get(jes.getId())
+                .update(r.hashMap("executionsState", r.array(r.hashMap("FINISHED", 1)))));
+        executionsAdapter.updateCrawlExecutionStatus(new CrawlExecutionUpdate(ces1.getId())
+                .withState(CrawlExecutionStatus.State.FINISHED));
+        jes = executionsAdapter.getJobExecutionStatus(jes.getId());
+        assertThat(jes.getExecutionsStateMap()).containsOnly(entry("FINISHED", 2));
+    }
+
+    @Test
+    public void retryCrawlExecutionUpdates() throws DbException {
+        JobExecutionStatus jes = executionsAdapter.createJobExecutionStatus("jobId1");
+        CrawlExecutionStatus ces = createCrawlExecutionStatus("jobId1", jes.getId(), "seedId1");
+
+        CrawlExecutionUpdate batched = new CrawlExecutionUpdate(ces.getId()).addDocumentsCrawled(2);
+        executionsAdapter.updateCrawlExecutionStatuses(List.of(batched));
+
+        // A direct update between a batch and its retry should not make the retry count twice
+        executionsAdapter.updateCrawlExecutionStatus(new CrawlExecutionUpdate(ces.getId()).addDocumentsCrawled(1));
+        executionsAdapter.updateCrawlExecutionStatuses(List.of(batched));
+
+        assertThat(executionsAdapter.getCrawlExecutionStatus(ces.getId()).getDocumentsCrawled()).isEqualTo(3);
+        assertThat(executionsAdapter.getJobExecutionStatus(jes.getId()).getDocumentsCrawled()).isEqualTo(3);
+    }
+
+    @Test
+    public void executionRollups() throws DbException, ParseException {
+        insertEndedCrawlExecution("jobId1", "FINISHED", "2020-12-03T09:00:00Z", "2020-12-03T09:10:00Z", 10, 1000);
+        insertEndedCrawlExecution("jobId1", "FINISHED", "2020-12-03T09:20:00Z", "2020-12-03T09:40:00Z", 5, 500);
+        insertEndedCrawlExecution("jobId1", "FAILED", "2020-12-03T09:30:00Z", "2020-12-03T09:50:00Z", 1, 10);
+        insertEndedCrawlExecution("jobId2", "FINISHED", "2020-12-03T10:00:00Z", "2020-12-03T10:30:00Z", 2, 20);
+        insertEndedCrawlExecution("jobId1", "FINISHED", "2020-12-05T08:00:00Z", "2020-12-05T08:30:00Z", 1, 1);
+
+        executionsAdapter.updateExecutionRollups();
+        // Running again should not count executions twice
+        executionsAdapter.updateExecutionRollups();
+
+        List<ExecutionRollup> hourly = executionsAdapter.listExecutionRollups(ExecutionRollup.Granularity.HOUR,
+                ExecutionRollup.Type.CRAWL_EXECUTION, "jobId1",
+                Timestamps.parse("2020-12-03T00:00:00Z"), Timestamps.parse("2020-12-04T00:00:00Z"));
+        assertThat(hourly).hasSize(2);
+        ExecutionRollup finished = hourly.stream().filter(h -> h.getState().equals("FINISHED")).findFirst().get();
+        assertThat(finished.getBucket()).isEqualTo(Timestamps.parse("2020-12-03T09:00:00Z"));
+        assertThat(finished.getCount()).isEqualTo(2);
+        assertThat(finished.getDurationSeconds()).isEqualTo(1800.0);
+        assertThat(finished.getStats()).containsEntry("documentsCrawled", 15L).containsEntry("bytesCrawled", 1500L);
+
+        List<ExecutionRollup> daily = executionsAdapter.listExecutionRollups(ExecutionRollup.Granularity.DAY,
+                ExecutionRollup.Type.CRAWL_EXECUTION, null,
+                Timestamps.parse("2020-12-01T00:00:00Z"), Timestamps.parse("2021-01-01T00:00:00Z"));
+        assertThat(daily).extracting(ExecutionRollup::getCount).containsExactlyInAnyOrder(2L, 1L, 1L, 1L);
+        assertThat(daily.get(daily.size() - 1).getBucket()).isEqualTo(Timestamps.parse("2020-12-05T00:00:00Z"));
+    }
+
+    @Test
+    public void archiveExecutions() throws DbException, ParseException {
+        insertEndedCrawlExecution("jobId1", "FINISHED", "2020-12-03T09:00:00Z", "2020-12-03T09:10:00Z", 10, 1000);
+        insertEndedCrawlExecution("jobId1", "FINISHED", "2020-12-04T09:00:00Z", "2020-12-04T09:10:00Z", 5, 500);
+        CrawlExecutionStatus running = setStartStatus(createCrawlExecutionStatus("jobId1", "jobExe1", "seed2"),
+                ProtoUtils.getNowTs());
+
+        List<Long> progress = new ArrayList<>();
+        executionsAdapter.archiveExecutions(Duration.ofDays(1), (processed, modified) -> progress.add(processed));
+        assertThat(progress).containsExactly(2L, 2L);
+
+        long hot = conn.exec(r.table(Tables.EXECUTIONS.name).count());
+        long archived = conn.exec(r.table(Tables.EXECUTIONS_ARCHIVE.name).count());
+        assertThat(hot).isEqualTo(1);
+        assertThat(archived).isEqualTo(2);
+
+        // Archiving again is a no-op
+        executionsAdapter.archiveExecutions(Duration.ofDays(1));
+        archived = conn.exec(r.table(Tables.EXECUTIONS_ARCHIVE.name).count());
+        assertThat(archived).isEqualTo(2);
+
+        // List from both hot and archive tables, merge sorted
+        CrawlExecutionsListRequest req = CrawlExecutionsListRequest.newBuilder()
+                .setOrderByPath("startTime")
+                .build();
+        List<CrawlExecutionStatus> list = executionsAdapter.listCrawlExecutionStatus(req).stream()
+                .collect(Collectors.toList());
+        assertThat(list).extracting(CrawlExecutionStatus::getDocumentsCrawled).containsExactly(10L, 5L, 0L);
+        assertThat(list.get(2)).isEqualTo(running);
+
+        list = executionsAdapter.listCrawlExecutionStatus(req.toBuilder().setOffset(1).setPageSize(1).build())
+                .stream().collect(Collectors.toList());
+        assertThat(list).extracting(CrawlExecutionStatus::getDocumentsCrawled).containsExactly(5L);
+
+        // Start time after archive cutoff is served from the hot table
+        list = executionsAdapter.listCrawlExecutionStatus(req.toBuilder()
+                .setStartTimeFrom(Timestamps.parse("2021-01-01T00:00:00Z")).build())
+                .stream().collect(Collectors.toList());
+        assertThat(list).containsExactly(running);
+
+        // Get falls back to archive
+        assertThat(executionsAdapter.getCrawlExecutionStatus(list.get(0).getId())).isEqualTo(running);
+        String archivedId = conn.exec(r.table(Tables.EXECUTIONS_ARCHIVE.name).nth(0).g("id"));
+        assertThat(executionsAdapter.getCrawlExecutionStatus(archivedId).getId()).isEqualTo(archivedId);
+    }
+
+    @Test
+    public void subscribeDesiredPausedState() throws Exception {
+        executionsAdapter.setDesiredPausedState(false);
+
+        BlockingQueue<Boolean> values = new LinkedBlockingQueue<>();
+        BlockingQueue<String> threads = new LinkedBlockingQueue<>();
+        try (AutoCloseable subscription = executionsAdapter.subscribeDesiredPausedState(v -> {
+            threads.add(Thread.currentThread().getName());
+            values.add(v);
+        })) {
+            assertThat(values.poll(10, TimeUnit.SECONDS)).isFalse();
+
+            // Own writes are visible without waiting for the change feed
+            executionsAdapter.setDesiredPausedState(true);
+            assertThat(executionsAdapter.getDesiredPausedState()).isTrue();
+            assertThat(values.poll(10, TimeUnit.SECONDS)).isTrue();
+
+            executionsAdapter.setDesiredPausedState(false);
+            assertThat(executionsAdapter.getDesiredPausedState()).isFalse();
+            assertThat(values.poll(10, TimeUnit.SECONDS)).isFalse();
+        }
+        assertThat(threads).isNotEmpty().allMatch(name -> !name.equals(Thread.currentThread().getName()));
+    }
+
+    @Test
+    public void subscribeCrawlExecutionDesiredState() throws Exception {
+        CrawlExecutionStatus ces1 = createCrawlExecutionStatus("jobId1", "jobExe1", "seedId1");
+        CrawlExecutionStatus ces2 = createCrawlExecutionStatus("jobId1", "jobExe1", "seedId2");
+
+        BlockingQueue<CrawlExecutionStatus.State> values1 = new LinkedBlockingQueue<>();
+        BlockingQueue<CrawlExecutionStatus.State> values2 = new LinkedBlockingQueue<>();
+        try (AutoCloseable s1 = executionsAdapter.subscribeCrawlExecutionDesiredState(ces1.getId(), values1::add);
+             AutoCloseable s2 = executionsAdapter.subscribeCrawlExecutionDesiredState(ces2.getId(), values2::add)) {
+            assertThat(values1).isEmpty();
+
+            executionsAdapter.setCrawlExecutionStateAborted(ces1.getId(), CrawlExecutionStatus.State.ABORTED_MANUAL);
+            assertThat(values1.poll(10, TimeUnit.SECONDS)).isEqualTo(CrawlExecutionStatus.State.ABORTED_MANUAL);
+            assertThat(values2).isEmpty();
+        }
+
+        // Subscribing to an execution which already has a desired state calls the listener immediately
+        BlockingQueue<CrawlExecutionStatus.State> values3 = new LinkedBlockingQueue<>();
+        try (AutoCloseable s3 = executionsAdapter.subscribeCrawlExecutionDesiredState(ces1.getId(), values3::add)) {
+            assertThat(values3).containsExactly(CrawlExecutionStatus.State.ABORTED_MANUAL);
+        }
+    }
+
+    @Test
+    public void getExecutionStatuses() throws DbException {
+        CrawlExecutionStatus ces1 = createCrawlExecutionStatus("jobId1", "jobExe1", "seedId1");
+        CrawlExecutionStatus ces2 = createCrawlExecutionStatus("jobId1", "jobExe1", "seedId2");
+
+        Map<String, CrawlExecutionStatus> statuses = executionsAdapter.getCrawlExecutionStatuses(
+                List.of(ces2.getId(), "missing", ces1.getId()));
+        assertThat(statuses).containsExactly(entry(ces2.getId(), ces2), entry("missing", null), entry(ces1.getId(), ces1));
+
+        JobExecutionStatus jes = executionsAdapter.createJobExecutionStatus("jobId1");
+        Map<String, JobExecutionStatus> jobStatuses = executionsAdapter.getJobExecutionStatuses(
+                List.of("missing", jes.getId()));
+        assertThat(jobStatuses).containsExactly(entry("missing", null), entry(jes.getId(), jes));
+
+        assertThat(executionsAdapter.getCrawlExecutionStatuses(List.of())).isEmpty();
+    }
+
+    @Test
+    public void getLatestCrawlExecutions() throws DbException {
+        createCrawlExecutionStatus("jobId1", "jobExe1", "seedId1");
+        CrawlExecutionStatus latest1 = createCrawlExecutionStatus("jobId1", "jobExe2", "seedId1");
+        CrawlExecutionStatus latest2 = createCrawlExecutionStatus("jobId1", "jobExe2", "seedId2");
+
+        Map<String, CrawlExecutionStatus> latest = executionsAdapter.getLatestCrawlExecutions(
+                List.of("seedId2", "seedId3", "seedId1"));
+        assertThat(latest).containsExactly(
+                entry("seedId2", latest2), entry("seedId3", null), entry("seedId1", latest1));
+    }
+
+    @Test
+    public void startJobExecution() throws DbException {
+        insertSeed("seed1", "job1", false);
+        insertSeed("seed2", "job1", false);
+        insertSeed("seed3", "job1", true);
+        insertSeed("seed4", "job2", false);
+
+        List<long[]> progress = new ArrayList<>();
+        JobExecutionStart start = executionsAdapter.startJobExecution("job1",
+                (processed, modified) -> progress.add(new long[]{processed, modified}));
+
+        assertThat(start.getSeedCount()).isEqualTo(2);
+        assertThat(start.getCrawlExecutionCount()).isEqualTo(2);
+        assertThat(progress).hasSize(1);
+        assertThat(progress.get(0)).containsExactly(2L, 2L);
+        assertThat(start.getJobExecution().getJobId()).isEqualTo("job1");
+        assertThat(start.getJobExecution().getExecutionsStateMap()).containsOnly(entry("CREATED", 2));
+
+        List<CrawlExecutionStatus> ces = executionsAdapter.listCrawlExecutionStatus(
+                CrawlExecutionsListRequest.getDefaultInstance()).stream().collect(Collectors.toList());
+        assertThat(ces).extracting(CrawlExecutionStatus::getSeedId).containsExactlyInAnyOrder("seed1", "seed2");
+        assertThat(ces).allSatisfy(c -> {
+            assertThat(c.getJobExecutionId()).isEqualTo(start.getJobExecution().getId());
+            assertThat(c.getState()).isEqualTo(CrawlExecutionStatus.State.CREATED);
+        });
+
+        JobExecutionStart empty = executionsAdapter.startJobExecution("job3");
+        assertThat(empty.getCrawlExecutionCount()).isZero();
+    }
+
+    private void insertSeed(String id, String jobId, boolean disabled) throws DbException {
+        conn.exec(r.table(Tables.SEEDS.name).insert(r.hashMap("id", id)
+                .with("kind", "seed")
+                .with("seed", r.hashMap("disabled", disabled)
+                        .with("jobRef", r.array(r.hashMap("kind", "crawlJob").with("id", jobId))))));
+    }
+
+    private void insertEndedCrawlExecution(String jobId, String state, String startTime, String endTime,
+                                           long documentsCrawled, long bytesCrawled) throws DbException {
+        conn.exec(r.table(Tables.EXECUTIONS.name).insert(r.hashMap("jobId", jobId)
+                .with("jobExecutionId", "jobExe1")
+                .with("seedId", "seed")
+                .with("state", state)
+                .with("startTime", r.iso8601(startTime))
+                .with("endTime", r.iso8601(endTime))
+                .with("documentsCrawled", documentsCrawled)
+                .with("bytesCrawled", bytesCrawled)));
+    }
 }
@@ -128,10 +128,11 @@ public class DbInitializerTestIT {
         List<String> tables = conn.exec(r.tableList());
         assertThat(tables).containsOnly(Tables.CONFIG.name, Tables.CRAWL_ENTITIES.name, Tables.SEEDS.name,
                 Tables.CRAWLED_CONTENT.name, Tables.EXECUTIONS.name, Tables.JOB_EXECUTIONS.name,
-                Tables.SYSTEM.name, Tables.URI_QUEUE.name, Tables.EVENTS.name);
+                Tables.SYSTEM.name, Tables.URI_QUEUE.name, Tables.EVENTS.name, Tables.EXECUTION_ROLLUPS.name,
+                Tables.EXECUTIONS_ARCHIVE.name, Tables.JOB_EXECUTIONS_ARCHIVE.name, Tables.EVENT_ACTIVITY.name);
 
         List<String> indexes = conn.exec(r.table(Tables.CONFIG.name).indexList());
-        assertThat(indexes).containsOnly("configRefs", "kind_label_key", "label", "label_value", "lastModified", "lastModifiedBy", "name");
+        assertThat(indexes).containsOnly("configRefs", "kind_label_key", "label", "label_value", "lastModified", "lastModifiedBy", "name", "roleMapping_emailOrGroup");
 
         conn.exec(r.tableDrop(Tables.SEEDS.name));
         conn.exec(r.table(Tables.CONFIG.name).indexDrop("configRefs"));
@@ -139,20 +140,22 @@ public class DbInitializerTestIT {
         tables = conn.exec(r.tableList());
         assertThat(tables).containsOnly(Tables.CONFIG.name, Tables.CRAWL_ENTITIES.name,
                 Tables.CRAWLED_CONTENT.name, Tables.EXECUTIONS.name, Tables.JOB_EXECUTIONS.name,
-                Tables.SYSTEM.name, Tables.URI_QUEUE.name, Tables.EVENTS.name);
+                Tables.SYSTEM.name, Tables.URI_QUEUE.name, Tables.EVENTS.name, Tables.EXECUTION_ROLLUPS.name,
+                Tables.EXECUTIONS_ARCHIVE.name, Tables.JOB_EXECUTIONS_ARCHIVE.name, Tables.EVENT_ACTIVITY.name);
 
         indexes = conn.exec(r.table(Tables.CONFIG.name).indexList());
-        assertThat(indexes).containsOnly("kind_label_key", "label", "label_value", "lastModified", "lastModifiedBy", "name");
+        assertThat(indexes).containsOnly("kind_label_key", "label", "label_value", "lastModified", "lastModifiedBy", "name", "roleMapping_emailOrGroup");
 
         DbService.getInstance().getDbInitializer().initialize();
 
         tables = conn.exec(r.tableList());
         assertThat(tables).containsOnly(Tables.CONFIG.name, Tables.CRAWL_ENTITIES.name, Tables.SEEDS.name,
                 Tables.CRAWLED_CONTENT.name, Tables.EXECUTIONS.name, Tables.JOB_EXECUTIONS.name,
-                Tables.SYSTEM.name, Tables.URI_QUEUE.name, Tables.EVENTS.name);
+                Tables.SYSTEM.name, Tables.URI_QUEUE.name, Tables.EVENTS.name, Tables.EXECUTION_ROLLUPS.name,
+                Tables.EXECUTIONS_ARCHIVE.name, Tables.JOB_EXECUTIONS_ARCHIVE.name, Tables.EVENT_ACTIVITY.name);
 
         indexes = conn.exec(r.table(Tables.CONFIG.name).indexList());
-        assertThat(indexes).containsOnly("configRefs", "kind_label_key", "label", "label_value", "lastModified", "lastModifiedBy", "name");
+        assertThat(indexes).containsOnly("configRefs", "kind_label_key", "label", "label_value", "lastModified", "lastModifiedBy", "name", "roleMapping_emailOrGroup");
     }
 
     @Test
@@ -125,16 +125,18 @@ class QueryOptimizerForCrawlExecutionsTest {
                 .addState(State.CREATED)
                 .setStartTimeFrom(Timestamps.parse("2020-12-02T09:53:36.406Z"));
         q = new ListCrawlExecutionQueryBuilder(req.build()).getListQuery();
-        expected = r.table("executions").getAll("CREATED").optArg("index", "state")
-                .filter(p1 -> p1.g("startTime").ge(r.iso8601("2020-12-02T09:53:36.406Z")));
+        expected = r.table("executions")
+                .between(r.array("CREATED", r.iso8601("2020-12-02T09:53:36.406Z")), r.array("CREATED", r.maxval()))
+                .optArg("index", "state_startTime").optArg("right_bound", "closed");
         assertThat(new RethinkAstDecompiler(q)).isEqualTo(new RethinkAstDecompiler(expected));
 
         req = CrawlExecutionsListRequest.newBuilder()
                 .setStartTimeFrom(Timestamps.parse("2020-12-02T09:53:36.406Z"))
                 .addState(State.CREATED);
         q = new ListCrawlExecutionQueryBuilder(req.build()).getListQuery();
-        expected = r.table("executions").getAll("CREATED").optArg("index", "state")
-                .filter(p1 -> p1.g("startTime").ge(r.iso8601("2020-12-02T09:53:36.406Z")));
+        expected = r.table("executions")
+                .between(r.array("CREATED", r.iso8601("2020-12-02T09:53:36.406Z")), r.array("CREATED", r.maxval()))
+                .optArg("index", "state_startTime").optArg("right_bound", "closed");
         assertThat(new RethinkAstDecompiler(q)).isEqualTo(new RethinkAstDecompiler(expected));
 
         req = CrawlExecutionsListRequest.newBuilder()
@@ -179,8 +181,7 @@ class QueryOptimizerForCrawlExecutionsTest {
                 .setJobId("jid1");
         req.getQueryMaskBuilder().addPaths("jobId");
         q = new ListCrawlExecutionQueryBuilder(req.build()).getListQuery();
-        expected = r.table("executions").getAll("CREATED").optArg("index", "state")
-                .filter(p1 -> p1.g("jobId").default_("").eq("jid1"));
+        expected = r.table("executions").getAll(r.array("jid1", "CREATED")).optArg("index", "jobId_state");
         assertThat(new RethinkAstDecompiler(q)).isEqualTo(new RethinkAstDecompiler(expected));
 
         // Test list by startTime and jobId
@@ -221,4 +222,51 @@ class QueryOptimizerForCrawlExecutionsTest {
                 .orderBy(p1 -> p1.g("startTime"));
         assertThat(new RethinkAstDecompiler(q)).isEqualTo(new RethinkAstDecompiler(expected));
     }
+
+    @Test
+    public void testListByHasError() throws ParseException {
+        ReqlAst q;
+        ReqlAst expected;
+        CrawlExecutionsListRequest.Builder req;
+
+        // Test list with error
+        req = CrawlExecutionsListRequest.newBuilder()
+                .setHasError(true);
+        q = new ListCrawlExecutionQueryBuilder(req.build()).getListQuery();
+        expected = r.table("executions").between(r.minval(), r.maxval())
+                .optArg("index", "hasError_startTime").optArg("right_bound", "closed");
+        assertThat(new RethinkAstDecompiler(q)).isEqualTo(new RethinkAstDecompiler(expected));
+
+        // Test list with error by start time and order by start time
+        req = CrawlExecutionsListRequest.newBuilder()
+                .setHasError(true)
+                .setStartTimeFrom(Timestamps.parse("2020-12-02T09:53:36.406Z"))
+                .setOrderByPath("startTime")
+                .setOrderDescending(true);
+        q = new ListCrawlExecutionQueryBuilder(req.build()).getListQuery();
+        expected = r.table("executions").between(r.iso8601("2020-12-02T09:53:36.406Z"), r.maxval())
+                .optArg("index", "hasError_startTime").optArg("right_bound", "closed")
+                .orderBy().optArg("index", r.desc("hasError_startTime"));
+        assertThat(new RethinkAstDecompiler(q)).isEqualTo(new RethinkAstDecompiler(expected));
+
+        // Test list with error within a start time range, the end of the range is inclusive
+        req = CrawlExecutionsListRequest.newBuilder()
+                .setHasError(true)
+                .setStartTimeFrom(Timestamps.parse("2020-12-02T09:53:36.406Z"))
+                .setStartTimeTo(Timestamps.parse("2020-12-03T09:53:36.406Z"));
+        q = new ListCrawlExecutionQueryBuilder(req.build()).getListQuery();
+        expected = r.table("executions")
+                .between(r.iso8601("2020-12-02T09:53:36.406Z"), r.iso8601("2020-12-03T09:53:36.406Z"))
+                .optArg("index", "hasError_startTime").optArg("right_bound", "closed");
+        assertThat(new RethinkAstDecompiler(q)).isEqualTo(new RethinkAstDecompiler(expected));
+
+        // Test list with error by state
+        req = CrawlExecutionsListRequest.newBuilder()
+                .setHasError(true)
+                .addState(State.FAILED);
+        q = new ListCrawlExecutionQueryBuilder(req.build()).getListQuery();
+        expected = r.table("executions").getAll("FAILED").optArg("index", "state")
+                .filter(p1 -> p1.hasFields("error"));
+        assertThat(new RethinkAstDecompiler(q)).isEqualTo(new RethinkAstDecompiler(expected));
+    }
 }
@@ -0,0 +1,118 @@
+package no.nb.nna.veidemann.db.queryoptimizer;
+
+import com.rethinkdb.ast.ReqlAst;
+import no.nb.nna.veidemann.api.commons.v1.FieldMask;
+import no.nb.nna.veidemann.api.eventhandler.v1.EventObject;
+import no.nb.nna.veidemann.api.eventhandler.v1.EventObject.State;
+import no.nb.nna.veidemann.api.eventhandler.v1.ListRequest;
+import no.nb.nna.veidemann.db.ListEventObjectQueryBuilder;
+import no.nb.nna.veidemann.db.RethinkAstDecompiler;
+import org.junit.jupiter.api.Test;
+
+import static com.rethinkdb.RethinkDB.r;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class QueryOptimizerForEventObjectsTest {
+    @Test
+    public void testListEventObjects() {
+        ReqlAst q;
+        ReqlAst expected;
+        ListRequest.Builder req;
+
+        // Test list all
+        req = ListRequest.newBuilder();
+        q = new ListEventObjectQueryBuilder(req.build()).getListQuery();
+        expected = r.table("events").orderBy().optArg("index", r.desc("lastModified"));
+        assertThat(new RethinkAstDecompiler(q)).isEqualTo(new RethinkAstDecompiler(expected));
+
+        // Test list by id
+        req = ListRequest.newBuilder()
+                .addId("id1");
+        q = new ListEventObjectQueryBuilder(req.build()).getListQuery();
+        expected = r.table("events").getAll("id1")
+                .orderBy(r.desc(p1 -> p1.g("activity").nth(0).g("modifiedTime")));
+        assertThat(new RethinkAstDecompiler(q)).isEqualTo(new RethinkAstDecompiler(expected));
+    }
+
+    @Test
+    public void testListByStateAndAssignee() {
+        ReqlAst q;
+        ReqlAst expected;
+        ListRequest.Builder req;
+
+        // Test list by state
+        req = ListRequest.newBuilder()
+                .setQueryTemplate(EventObject.newBuilder().setState(State.OPEN))
+                .setQueryMask(FieldMask.newBuilder().addPaths("state"));
+        q = new ListEventObjectQueryBuilder(req.build()).getListQuery();
+        expected = r.table("events")
+                .between(r.array("OPEN", r.minval()), r.array("OPEN", r.maxval()))
+                .optArg("right_bound", "closed").optArg("index", "state_lastModified")
+                .orderBy().optArg("index", r.desc("state_lastModified"));
+        assertThat(new RethinkAstDecompiler(q)).isEqualTo(new RethinkAstDecompiler(expected));
+
+        // Test list by assignee
+        req = ListRequest.newBuilder()
+                .setQueryTemplate(EventObject.newBuilder().setAssignee("admin"))
+                .setQueryMask(FieldMask.newBuilder().addPaths("assignee"));
+        q = new ListEventObjectQueryBuilder(req.build()).getListQuery();
+        expected = r.table("events")
+                .between(r.array("admin", r.minval()), r.array("admin", r.maxval()))
+                .optArg("right_bound", "closed").optArg("index", "assignee_lastModified")
+                .orderBy().optArg("index", r.desc("assignee_lastModified"));
+        assertThat(new RethinkAstDecompiler(q)).isEqualTo(new RethinkAstDecompiler(expected));
+
+        // Test list by state and assignee
+        req = ListRequest.newBuilder()
+                .setQueryTemplate(EventObject.newBuilder().setState(State.OPEN).setAssignee("admin"))
+                .setQueryMask(FieldMask.newBuilder().addPaths("state").addPaths("assignee"));
+        q = new ListEventObjectQueryBuilder(req.build()).getListQuery();
+        expected = r.table("events")
+                .between(r.array("OPEN", "admin", r.minval()), r.array("OPEN", "admin", r.maxval()))
+                .optArg("right_bound", "closed").optArg("index", "state_assignee_lastModified")
+                .orderBy().optArg("index", r.desc("state_assignee_lastModified"));
+        assertThat(new RethinkAstDecompiler(q)).isEqualTo(new RethinkAstDecompiler(expected));
+
+        // Test list by state, assignee and label
+        req = ListRequest.newBuilder()
+                .setQueryTemplate(EventObject.newBuilder().setState(State.OPEN).setAssignee("admin").addLabel("foo"))
+                .setQueryMask(FieldMask.newBuilder().addPaths("state").addPaths("assignee").addPaths("label"));
+        q = new ListEventObjectQueryBuilder(req.build()).getListQuery();
+        expected = r.table("events")
+                .between(r.array("OPEN", "admin", r.minval()), r.array("OPEN", "admin", r.maxval()))
+                .optArg("right_bound", "closed").optArg("index", "state_assignee_lastModified")
+                .orderBy().optArg("index", r.desc("state_assignee_lastModified"))
+                .filter(p1 -> p1.g("label").contains("foo"));
+        assertThat(new RethinkAstDecompiler(q)).isEqualTo(new RethinkAstDecompiler(expected));
+    }
+
+    @Test
+    public void testListByLabel() {
+        ReqlAst q;
+        ReqlAst expected;
+        ListRequest.Builder req;
+
+        // Test list by one label
+        req = ListRequest.newBuilder()
+                .setQueryTemplate(EventObject.newBuilder().addLabel("foo"))
+                .setQueryMask(FieldMask.newBuilder().addPaths("label"));
+        q = new ListEventObjectQueryBuilder(req.build()).getListQuery();
+        expected = r.table("events")
+                .between(r.array("foo", r.minval()), r.array("foo", r.maxval()))
+                .optArg("right_bound", "closed").optArg("index", "label_lastModified")
+                .orderBy().optArg("index", r.desc("label_lastModified"));
+        assertThat(new RethinkAstDecompiler(q)).isEqualTo(new RethinkAstDecompiler(expected));
+
+        // Test list by two labels
+        req = ListRequest.newBuilder()
+                .setQueryTemplate(EventObject.newBuilder().addLabel("foo").addLabel("bar"))
+                .setQueryMask(FieldMask.newBuilder().addPaths("label"));
+        q = new ListEventObjectQueryBuilder(req.build()).getListQuery();
+        expected = r.table("events")
+                .between(r.array("foo", r.minval()), r.array("foo", r.maxval()))
+                .optArg("right_bound", "closed").optArg("index", "label_lastModified")
+                .orderBy().optArg("index", r.desc("label_lastModified"))
+                .filter(p1 -> p1.g("label").contains(r.args(r.array("bar"))));
+        assertThat(new RethinkAstDecompiler(q)).isEqualTo(new RethinkAstDecompiler(expected));
+    }
+}